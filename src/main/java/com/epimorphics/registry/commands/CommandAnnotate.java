@@ -46,6 +46,7 @@ public class CommandAnnotate extends Command {
             if (item == null) {
                 throw new NotFoundException();
             }
+            item = item.forUpdate();
             store.storeGraph(graphURI, getPayload());
             item.getRoot().addProperty(RegistryVocab.annotation, ResourceFactory.createResource(graphURI));
             store.update(item, false);
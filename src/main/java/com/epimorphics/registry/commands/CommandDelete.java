@@ -59,6 +59,7 @@ public class CommandDelete extends Command {
     }
 
     private void doDelete(RegisterItem ri) {
+        ri = ri.forUpdate();
         ri.setStatus(Status.Invalid);
         store.update(ri, false);
     }
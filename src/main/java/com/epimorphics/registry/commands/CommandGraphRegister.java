@@ -88,6 +88,7 @@ public class CommandGraphRegister extends CommandRegister {
 
             if (item != null) {
                 // This is actually an update
+                item = item.forUpdate();
                 item.setEntity(root);
                 item.setAsGraph(true);
                 item.updateForEntity(false, Calendar.getInstance());
@@ -22,6 +22,7 @@
 package com.epimorphics.registry.commands;
 
 import static com.epimorphics.registry.webapi.Parameters.COLLECTION_METADATA_ONLY;
+import static com.epimorphics.registry.webapi.Parameters.COUNT;
 import static com.epimorphics.registry.webapi.Parameters.ENTITY_LOOKUP;
 import static com.epimorphics.registry.webapi.Parameters.STATUS;
 import static com.epimorphics.registry.webapi.Parameters.VERSION_AT;
@@ -29,11 +30,15 @@ import static com.epimorphics.registry.webapi.Parameters.VERSION_LIST;
 import static com.epimorphics.registry.webapi.Parameters.VIEW;
 import static com.epimorphics.registry.webapi.Parameters.WITH_METADATA;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import com.epimorphics.rdfutil.RDFUtil;
 import com.epimorphics.registry.core.Command;
@@ -44,7 +49,10 @@ import com.epimorphics.registry.core.RegisterItem;
 import com.epimorphics.registry.core.Registry;
 import com.epimorphics.registry.core.Status;
 import com.epimorphics.registry.store.EntityInfo;
+import com.epimorphics.registry.store.RegisterEntryInfo;
 import com.epimorphics.registry.store.VersionInfo;
+import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.RDFStreamWriter;
 import com.epimorphics.registry.util.Util;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.registry.vocab.Version;
@@ -66,6 +74,9 @@ import com.sun.jersey.api.NotFoundException;
 
 
 public class CommandRead extends Command {
+    static final Property VOID_ENTITIES = ResourceFactory.createProperty("http://rdfs.org/ns/void#entities");
+    static final Property VOID_SUBSET = ResourceFactory.createProperty("http://rdfs.org/ns/void#subset");
+    static final int STREAM_CHUNK = 500;
 
     boolean withMetadata;
     boolean versionList;
@@ -115,9 +126,6 @@ public class CommandRead extends Command {
                 } else {
                     //  plain item
                     d = store.getItem(target, true) ;
-                    if (versionList) {
-                        injectVersionHistory(d);
-                    }
                 }
             } else {
                 // An entity
@@ -148,10 +156,19 @@ public class CommandRead extends Command {
             throw new NotFoundException();
         }
 
+        if (parameters.containsKey(COUNT) && d instanceof Register) {
+            return returnModel(registerCount(d.asRegister()), d.getRoot().getURI());
+        }
+
         Model m = d.getRoot().getModel();
         // Include any entity in the response
         if (d instanceof RegisterItem) {
+            // Assemble the response in a fresh model, the item description may be a shared frozen copy
+            m = ModelFactory.createDefaultModel().add(m);
             RegisterItem ri = d.asRegisterItem();
+            if (versionList && !versioned && lastSegment.startsWith("_")) {
+                injectVersionHistory(m, ri.getRoot());
+            }
             if (graphEntity) {
                 Resource entityRef = ri.getRoot().getPropertyResourceValue(RegistryVocab.definition);
                 StmtIterator si = entityRef.listProperties(RegistryVocab.sourceGraph);
@@ -171,9 +188,13 @@ public class CommandRead extends Command {
         if (entityWithMetadata) {
             d = Description.descriptionFrom(d.asRegisterItem().getEntity(), store);
         }
+        if (streamFormat != null && d instanceof Register && !paged
+                && !(delegation instanceof DelegationRecord) && !parameters.containsKey(COLLECTION_METADATA_ONLY)) {
+            return streamRegister(d.asRegister());
+        }
         if (!parameters.containsKey(COLLECTION_METADATA_ONLY)) {
             if (d instanceof Register) {
-                // add this way round so as not to put members in the cached copy of the register description
+                // add this way round, the register description may be a shared frozen copy
                 m = registerRead(d.asRegister()).add(m);
             } else if (d instanceof RegisterItem) {
                 Resource entity = d.asRegisterItem().getEntity();
@@ -190,15 +211,14 @@ public class CommandRead extends Command {
         return returnModel(m, d.getRoot().getURI() );
     }
 
-    private void injectVersionHistory(Description d) {
-        Model m = d.getRoot().getModel();
+    private void injectVersionHistory(Model m, Resource root) {
         for (VersionInfo vi : store.listVersions(target)) {
             Resource interval = m.createResource();
             addTimestamp(interval, Time.hasBeginning, vi.getFromTime());
             addTimestamp(interval, Time.hasEnd, vi.getToTime());
 
             Resource ver = m.createResource( vi.getUri() )
-                .addProperty(DCTerms.isVersionOf, d.getRoot())
+                .addProperty(DCTerms.isVersionOf, root)
                 .addProperty(RDF.type, RegistryVocab.RegisterItem)
                 .addProperty(RDF.type, Version.Version)
                 .addProperty(Version.interval, interval);
@@ -206,7 +226,7 @@ public class CommandRead extends Command {
                 ver.addProperty(DCTerms.replaces, m.createResource(vi.getReplaces()));
             }
             if (vi.getToTime() == -1) {
-                m.add(d.getRoot(), Version.currentVersion, ver);
+                m.add(root, Version.currentVersion, ver);
             }
         }
     }
@@ -223,17 +243,15 @@ public class CommandRead extends Command {
         Model result = ModelFactory.createDefaultModel();
         String uri = parameters.getFirst(ENTITY_LOOKUP);
         Status statusFilter = Status.forString(parameters.getFirst(STATUS), Status.Any);
-        for (EntityInfo entityInfo : store.listEntityOccurences(uri)) {
+        for (EntityInfo entityInfo : store.listEntityOccurences(uri, target)) {
             if (entityInfo.getStatus().isA(statusFilter)) {
-                if (entityInfo.getRegisterURI().startsWith(target)) {
-                    if (withMetadata) {
-                        RegisterItem ri = store.getItem(entityInfo.getItemURI(), true);
-                        result.add( ri.getRoot().getModel() );
-                        result.add( ri.getEntity().getModel() );
-                    } else {
-                        Description d = store.getCurrentVersion(entityInfo.getEntityURI());
-                        result.add(d.getRoot().getModel());
-                    }
+                if (withMetadata) {
+                    RegisterItem ri = store.getItem(entityInfo.getItemURI(), true);
+                    result.add( ri.getRoot().getModel() );
+                    result.add( ri.getEntity().getModel() );
+                } else {
+                    Description d = store.getCurrentVersion(entityInfo.getEntityURI());
+                    result.add(d.getRoot().getModel());
                 }
             }
         }
@@ -259,6 +277,40 @@ public class CommandRead extends Command {
         return returnModel(result, target);
     }
 
+    /**
+     * Stream the register description followed by its members. Members are
+     * fetched and written a chunk at a time, using the same notation cursor
+     * as for paged views, so memory use is independent of the register size.
+     */
+    private Response streamRegister(final Register register) {
+        final Status status = Status.forString( parameters.getFirst(STATUS), Status.Accepted );
+        final long timestamp = versioned ? store.versionStartedAt(target) : Util.asTimestamp( parameters.getFirst(VERSION_AT) );
+        StreamingOutput out = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                RDFStreamWriter writer = new RDFStreamWriter(output, streamFormat, Prefixes.get());
+                writer.start();
+                Model header = register.getRoot().getModel();
+                writer.write(header);
+                // One membership snapshot for the whole stream, each chunk is a window onto it
+                List<RegisterEntryInfo> registerMembers = register.getMembers();
+                String after = null;
+                boolean complete = false;
+                while (!complete) {
+                    Model chunk = ModelFactory.createDefaultModel();
+                    List<RegisterEntryInfo> window = new ArrayList<RegisterEntryInfo>(STREAM_CHUNK);
+                    complete = register.constructView(registerMembers, chunk, withMetadata, status, after, 0, STREAM_CHUNK, timestamp, null, window);
+                    chunk.remove(header);
+                    writer.write(chunk);
+                    if (window.isEmpty()) break;
+                    after = window.get(window.size() - 1).getNotation();
+                }
+                writer.finish();
+            }
+        };
+        return returnStream(out, register.getRoot().getURI());
+    }
+
     Model registerRead(Register register) {
         if (parameters.containsKey(COLLECTION_METADATA_ONLY)) {
             return register.getRoot().getModel();
@@ -269,8 +321,12 @@ public class CommandRead extends Command {
                 members = new ArrayList<Resource>();
             }
             boolean complete = false;
+            List<RegisterEntryInfo> window = null;
 
             if (delegation != null && delegation instanceof DelegationRecord) {
+                if (pageAfter != null) {
+                    throw new WebApiException(Response.Status.BAD_REQUEST, "Cursor paging is not supported for delegated registers");
+                }
                 register.constructDelegatedView(view, (DelegationRecord) delegation, pagenum * length, length, members);
                 if (length == -1 || members.size() < length) {
                     complete = true;
@@ -294,12 +350,21 @@ public class CommandRead extends Command {
                 } else {
                     timestamp = Util.asTimestamp( parameters.getFirst(VERSION_AT) );
                 }
-                complete = register.constructView(view, withMetadata, status, pagenum * length, length, timestamp, members);
+                if (pageAfter != null) {
+                    window = new ArrayList<RegisterEntryInfo>(length);
+                    complete = register.constructView(view, withMetadata, status, pageAfter, 0, length, timestamp, members, window);
+                } else {
+                    complete = register.constructView(view, withMetadata, status, pagenum * length, length, timestamp, members);
+                }
             }
 
             // Paging parameters
             if (paged) {
-                Resource page = injectPagingInformation(view, register.getRoot(), !complete);
+                String cursor = null;
+                if (window != null && !window.isEmpty()) {
+                    cursor = window.get(window.size() - 1).getNotation();
+                }
+                Resource page = injectPagingInformation(view, register.getRoot(), !complete, cursor);
                 page.addProperty(API.items, view.createList(members.iterator()));
             }
 
@@ -307,4 +372,28 @@ public class CommandRead extends Command {
         }
     }
 
+    /**
+     * Summarize the current membership of a register by status, without constructing a view.
+     * The total is restricted by any status filter, the per-status subsets are always given.
+     */
+    Model registerCount(Register register) {
+        Model result = ModelFactory.createDefaultModel();
+        Status statusFilter = Status.forString(parameters.getFirst(STATUS), Status.Any);
+        Resource root = result.createResource( register.getRoot().getURI() )
+                .addProperty(RDF.type, RegistryVocab.Register);
+        int total = 0;
+        for (Map.Entry<Status, Integer> entry : register.countMembers().entrySet()) {
+            Status status = entry.getKey();
+            int count = entry.getValue();
+            if (status.isA(statusFilter)) {
+                total += count;
+            }
+            root.addProperty(VOID_SUBSET, result.createResource()
+                    .addProperty(RegistryVocab.status, status.getResource())
+                    .addLiteral(VOID_ENTITIES, count) );
+        }
+        root.addLiteral(VOID_ENTITIES, total);
+        return result;
+    }
+
 }
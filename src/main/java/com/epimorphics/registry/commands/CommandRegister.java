@@ -22,18 +22,33 @@
 package com.epimorphics.registry.commands;
 
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.REQUEST_ENTITY_TOO_LARGE;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.ws.rs.core.Response;
 
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RiotException;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.UnavailableSecurityManagerException;
 import org.slf4j.Logger;
@@ -53,6 +68,7 @@ import com.epimorphics.registry.security.RegPermission;
 import com.epimorphics.registry.security.UserInfo;
 import com.epimorphics.registry.store.EntityInfo;
 import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.SubjectGroupingSink;
 import com.epimorphics.registry.vocab.Ldbp;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.registry.webapi.Parameters;
@@ -91,9 +107,27 @@ public class CommandRegister extends Command {
 
     Register parentRegister;
 
+    InputStream payloadStream;
+    Lang payloadLang;
+    String payloadBase;
+
+    /**
+     * Supply the payload as a stream to be parsed incrementally rather than as a model.
+     * Only supported for batch registration.
+     */
+    public void setPayloadStream(InputStream in, Lang lang, String base) {
+        payloadStream = in;
+        payloadLang = lang;
+        payloadBase = base;
+    }
+
+    protected boolean isBatch() {
+        return parameters.containsKey(Parameters.BATCH_MANAGED) || parameters.containsKey(Parameters.BATCH_REFERENCED);
+    }
+
     @Override
     public ValidationResponse validate() {
-        boolean isBatch = parameters.containsKey(Parameters.BATCH_MANAGED) || parameters.containsKey(Parameters.BATCH_REFERENCED);
+        boolean isBatch = isBatch();
         store.lock(target);
         try {
             Description d = store.getCurrentVersion(target);
@@ -108,24 +142,23 @@ public class CommandRegister extends Command {
             store.unlock(target);
         }
 
-        for (Resource validationQuery : RDFUtil.allResourceValues(parentRegister.getRoot(), RegistryVocab.validationQuery)) {
-            String query = RDFUtil.getStringValue(validationQuery, RegistryVocab.query);
-            String expquery = PrefixUtils.expandQuery(query, Prefixes.get());
-            QueryExecution qexec = QueryExecutionFactory.create(expquery, payload);
-            try {
-                if (qexec.execAsk() == true) {
-                    String querymsg = RDFUtil.getStringValue(validationQuery, RDFS.label, query);
-                    return new ValidationResponse(BAD_REQUEST, "Validation query found error in request: " + querymsg );
-                }
-            } finally {
-                qexec.close();
-            }
-        }
-
         statusOverride = Status.forString(parameters.getFirst(Parameters.STATUS), null);
 
         needStatusPermission = statusOverride != null;
 
+        if (payloadStream != null) {
+            // Payload checks are applied to each subject as it is streamed
+            if (!isBatch) {
+                return new ValidationResponse(BAD_REQUEST, "Streamed payloads are only supported for batch registration");
+            }
+            return ValidationResponse.OK;
+        }
+
+        ValidationResponse queryValid = runValidationQueries(parentRegister, payload);
+        if (!queryValid.isOk()) {
+            return queryValid;
+        }
+
         for (ResIterator ri = payload.listSubjectsWithProperty(RDF.type, RegistryVocab.RegisterItem); ri.hasNext();) {
             Resource itemSpec = ri.next();
             StmtIterator i = itemSpec.listProperties(RegistryVocab.status);
@@ -157,6 +190,23 @@ public class CommandRegister extends Command {
         return ValidationResponse.OK;
     }
 
+    private ValidationResponse runValidationQueries(Register parent, Model data) {
+        for (Resource validationQuery : RDFUtil.allResourceValues(parent.getRoot(), RegistryVocab.validationQuery)) {
+            String query = RDFUtil.getStringValue(validationQuery, RegistryVocab.query);
+            String expquery = PrefixUtils.expandQuery(query, Prefixes.get());
+            QueryExecution qexec = QueryExecutionFactory.create(expquery, data);
+            try {
+                if (qexec.execAsk() == true) {
+                    String querymsg = RDFUtil.getStringValue(validationQuery, RDFS.label, query);
+                    return new ValidationResponse(BAD_REQUEST, "Validation query found error in request: " + querymsg );
+                }
+            } finally {
+                qexec.close();
+            }
+        }
+        return ValidationResponse.OK;
+    }
+
     private ValidationResponse validateEntity(Register parent, Resource entity) {
         if (entity == null) {
             return new ValidationResponse(BAD_REQUEST, "Missing entity");
@@ -195,7 +245,9 @@ public class CommandRegister extends Command {
         store.lock(target);
         try {
             Resource location = null;
-            if (parameters.containsKey(Parameters.BATCH_MANAGED) || parameters.containsKey(Parameters.BATCH_REFERENCED)) {
+            if (payloadStream != null) {
+                location = streamBatchRegister(parentRegister);
+            } else if (isBatch()) {
                 location = batchRegister(parentRegister);
             } else {
                 if (payload.contains(null, RDF.type, RegistryVocab.RegisterItem)) {
@@ -241,16 +293,8 @@ public class CommandRegister extends Command {
         Resource root = roots.get(0);
 
         // Find membership property
-        boolean isInverse = false;
-        Property memberProp = RDFUtil.asProperty( bulkItem.getRoot().getPropertyResourceValue(Ldbp.membershipPredicate) );
-        if (memberProp == null) {
-            memberProp = RDFUtil.asProperty( bulkItem.getRoot().getPropertyResourceValue(RegistryVocab.inverseMembershipPredicate) );
-            if (memberProp == null) {
-                memberProp = RDFS.member;
-            } else {
-                isInverse = true;
-            }
-        }
+        boolean isInverse = isInverseMembership(bulkItem);
+        Property memberProp = membershipProperty(bulkItem);
 
         // Find children
         List<Resource> children = new ArrayList<Resource>();
@@ -286,6 +330,54 @@ public class CommandRegister extends Command {
         }
 
         // Register the collection
+        Resource item = registerBatchRoot(parent, root, memberProp, isInverse);
+        Register newReg = store.getCurrentVersion( batchRegisterURI(item) ).asRegister();
+
+        // Prepare all the children first then add them in one store update, so
+        // the new register is only versioned once for the whole batch
+        List<RegisterItem> items = new ArrayList<RegisterItem>( children.size() );
+        for (Resource child : children) {
+            items.add( prepareBatchItem(newReg, child.inModel(Closure.closure(child, false))) );
+        }
+        addBatch(newReg, items, Calendar.getInstance());
+
+        return item;
+    }
+
+    private boolean isInverseMembership(RegisterItem bulkItem) {
+        return !bulkItem.getRoot().hasProperty(Ldbp.membershipPredicate)
+                && bulkItem.getRoot().hasProperty(RegistryVocab.inverseMembershipPredicate);
+    }
+
+    private Property membershipProperty(RegisterItem bulkItem) {
+        Property memberProp = RDFUtil.asProperty( bulkItem.getRoot().getPropertyResourceValue(Ldbp.membershipPredicate) );
+        if (memberProp == null) {
+            memberProp = RDFUtil.asProperty( bulkItem.getRoot().getPropertyResourceValue(RegistryVocab.inverseMembershipPredicate) );
+            if (memberProp == null) {
+                memberProp = RDFS.member;
+            }
+        }
+        return memberProp;
+    }
+
+    private Resource registerBatchRoot(Register parent, Resource root, Property memberProp, boolean isInverse) {
+        prepareBatchRoot(root, memberProp, isInverse);
+        return register(parent, root, false, false);
+    }
+
+    /**
+     * Validate the collection root as registerBatchRoot would register it, without changing
+     * the store, and return a provisional register against which its children can be validated.
+     */
+    private Register checkBatchRoot(Register parent, Resource root, Property memberProp, boolean isInverse) {
+        prepareBatchRoot(root, memberProp, isInverse);
+        RegisterItem ri = prepareItem(parent, root, false, false);
+        Register provisional = new Register( ri.getEntity() );
+        provisional.setStore(store);
+        return provisional;
+    }
+
+    private void prepareBatchRoot(Resource root, Property memberProp, boolean isInverse) {
         root.addProperty(RDF.type, RegistryVocab.Register);
         if (!root.hasProperty(RegistryVocab.owner)) {
             if (root.hasProperty(DCTerms.publisher)) {
@@ -295,42 +387,276 @@ public class CommandRegister extends Command {
             }
         }
         root.addProperty(isInverse ? RegistryVocab.inverseMembershipPredicate : Ldbp.membershipPredicate, memberProp);
-        Resource item = register(parent, root, false, false);
-        String registerURI = item.getURI().replaceAll("/_([^/]*)$", "/$1");
-        Register newReg = store.getCurrentVersion(registerURI).asRegister();
+    }
 
-        boolean isReference = parameters.containsKey(Parameters.BATCH_REFERENCED);
-        for (Resource child : children) {
-            // TODO bypass the register versioning here
-            Resource entity = child.inModel(Closure.closure(child, false));
-            if (isReference) {
-                Model em = entity.getModel();
-                Resource ei = em.createResource()
-                        .addProperty(RDF.type, RegistryVocab.RegisterItem)
-                        .addProperty(RegistryVocab.definition, em.createResource().addProperty(RegistryVocab.entity, entity));
-                if (entity.getURI().startsWith(registry.getBaseURI())) {
-                    em.add( store.getDescription(entity.getURI()).getRoot().listProperties() );
+    private String batchRegisterURI(Resource item) {
+        return item.getURI().replaceAll("/_([^/]*)$", "/$1");
+    }
+
+    private RegisterItem prepareBatchItem(Register newReg, Resource entity) {
+        if (parameters.containsKey(Parameters.BATCH_REFERENCED)) {
+            Model em = entity.getModel();
+            Resource ei = em.createResource()
+                    .addProperty(RDF.type, RegistryVocab.RegisterItem)
+                    .addProperty(RegistryVocab.definition, em.createResource().addProperty(RegistryVocab.entity, entity));
+            if (entity.getURI().startsWith(registry.getBaseURI())) {
+                em.add( store.getDescription(entity.getURI()).getRoot().listProperties() );
+            }
+            return prepareItem(newReg, ei, true, false);
+        } else {
+            return prepareItem(newReg, entity, false, false);
+        }
+    }
+
+    private void addBatch(Register newReg, List<RegisterItem> items, Calendar now) {
+        Set<Resource> seen = new HashSet<Resource>();
+        for (RegisterItem ri : items) {
+            if (!seen.add(ri.getRoot())) {
+                throw new WebApiException(Response.Status.FORBIDDEN, "Item registered more than once in batch: " + ri.getRoot());
+            }
+        }
+        store.addAllToRegister(newReg, items, now);
+        for (RegisterItem ri : items) {
+            registered(ri);
+        }
+    }
+
+    /**
+     * Register a streamed batch in two passes over a spooled copy of the payload. The
+     * first pass applies every check without changing the store, so that a rejected
+     * payload registers nothing whether or not the store can roll back. The second
+     * pass then registers the batch.
+     */
+    private Resource streamBatchRegister(Register parent) {
+        File spool = null;
+        try {
+            spool = File.createTempFile("batch", ".payload");
+            Files.copy(payloadStream, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            streamBatchPass(parent, spool, false);
+            return streamBatchPass(parent, spool, true);
+        } catch (IOException e) {
+            throw new EpiException(e);
+        } finally {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    private Resource streamBatchPass(Register parent, File spool, boolean write) throws IOException {
+        StreamingBatch batch = new StreamingBatch(parent, write);
+        SubjectGroupingSink sink = new SubjectGroupingSink(batch, registry.getStreamLimit());
+        InputStream in = new BufferedInputStream( new FileInputStream(spool) );
+        try {
+            RDFDataMgr.parse(sink, in, payloadBase, payloadLang);
+            sink.complete();
+            return batch.complete();
+        } catch (RiotException e) {
+            throw new WebApiException(BAD_REQUEST, "Payload failed to parse: " + e.getMessage() + batch.progress());
+        } catch (WebApiException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (!write) throw e;
+            log.error("Streamed batch registration failed after validation", e);
+            throw new WebApiException(INTERNAL_SERVER_ERROR, "Batch registration failed: " + e.getMessage() + batch.progress());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Consumes the subject groups of a streamed batch payload. The collection root
+     * is recognized as soon as it is seen, children are then validated one subject
+     * group at a time. Children which precede the root are held until the root
+     * arrives, subject to the stream memory limit.
+     * <p>
+     * In the checking pass nothing is written, the items are only prepared so that
+     * every check is applied. In the writing pass the root is registered and the
+     * children are added to the store in chunks. A failure in the writing pass can
+     * only come from the store itself, the error message then reports whether the
+     * chunks already added were rolled back or remain registered.
+     * </p>
+     */
+    class StreamingBatch implements SubjectGroupingSink.GroupHandler {
+        static final int CHUNK_SIZE = 1000;
+
+        Register parent;
+        boolean write;
+        Map<String, RegisterItem> bulkTypes = new HashMap<String, RegisterItem>();
+        Calendar now = Calendar.getInstance();
+
+        Resource root;
+        Resource rootItem;
+        Register newReg;
+        Property memberProp;
+        boolean isInverse;
+        Set<String> expectedMembers = new HashSet<String>();
+        Set<String> itemURIs = new HashSet<String>();
+
+        List<Resource> waiting = new ArrayList<Resource>();
+        long waitingSize = 0;
+        List<RegisterItem> chunk = new ArrayList<RegisterItem>(CHUNK_SIZE);
+        int itemCount = 0;
+        int registeredCount = 0;
+
+        StreamingBatch(Register parent, boolean write) {
+            this.parent = parent;
+            this.write = write;
+        }
+
+        @Override
+        public void group(Resource subject) {
+            ValidationResponse valid = runValidationQueries(parent, subject.getModel());
+            if (!valid.isOk()) {
+                throw new WebApiException(valid.getStatus(), valid.getMessage() + progress());
+            }
+            if (root == null) {
+                RegisterItem bulkItem = findBulkType(subject);
+                if (bulkItem != null) {
+                    startBatch(subject, bulkItem);
+                } else {
+                    waitingSize += subject.getModel().size();
+                    if (waitingSize > registry.getStreamLimit()) {
+                        throw new WebApiException(REQUEST_ENTITY_TOO_LARGE, "Too many entries before the batch collection root in streamed payload, put the root first");
+                    }
+                    waiting.add(subject);
                 }
-                register(newReg, ei, true, false);
+            } else if (subject.equals(root)) {
+                throw new WebApiException(BAD_REQUEST, "Description of batch root is split in streamed payload" + progress());
             } else {
-                register(newReg, entity, false, false);
+                child(subject);
             }
         }
 
-        return item;
+        private RegisterItem findBulkType(Resource subject) {
+            for (Resource type : RDFUtil.allResourceValues(subject, RDF.type)) {
+                if (type.isURIResource()) {
+                    if (!bulkTypes.containsKey(type.getURI())) {
+                        bulkTypes.put(type.getURI(), getBulkType(type));
+                    }
+                    RegisterItem bulkItem = bulkTypes.get(type.getURI());
+                    if (bulkItem != null) {
+                        return bulkItem;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void startBatch(Resource subject, RegisterItem bulkItem) {
+            root = subject;
+            isInverse = isInverseMembership(bulkItem);
+            memberProp = membershipProperty(bulkItem);
+            if (!isInverse) {
+                for (Statement s : root.listProperties(memberProp).toList()) {
+                    if (s.getObject().isURIResource()) {
+                        expectedMembers.add( s.getResource().getURI() );
+                    }
+                }
+                root.removeAll(memberProp);
+            }
+            if (write) {
+                rootItem = registerBatchRoot(parent, root, memberProp, isInverse);
+                refreshRegister();
+            } else {
+                newReg = checkBatchRoot(parent, root, memberProp, isInverse);
+            }
+            for (Resource c : waiting) {
+                child(c);
+            }
+            waiting = null;
+        }
+
+        private void refreshRegister() {
+            // Pick up the current register version so each chunk versions it in turn
+            newReg = store.getCurrentVersion( batchRegisterURI(rootItem) ).asRegister();
+        }
+
+        private void child(Resource c) {
+            boolean isMember;
+            if (isInverse) {
+                isMember = c.hasProperty(memberProp, root);
+                c.getModel().remove( c.listProperties(memberProp).toList() );
+            } else {
+                isMember = expectedMembers.remove( c.getURI() );
+            }
+            if (!isMember) {
+                if (c.hasProperty(RDF.type)) {
+                    throw new WebApiException(BAD_REQUEST, "Found resources other than batch root and child entities in the payload: " + c + progress());
+                }
+                return;   // untyped resources which are not members are ignored, as in the non-streamed case
+            }
+            RegisterItem ri = prepareBatchItem(newReg, c);
+            itemCount++;
+            if (write) {
+                chunk.add(ri);
+                if (chunk.size() >= CHUNK_SIZE) {
+                    flushChunk();
+                }
+            } else if (!itemURIs.add( ri.getRoot().getURI() )) {
+                throw new WebApiException(Response.Status.FORBIDDEN, "Item registered more than once in batch: " + ri.getRoot() + progress());
+            }
+        }
+
+        private void flushChunk() {
+            if (!chunk.isEmpty()) {
+                addBatch(newReg, chunk, now);
+                registeredCount += chunk.size();
+                chunk.clear();
+                refreshRegister();
+            }
+        }
+
+        /**
+         * Describe the outcome of a batch which failed at this point, for the error message
+         */
+        String progress() {
+            if (!write || rootItem == null) {
+                return " (at item " + itemCount + " of the batch, no items were registered)";
+            }
+            if (store.supportsRollback()) {
+                return " (at item " + itemCount + " of the batch, the batch was rolled back and no items were registered)";
+            }
+            return " (at item " + itemCount + " of the batch, " + registeredCount + " items had been registered in " + batchRegisterURI(rootItem) + " and remain registered)";
+        }
+
+        Resource complete() {
+            if (root == null) {
+                throw new WebApiException(BAD_REQUEST, "Could not find registered bulk type in payload");
+            }
+            if (write) {
+                flushChunk();
+            }
+            if (!expectedMembers.isEmpty()) {
+                throw new WebApiException(BAD_REQUEST, "No description found for collection member " + expectedMembers.iterator().next() + progress());
+            }
+            if (itemCount == 0) {
+                throw new WebApiException(BAD_REQUEST, "No children of bulk collection type found" + progress());
+            }
+            return write ? rootItem : root;
+        }
     }
 
     private RegisterItem getBulkType(Resource ty) {
         String bulkRegister = registry.getBaseURI() + BULK_TYPES_REGISTER;
-        for (EntityInfo i : store.listEntityOccurences(ty.getURI())) {
-            if (i.getRegisterURI().startsWith(bulkRegister)) {
-                return store.getItem(i.getItemURI(), true);
-            }
+        List<EntityInfo> occurrences = store.listEntityOccurences(ty.getURI(), bulkRegister);
+        if (occurrences.isEmpty()) {
+            return null;
         }
-        return null;
+        return store.getItem(occurrences.get(0).getItemURI(), true);
     }
 
     protected Resource register(Register parent, Resource itemSpec, boolean withItemSpec, boolean asGraph) {
+        RegisterItem ri = prepareItem(parent, itemSpec, withItemSpec, asGraph);
+        store.addToRegister(parent, ri);
+        registered(ri);
+        return ri.getRoot();
+    }
+
+    /**
+     * Validate and normalize a new item ready to be added to the parent register.
+     */
+    protected RegisterItem prepareItem(Register parent, Resource itemSpec, boolean withItemSpec, boolean asGraph) {
         String parentURI = NameUtils.stripLastSlash( parent.getRoot().getURI() );
                 // String stripLastSlash needed to cope with the out-of-pattern URI for the root register
         RegisterItem ri = null;
@@ -394,12 +720,13 @@ public class CommandRegister extends Command {
                 ri.getRoot().addProperty(RegistryVocab.itemClass, RegistryVocab.Register);
             }
         }
-        store.addToRegister(parent, ri);
-        checkDelegation(ri);
+        return ri;
+    }
 
+    // Post-registration actions once the item is in the store
+    private void registered(RegisterItem ri) {
+        checkDelegation(ri);
         notify( new Message(this, ri) );
-
-        return ri.getRoot();
     }
 
 
@@ -22,34 +22,49 @@
 package com.epimorphics.registry.commands;
 
 import static com.epimorphics.registry.webapi.Parameters.FIRST_PAGE;
+import static com.epimorphics.registry.webapi.Parameters.HISTORY;
+import static com.epimorphics.registry.webapi.Parameters.PAGE_AFTER;
 import static com.epimorphics.registry.webapi.Parameters.PAGE_NUMBER;
 import static com.epimorphics.registry.webapi.Parameters.VIEW;
 import static com.epimorphics.registry.webapi.Parameters.WITH_METADATA;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.epimorphics.registry.core.Command;
 import com.epimorphics.registry.core.RegisterItem;
 import com.epimorphics.registry.core.Registry;
+import com.epimorphics.registry.store.SearchHit;
+import com.epimorphics.registry.store.SearchSummary;
+import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.RDFStreamWriter;
 import com.epimorphics.registry.webapi.Parameters;
-import com.epimorphics.server.indexers.LuceneResult;
 import com.epimorphics.server.webapi.WebApiException;
 import com.epimorphics.vocabs.API;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.sparql.util.Closure;
 import com.hp.hpl.jena.vocabulary.RDFS;
 
 public class CommandSearch extends Command {
+    static final Logger log = LoggerFactory.getLogger( CommandSearch.class );
     static int MAX_LEN = 1000;
 
     boolean withMetadata;
+    boolean includeHistory;
 
     public void init(Operation operation, String target,
             MultivaluedMap<String, String> parameters, Registry registry) {
@@ -58,6 +73,7 @@ public class CommandSearch extends Command {
             length = MAX_LEN;
         }
         withMetadata = hasParamValue(VIEW, WITH_METADATA);
+        includeHistory = parameters.containsKey(HISTORY) && !hasParamValue(HISTORY, "false");
         if (!paged) {
             parameters.put(FIRST_PAGE, new ArrayList<String>());
             paged = true;
@@ -68,35 +84,148 @@ public class CommandSearch extends Command {
     @Override
     public Response doExecute() {
         String query = parameters.getFirst(Parameters.QUERY);
-        LuceneResult[] hits = store.search(query, length * pagenum, length, extractSearchSpec());
-        List<String> uris = new ArrayList<String>(hits.length);
-        for (LuceneResult hit : hits) {
-            uris.add( hit.getURI() );
+        SearchHit[] hits;
+        if (pageAfter != null) {
+            hits = store.searchAfter(query, includeHistory, pageAfter.isEmpty() ? null : pageAfter, length, extractSearchSpec());
+        } else {
+            hits = store.search(query, includeHistory, length * pagenum, length, extractSearchSpec());
+        }
+        // The next page continues from the last hit's cursor where the index supports them
+        String cursor = hits.length == 0 ? null : hits[hits.length - 1].getCursor();
+        String resultURI = target + "?" + makeParamString(parameters, FIRST_PAGE, PAGE_NUMBER, PAGE_AFTER);
+        if (streamFormat != null) {
+            return streamResults(hits, resultURI, hits.length == length, cursor);
         }
         Model result = ModelFactory.createDefaultModel();
-        String resultURI = target + "?" + makeParamString(parameters, FIRST_PAGE, PAGE_NUMBER);
         Resource root = result.createResource( resultURI );
         RDFNode[] members = new RDFNode[hits.length];
-        int i = 0;
-        for (String uri: uris) {
-            RegisterItem ri = store.getItem(uri, true);
-            Resource entity = ri.getEntity();
+        List<Resource> entities = entitiesFor(hits, result, result);
+        for (int i = 0; i < hits.length; i++) {
+            Resource entity = entities.get(i);
             if (entity == null) {
-                throw new WebApiException(Status.INTERNAL_SERVER_ERROR, "No entity found for search result " + ri.getRoot());
+                throw new WebApiException(Status.INTERNAL_SERVER_ERROR, "No entity found for search result " + hits[i].getURI());
             }
-            result.add( entity.getModel() );
-            if (withMetadata) {
-                result.add( ri.getRoot().getModel() );
+            if (entity.getModel() != result) {
+                result.add( entity.getModel() );
+                entity = entity.inModel(result);
             }
             root.addProperty(RDFS.member, entity);
-            members[i++] = entity;
+            members[i] = entity;
         }
-        Resource page = injectPagingInformation(result, root, hits.length == length);
+        Resource page = injectPagingInformation(result, root, hits.length == length, cursor);
         page.addProperty(API.items, result.createList(members));
 
         return returnModel(result, resultURI);
     }
 
+    /**
+     * Write each search hit as a separate chunk, the paging
+     * information follows the last hit.
+     */
+    protected Response streamResults(final SearchHit[] hits, final String resultURI, final boolean more, final String cursor) {
+        StreamingOutput out = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                RDFStreamWriter writer = new RDFStreamWriter(output, streamFormat, Prefixes.get());
+                writer.start();
+                List<RDFNode> members = new ArrayList<RDFNode>(hits.length);
+                Model metadata = ModelFactory.createDefaultModel();
+                List<Resource> entities = entitiesFor(hits, null, metadata);
+                if (!metadata.isEmpty()) {
+                    writer.write(metadata);
+                }
+                for (int i = 0; i < hits.length; i++) {
+                    Resource entity = entities.get(i);
+                    if (entity == null) {
+                        // Too late to change the response status
+                        log.error("No entity found for search result " + hits[i].getURI());
+                        continue;
+                    }
+                    Model chunk = ModelFactory.createDefaultModel();
+                    chunk.add( entity.getModel() );
+                    chunk.createResource(resultURI).addProperty(RDFS.member, entity);
+                    writer.write(chunk);
+                    members.add( ResourceFactory.createResource(entity.getURI()) );
+                }
+                Model paging = ModelFactory.createDefaultModel();
+                Resource page = injectPagingInformation(paging, paging.createResource(resultURI), more, cursor);
+                page.addProperty(API.items, paging.createList(members.iterator()));
+                writer.write(paging);
+                writer.finish();
+            }
+        };
+        return returnStream(out, resultURI);
+    }
+
+    /**
+     * Return the entity for each hit, in order, null if none could be found.
+     * Unless item metadata is requested, entities are taken from the summaries
+     * stored in the index where available. Otherwise the items and entities
+     * are fetched from the store, entities into the target model if given, and
+     * with metadata the items are added to the metadata model.
+     */
+    protected List<Resource> entitiesFor(SearchHit[] hits, Model target, Model metadata) {
+        List<Resource> entities = new ArrayList<Resource>(hits.length);
+        List<String> missing = new ArrayList<String>();
+        for (SearchHit hit : hits) {
+            Resource entity = withMetadata ? null : summaryEntity(hit);
+            if (entity == null) {
+                missing.add( hit.getURI() );
+            }
+            entities.add(entity);
+        }
+        if (missing.isEmpty()) {
+            return entities;
+        }
+        List<RegisterItem> items = store.fetchAll(missing, false);
+        List<Resource> fetched = store.fetchEntities(entityURIs(items), target);
+        for (int i = 0, m = 0; i < entities.size(); i++) {
+            if (entities.get(i) == null) {
+                entities.set(i, entityFor(items.get(m), fetched.get(m)));
+                m++;
+            }
+        }
+        if (withMetadata && !items.isEmpty()) {
+            // fetchAll returns the items in a shared model
+            metadata.add( items.get(0).getRoot().getModel() );
+        }
+        return entities;
+    }
+
+    /**
+     * Return the entity description held in a hit's stored summary, or null if there isn't one
+     */
+    protected Resource summaryEntity(SearchHit hit) {
+        if (!hit.hasSummary()) {
+            return null;
+        }
+        Resource entity = SearchSummary.entityOf(hit.getSummary(), hit.getURI());
+        return entity == null ? null : entity.inModel( Closure.closure(entity, false) );
+    }
+
+    /**
+     * Return the URIs of the entities defined by each item, in order
+     */
+    protected List<String> entityURIs(List<RegisterItem> items) {
+        List<String> entityURIs = new ArrayList<String>(items.size());
+        for (RegisterItem ri : items) {
+            Resource entity = ri.getEntitySpec();
+            if (entity == null) {
+                throw new WebApiException(Status.INTERNAL_SERVER_ERROR, "No entity found for search result " + ri.getRoot());
+            }
+            entityURIs.add( entity.getURI() );
+        }
+        return entityURIs;
+    }
+
+    /**
+     * Return the batch fetched entity for an item, falling back on a direct
+     * fetch for entities not held in the default graph, such as graph entities
+     */
+    protected Resource entityFor(RegisterItem ri, Resource fetched) {
+        return fetched != null ? fetched : store.getEntity(ri);
+    }
+
     protected String[] extractSearchSpec() {
         List<String> searchkeys = new ArrayList<String>();
         List<String> searchvalues = new ArrayList<String>();
@@ -102,6 +102,7 @@ public class CommandStatusUpdate extends Command {
     }
 
     private void doStatusUpdate(RegisterItem ri, String requestedStatus) {
+        ri = ri.forUpdate();
         // TODO handle verification for accepted
         Resource status = parameters.containsKey(Parameters.FORCE) ? ri.forceStatus(requestedStatus): ri.setStatus(requestedStatus);
         if (status == null) {
@@ -70,7 +70,7 @@ public class CommandTag extends Command {
         if (!(d instanceof Register)) {
             return new ValidationResponse(BAD_REQUEST, "Can only tag registers");
         }
-        register = d.asRegister();
+        register = d.asRegister().forUpdate();
         return ValidationResponse.OK;
     }
 
@@ -90,7 +90,7 @@ public class CommandTag extends Command {
                     .addProperty(RegistryVocab.tag, tag);
             Model regContents = ModelFactory.createDefaultModel();
             List<RegisterEntryInfo> members = register.getMembers();
-            register.constructView(regContents, true, Status.Accepted, 0, -1, -1, null);
+            register.constructView(members, regContents, true, Status.Accepted, null, 0, -1, -1, null, null);
             for (RegisterEntryInfo member : members) {
                 Resource item = regContents.getResource(member.getItemURI());
                 Long version = RDFUtil.getLongValue(item, OWL.versionInfo);
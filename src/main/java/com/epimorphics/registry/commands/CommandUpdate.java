@@ -88,6 +88,7 @@ public class CommandUpdate extends Command {
         if (currentItem == null) {
             return new ValidationResponse(Response.Status.NOT_FOUND, "Item to update does not exist");
         }
+        currentItem = currentItem.forUpdate();
 
         // Validate RDF type invariants
         boolean isRegister = currentItem.isRegister();
@@ -24,21 +24,56 @@ package com.epimorphics.registry.commands;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import com.epimorphics.registry.core.Command;
 import com.epimorphics.registry.core.Description;
 import com.epimorphics.registry.core.Status;
 import com.epimorphics.registry.core.ValidationResponse;
 import com.epimorphics.registry.store.EntityInfo;
+import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.registry.webapi.Parameters;
+import com.epimorphics.registry.webapi.RequestProcessor;
 import com.epimorphics.server.webapi.WebApiException;
+import com.epimorphics.util.EpiException;
 
-
+/**
+ * Validate a set of entity URIs against a register subtree.
+ * <p>
+ * URIs are resolved in batches, one store access per batch. In streaming
+ * mode (<code>_stream</code>) the URIs are read incrementally from the request
+ * body and the per-URI results are written back as each batch completes,
+ * either as text or, with <code>_format=nt</code>, as N-Triples.
+ * </p>
+ */
 public class CommandValidate extends Command {
+    public static final int BATCH_SIZE = 2000;
+
+    protected InputStream uriSource;
+    protected int bnodeCount = 0;
+
+    /**
+     * Set a stream from which to read (whitespace separated) URIs to validate,
+     * switches the command to streaming mode.
+     */
+    public void setURISource(InputStream uriSource) {
+        this.uriSource = uriSource;
+    }
 
     @Override
     public ValidationResponse validate() {
@@ -51,35 +86,28 @@ public class CommandValidate extends Command {
 
     @Override
     public Response doExecute() {
-        StringBuffer msg = new StringBuffer();
-        boolean valid = true;
-        List<String> testURIs = parameters.get(Parameters.VALIDATE);
-        int count = 0;
-        for (String uri : testURIs) {
+        if (uriSource != null) {
+            return streamValidate();
+        }
+        StringBuilder msg = new StringBuilder();
+        List<String> testURIs = new ArrayList<String>();
+        for (String uri : parameters.get(Parameters.VALIDATE)) {
             uri = uri.trim();
-            if (uri.isEmpty()) continue;
-            count++;
-            boolean thisValid = false;
-            List<EntityInfo> infos = store.listEntityOccurences(uri);
-            for (EntityInfo info : infos) {
-                if (info.getRegisterURI().startsWith(target) && info.getStatus().isA(Status.Valid)) {
-                    thisValid = true;
-                    msg.append(uri + " is " + info.getItemURI() + "\n");
-                }
+            if (!uri.isEmpty()) {
+                testURIs.add(uri);
             }
-            // TODO validate in delegated registers as well
-            if (!thisValid) {
-                if (infos.isEmpty()) {
-                    msg.append("URI not found anywhere: ");
-                } else {
-                    msg.append("URI known but not marked as valid within this register subtree: ");
-                }
-                msg.append(uri);  msg.append("\n");
-                valid = false;
+        }
+        int invalid = 0;
+        try {
+            for (int i = 0; i < testURIs.size(); i += BATCH_SIZE) {
+                invalid += validateBatch(testURIs.subList(i, Math.min(testURIs.size(), i + BATCH_SIZE)), msg, false);
             }
+        } catch (IOException e) {
+            // Can't happen when writing to a StringBuilder
+            throw new EpiException(e);
         }
-        if (valid) {
-            if (count > 0) {
+        if (invalid == 0) {
+            if (testURIs.size() > 0) {
                 return Response.ok().type(MediaType.TEXT_PLAIN).entity(msg.toString()).build();
             } else {
                 throw new WebApiException(BAD_REQUEST, "Empty validation list");
@@ -89,4 +117,97 @@ public class CommandValidate extends Command {
         }
     }
 
+    /**
+     * Validate the URIs from the source stream, writing results as we go. The
+     * response status has been committed by the time any URI is checked, so failures
+     * are only reported in the body, followed by a summary line.
+     */
+    protected Response streamValidate() {
+        final boolean ntriples = "nt".equals( parameters.getFirst(Parameters.FORMAT) );
+        StreamingOutput stream = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Writer out = new BufferedWriter( new OutputStreamWriter(output, StandardCharsets.UTF_8) );
+                Scanner in = new Scanner( new InputStreamReader(uriSource, StandardCharsets.UTF_8) );
+                try {
+                    List<String> batch = new ArrayList<String>(BATCH_SIZE);
+                    int count = 0;
+                    int invalid = 0;
+                    while (in.hasNext()) {
+                        batch.add( in.next() );
+                        if (batch.size() == BATCH_SIZE) {
+                            invalid += validateBatch(batch, out, ntriples);
+                            count += batch.size();
+                            batch.clear();
+                            out.flush();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        invalid += validateBatch(batch, out, ntriples);
+                        count += batch.size();
+                    }
+                    out.write( String.format("# Checked %d URIs, %d not valid\n", count, invalid) );
+                    out.flush();
+                } finally {
+                    in.close();
+                }
+            }
+        };
+        return Response.ok().type(ntriples ? RequestProcessor.MIME_NTRIPLES : MediaType.TEXT_PLAIN).entity(stream).build();
+    }
+
+    /**
+     * Validate a batch of URIs, appending the per-URI results to out.
+     * @return the number of URIs which were not valid within the register subtree
+     */
+    protected int validateBatch(List<String> uris, Appendable out, boolean ntriples) throws IOException {
+        int invalid = 0;
+        Map<String, List<EntityInfo>> occurrences = store.listEntityOccurences(uris, target);
+        List<String> failed = new ArrayList<String>();
+        for (String uri : uris) {
+            boolean thisValid = false;
+            for (EntityInfo info : occurrences.get(uri)) {
+                if (info.getStatus().isA(Status.Valid)) {
+                    thisValid = true;
+                    if (ntriples) {
+                        writeValid(out, info);
+                    } else {
+                        out.append(uri + " is " + info.getItemURI() + "\n");
+                    }
+                }
+            }
+            // TODO validate in delegated registers as well
+            if (!thisValid) {
+                failed.add(uri);
+            }
+        }
+        if (!failed.isEmpty()) {
+            // Only need the unrestricted occurrences to distinguish the failure messages
+            Map<String, List<EntityInfo>> anywhere = store.listEntityOccurences(failed, null);
+            for (String uri : failed) {
+                if (ntriples) {
+                    out.append("# ");
+                }
+                if (anywhere.get(uri).isEmpty()) {
+                    out.append("URI not found anywhere: ");
+                } else {
+                    out.append("URI known but not marked as valid within this register subtree: ");
+                }
+                out.append(uri);  out.append("\n");
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+
+    // Mirrors the item/definition/entity structure of the registry model
+    private void writeValid(Appendable out, EntityInfo info) throws IOException {
+        String item = "<" + info.getItemURI() + "> ";
+        String def = "_:d" + (bnodeCount++) + " ";
+        out.append(item + "<" + RegistryVocab.definition.getURI() + "> " + def + ".\n");
+        out.append(def + "<" + RegistryVocab.entity.getURI() + "> <" + info.getEntityURI() + "> .\n");
+        out.append(item + "<" + RegistryVocab.status.getURI() + "> <" + info.getStatus().getResource().getURI() + "> .\n");
+        out.append(item + "<" + RegistryVocab.register.getURI() + "> <" + info.getRegisterURI() + "> .\n");
+    }
+
 }
@@ -22,11 +22,15 @@
 package com.epimorphics.registry.core;
 
 import static com.epimorphics.registry.webapi.Parameters.FIRST_PAGE;
+import static com.epimorphics.registry.webapi.Parameters.FORMAT;
+import static com.epimorphics.registry.webapi.Parameters.PAGE_AFTER;
 import static com.epimorphics.registry.webapi.Parameters.PAGE_NUMBER;
+import static com.epimorphics.registry.webapi.Parameters.STREAM;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -35,12 +39,15 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.UnavailableSecurityManagerException;
@@ -65,9 +72,14 @@ import com.epimorphics.registry.security.RegAction;
 import com.epimorphics.registry.security.RegPermission;
 import com.epimorphics.registry.security.UserInfo;
 import com.epimorphics.registry.store.StoreAPI;
+import com.epimorphics.registry.store.StoreTransaction;
 import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.RDFStreamWriter;
+import com.epimorphics.registry.util.ReadOnlyGraph;
+import com.epimorphics.registry.util.SingleFlight;
 import com.epimorphics.registry.vocab.Ldbp;
 import com.epimorphics.registry.vocab.RegistryVocab;
+import com.epimorphics.registry.webapi.SharedRepresentation;
 import com.epimorphics.server.webapi.WebApiException;
 import com.epimorphics.util.EpiException;
 import com.epimorphics.util.NameUtils;
@@ -112,6 +124,13 @@ public abstract class Command {
             return action;
         }
 
+        /**
+         * True if the operation may modify the registry
+         */
+        public boolean isUpdate() {
+            return action != null;
+        }
+
         public Command makeCommandInstance() {
             try {
                 return (Command) implementation.newInstance();
@@ -135,11 +154,14 @@ public abstract class Command {
     protected boolean paged;
     protected int length = -1;
     protected int pagenum = 0;
+    protected String pageAfter;         // Notation key for cursor based paging, null if not cursor paged
+    protected RDFStreamWriter.Format streamFormat;  // Format for a streamed response, null if not streamed
 
     protected Registry registry;
     protected StoreAPI store;
 
     protected ForwardingRecord delegation;
+    protected StoreTransaction transaction;     // Store transaction for the duration of execute
 
     /**
      * Initialize a command instance
@@ -177,6 +199,17 @@ public abstract class Command {
             } catch (NumberFormatException e) {
                 throw new WebApiException(javax.ws.rs.core.Response.Status.BAD_REQUEST, "Illegal page number");
             }
+        } else if (parameters.containsKey(PAGE_AFTER)) {
+            paged = true;
+            length = registry.getPageSize();
+            pageAfter = parameters.getFirst(PAGE_AFTER);
+            if (pageAfter == null) {
+                pageAfter = "";
+            }
+        }
+
+        if (parameters.containsKey(STREAM)) {
+            streamFormat = RDFStreamWriter.Format.forName( parameters.getFirst(FORMAT) );
         }
     }
     static final Pattern LAST_SEGMENT = Pattern.compile("(^.*)/([^/]+)$");
@@ -245,11 +278,81 @@ public abstract class Command {
     }
 
     public Response execute()  {
-        performValidate();
-        if (!isAuthorized()) {
-            throw new WebApiException(Response.Status.UNAUTHORIZED, "Either not logged in or not authorized for this action");
+        SingleFlight<Response> flights = registry.getReadFlights();
+        if (flights == null || !isCoalescable()) {
+            return executeTransaction();
+        }
+        // Concurrent identical reads share one execution and its serializations, each caller gets its own copy of the response
+        Response shared = flights.execute(coalescingKey(), new Callable<Response>() {
+            @Override
+            public Response call() {
+                return shareable( executeTransaction() );
+            }
+        });
+        return Response.fromResponse(shared).build();
+    }
+
+    /**
+     * True if concurrent identical executions of this command can share a single result.
+     * Only unstreamed reads and searches are coalesced.
+     */
+    protected boolean isCoalescable() {
+        return (operation == Operation.Read || operation == Operation.Search) && streamFormat == null && payload == null;
+    }
+
+    /**
+     * Key identifying requests which will give the same result: operation,
+     * target, parameters and the permission class of the requestor
+     */
+    protected String coalescingKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(operation).append(' ').append(target).append('?');
+        for (String p : new TreeSet<String>( parameters.keySet() )) {
+            key.append(p).append('=').append( parameters.get(p) ).append('&');
+        }
+        key.append(' ').append( delegation == null ? "" : delegation.getLocation() );
+        key.append(' ').append( permissionClass() );
+        return key.toString();
+    }
+
+    /**
+     * The requestor's permission class for this command: the permission it requires and whether
+     * the requestor holds it. The rest of a read result does not depend on who asks, so the
+     * principal's identity is not part of the key and authenticated users share results too.
+     */
+    private String permissionClass() {
+        RegPermission required = permissionRequried();
+        if (required == null) {
+            return "public";
+        }
+        try {
+            return required + (SecurityUtils.getSubject().isPermitted(required) ? " granted" : " denied");
+        } catch (UnavailableSecurityManagerException e) {
+            return required + " unchecked";
+        }
+    }
+
+    private static Response shareable(Response response) {
+        if (response.getEntity() instanceof Model) {
+            return Response.fromResponse(response).entity( new SharedRepresentation((Model)response.getEntity()) ).build();
+        }
+        return response;
+    }
+
+    protected Response executeTransaction() {
+        transaction = store.begin( operation.isUpdate() ? StoreTransaction.Mode.WRITE : StoreTransaction.Mode.READ );
+        try {
+            performValidate();
+            if (!isAuthorized()) {
+                throw new WebApiException(Response.Status.UNAUTHORIZED, "Either not logged in or not authorized for this action");
+            }
+            return performExecute();
+        } catch (RuntimeException e) {
+            transaction.setRollbackOnly();
+            throw e;
+        } finally {
+            store.end(transaction);
         }
-        return performExecute();
     }
 
     protected void performValidate() {
@@ -439,25 +542,64 @@ public abstract class Command {
         return params.toString();
     }
 
-    protected Response returnModel(Model m, String location) {
-        m.setNsPrefixes(Prefixes.get());
-        URI uri;
+    protected Response returnModel(final Model m, String location) {
+        if (streamFormat != null) {
+            return returnStream(new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    RDFStreamWriter writer = new RDFStreamWriter(output, streamFormat, Prefixes.get());
+                    writer.start();
+                    writer.write(m);
+                    writer.finish();
+                }
+            }, location);
+        }
+        Model result = ReadOnlyGraph.withOwnPrefixes(m);
+        result.setNsPrefixes(Prefixes.get());
+        return Response.ok().location( asURI(location) ).entity( result ).build();
+    }
+
+    /**
+     * Return a streamed response, the output should be written using an
+     * RDFStreamWriter in the requested streamFormat.
+     */
+    protected Response returnStream(StreamingOutput out, String location) {
+        return Response.ok().type( streamFormat.getMime() ).location( asURI(location) ).entity( out ).build();
+    }
+
+    private URI asURI(String location) {
         try {
-            uri = new URI( location );
+            return new URI( location );
         } catch (URISyntaxException e) {
             throw new WebApplicationException(e);
         }
-        return Response.ok().location(uri).entity( m ).build();
     }
 
     protected Resource injectPagingInformation(Model m, Resource root,  boolean more) {
+        return injectPagingInformation(m, root, more, null);
+    }
+
+    /**
+     * Add paging information to a result model. If a cursor is given then the
+     * next page link will continue from that notation key rather than use page numbers.
+     */
+    protected Resource injectPagingInformation(Model m, Resource root,  boolean more, String nextCursor) {
         String url = target + "?" + makeParamString(parameters);
         Resource page = m.createResource(url)
             .addProperty(RDF.type, Ldbp.Page)
             .addProperty(Ldbp.pageOf, root);
         if (more) {
-            String pageParams = "?" + PAGE_NUMBER + "=" + (pagenum+1);
-            String otherParams = makeParamString(parameters, FIRST_PAGE, PAGE_NUMBER);
+            String pageParams = null;
+            if (nextCursor != null) {
+                try {
+                    pageParams = "?" + PAGE_AFTER + "=" + URLEncoder.encode(nextCursor, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new EpiException(e);  // Can't happen :)
+                }
+            } else {
+                pageParams = "?" + PAGE_NUMBER + "=" + (pagenum+1);
+            }
+            String otherParams = makeParamString(parameters, FIRST_PAGE, PAGE_NUMBER, PAGE_AFTER);
             if (!otherParams.isEmpty()) {
                 pageParams += "&" + otherParams;
             }
@@ -26,10 +26,13 @@ import java.util.Calendar;
 import java.util.List;
 
 import com.epimorphics.registry.store.StoreAPI;
+import com.epimorphics.registry.util.ReadOnlyGraph;
 import com.epimorphics.registry.util.VersionUtil;
+import com.epimorphics.util.EpiException;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.hp.hpl.jena.datatypes.RDFDatatype;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.ResIterator;
@@ -119,6 +122,50 @@ public class Description {
         return root;
     }
 
+    /**
+     * Make the description immutable, so that it can be safely shared (e.g. in a cache).
+     * The root model is replaced by a compact read-only copy and the modifying methods will
+     * then fail. Callers which need to modify a description which might be frozen
+     * should use {@link #forUpdate()}.
+     */
+    public Description freeze() {
+        if (!isFrozen()) {
+            root = root.inModel( ReadOnlyGraph.freeze(root.getModel()) );
+        }
+        return this;
+    }
+
+    /**
+     * Test if the description is immutable
+     */
+    public boolean isFrozen() {
+        return root != null && ReadOnlyGraph.isReadOnly( root.getModel() );
+    }
+
+    /**
+     * Return a description that can be modified. That is this description
+     * unless it is frozen, in which case it is a modifiable copy.
+     */
+    public Description forUpdate() {
+        return isFrozen() ? new Description( copyOf(root) ) : this;
+    }
+
+    /**
+     * Copy a resource and its model into a fresh, modifiable, memory model
+     */
+    protected static Resource copyOf(Resource r) {
+        Model m = ModelFactory.createDefaultModel();
+        m.setNsPrefixes( r.getModel() );
+        m.add( r.getModel() );
+        return r.inModel(m);
+    }
+
+    protected void checkModifiable() {
+        if (isFrozen()) {
+            throw new EpiException("Attempt to modify a frozen description: " + root);
+        }
+    }
+
     /**
      * Return the description as a Register
      */
@@ -153,6 +200,7 @@ public class Description {
      * Replace the current value(s), if any, of the given property by the supplied value
      */
     public Description setProperty(Property p, RDFNode value) {
+        checkModifiable();
         remove(p);
         root.addProperty(p, value);
         return this;
@@ -162,6 +210,7 @@ public class Description {
      * Remove all current values of the given property
      */
     public Description remove(Property p) {
+        checkModifiable();
         for (StmtIterator si = root.listProperties(p); si.hasNext();) {
             removals.add(si.next());
             si.remove();
@@ -173,6 +222,7 @@ public class Description {
      * Add a new value of the given property
      */
     public Description addProperty(Property p, RDFNode value) {
+        checkModifiable();
         Model m = root.getModel();
         Statement s = m.createStatement(root, p, value);
         m.add(s);
@@ -22,7 +22,9 @@
 package com.epimorphics.registry.core;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import com.epimorphics.registry.store.RegisterEntryInfo;
 import com.epimorphics.registry.store.StoreAPI;
@@ -61,7 +63,43 @@ public class Register extends Description {
         this.store = store;
     }
 
+    /**
+     * Make the register immutable. A frozen register does not hold its membership,
+     * which is fetched from the store on each call so that it is cached (if at all)
+     * separately from the register description and a large register stays cheap to share.
+     * The store hands back a shared immutable list, but callers which use the membership
+     * several times should still call {@link #getMembers()} once and pass the list on.
+     */
+    @Override
+    public Register freeze() {
+        if (!isFrozen()) {
+            members = null;
+            super.freeze();
+        }
+        return this;
+    }
+
+    @Override
+    public Register forUpdate() {
+        if (!isFrozen()) {
+            return this;
+        }
+        Register copy = new Register( copyOf(root) );
+        copy.setStore(store);
+        return copy;
+    }
+
+    /**
+     * Test if the membership list has already been fetched from the store
+     */
+    public boolean hasMembers() {
+        return members != null;
+    }
+
     public List<RegisterEntryInfo> getMembers() {
+        if (isFrozen()) {
+            return store.listMembers(this);
+        }
         if (members == null) {
             members = store.listMembers(this);
         }
@@ -83,34 +121,68 @@ public class Register extends Description {
      * @return whether the view is complete
      */
     public boolean constructView(Model model, boolean withMetadata, Status status, int offset, int length, long timestamp, List<Resource> results) {
-        getMembers();
+        return constructView(model, withMetadata, status, null, offset, length, timestamp, results, null);
+    }
+
+    /**
+     * Fetch all the members of the register and construct an RDF view
+     * according the given flags, optionally starting from a notation key rather than
+     * from the start of the register (keyset paging).
+     *
+     * @param after if not null then only members whose notation sorts after this key are considered, the offset is relative to that point
+     * @param window if not null then the entry information for each member in the returned window is added to this list
+     * @see #constructView(Model, boolean, Status, int, int, long, List)
+     */
+    public boolean constructView(Model model, boolean withMetadata, Status status, String after, int offset, int length, long timestamp,
+            List<Resource> results, List<RegisterEntryInfo> window) {
+        return constructView(getMembers(), model, withMetadata, status, after, offset, length, timestamp, results, window);
+    }
+
+    /**
+     * Construct an RDF view from a membership list already fetched by {@link #getMembers()}.
+     * Callers building several views of the same register, such as the chunks of a
+     * streamed listing, should fetch the membership once and pass it to each call.
+     *
+     * @param members the notation-ordered members of this register
+     * @see #constructView(Model, boolean, Status, String, int, int, long, List, List)
+     */
+    public boolean constructView(List<RegisterEntryInfo> members, Model model, boolean withMetadata, Status status, String after, int offset, int length, long timestamp,
+            List<Resource> results, List<RegisterEntryInfo> window) {
         List<String> itemURIs = new ArrayList<String>( length == -1 ? 50 : length );
         List<String> entityURIs = new ArrayList<String>( length == -1 ? 50 : length );
+        List<RegisterEntryInfo> candidates = (after == null) ? members : members.subList( indexAfter(members, after), members.size() );
 
         int count = 0;
         boolean incomplete = false;
         int limit = length == -1 ? Integer.MAX_VALUE : offset + length;
-        for (RegisterEntryInfo info : members) {
-            boolean valid = (timestamp == -1) ? info.getStatus().isA(status) : true;
-            if (valid) {
-                if (timestamp != -1) {
-                    Description d = store.getVersionAt(info.getItemURI(), timestamp);
-                    if (d != null) {
-                        RegisterItem ri = d.asRegisterItem();
-                        if (ri.getStatus().isA(status)) {
-                            model.add( store.getEntity(ri).getModel() );
-                        } else {
-                            valid = false;
-                        }
-                    } else {
-                        valid = false;
-                    }
+        List<RegisterItem> historical = null;
+        List<RegisterItem> historicalWindow = new ArrayList<RegisterItem>();
+        int historicalStart = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            RegisterEntryInfo info = candidates.get(i);
+            RegisterItem ri = null;
+            boolean valid;
+            if (timestamp == -1) {
+                valid = info.getStatus().isA(status);
+            } else {
+                if (historical == null || i - historicalStart >= historical.size()) {
+                    // Resolve the next block of members at the required time in one store call
+                    historicalStart = i;
+                    historical = store.fetchAllAt(itemURIsOf(candidates, i, HISTORY_BATCH), timestamp, false);
                 }
+                ri = historical.get(i - historicalStart);
+                valid = ri != null && ri.getStatus().isA(status);
             }
             if (valid) {
                 if (count >= offset && count < limit) {
                     itemURIs.add( info.getItemURI() );
                     entityURIs.add( info.getEntityURI() );
+                    if (window != null) {
+                        window.add( info );
+                    }
+                    if (ri != null) {
+                        historicalWindow.add( ri );
+                    }
                 }
                 count++;
                 if (count == limit) {
@@ -121,14 +193,14 @@ public class Register extends Description {
         }
 
         if (timestamp != -1) {
-            // already fetched while checking for valid entries
+            for (RegisterItem ri : historicalWindow) {
+                model.add( store.getEntity(ri).getModel() );
+            }
         } else if (withMetadata && !itemURIs.isEmpty()) {
             List<RegisterItem> items = store.fetchAll(itemURIs, true);
             model.add( items.get(0).getRoot().getModel() );
-        } else {
-            for (String uri : entityURIs) {
-                model.add( store.getCurrentVersion(uri).getRoot().getModel() );
-            }
+        } else if (!entityURIs.isEmpty()) {
+            store.fetchEntities(entityURIs, model);
         }
 
         model.add( root.getModel() );
@@ -147,6 +219,55 @@ public class Register extends Description {
         return !incomplete;
     }
     
+    private static final int HISTORY_BATCH = 100;
+
+    private static List<String> itemURIsOf(List<RegisterEntryInfo> infos, int start, int max) {
+        int end = Math.min(infos.size(), start + max);
+        List<String> uris = new ArrayList<String>(end - start);
+        for (int i = start; i < end; i++) {
+            uris.add( infos.get(i).getItemURI() );
+        }
+        return uris;
+    }
+
+    /**
+     * Return the index of the first member whose notation sorts after the given key.
+     * Relies on the member list being in notation order.
+     */
+    protected static int indexAfter(List<RegisterEntryInfo> members, String notation) {
+        int lo = 0;
+        int hi = members.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (members.get(mid).getNotation().compareTo(notation) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Return a count of the current members of the register for each status value present.
+     */
+    public Map<Status, Integer> countMembers() {
+        return countMembers( getMembers() );
+    }
+
+    /**
+     * Return a count of the given members for each status value present,
+     * for callers which already hold the membership list.
+     */
+    public static Map<Status, Integer> countMembers(List<RegisterEntryInfo> members) {
+        Map<Status, Integer> counts = new EnumMap<Status, Integer>(Status.class);
+        for (RegisterEntryInfo info : members) {
+            Integer count = counts.get( info.getStatus() );
+            counts.put(info.getStatus(), count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
     public List<Resource> getAllEntities() {
         Model model = ModelFactory.createDefaultModel();
         List<Resource> entities = new ArrayList<>();
@@ -30,6 +30,7 @@ import javax.ws.rs.core.Response;
 
 import com.epimorphics.rdfutil.RDFUtil;
 import com.epimorphics.registry.store.StoreAPI;
+import com.epimorphics.registry.util.ReadOnlyGraph;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.server.webapi.WebApiException;
 import com.epimorphics.vocabs.SKOS;
@@ -108,13 +109,43 @@ public class RegisterItem extends Description {
      * Does NOT create reg:definition/reg:entity links.
      */
     public void setEntity(Resource entity) {
+        checkModifiable();
         this.entity = entity;
     }
 
+    /**
+     * Make the item, and its entity if present, immutable
+     */
+    @Override
+    public RegisterItem freeze() {
+        if (!isFrozen()) {
+            Model itemModel = root.getModel();
+            super.freeze();
+            if (entity != null) {
+                entity = entity.getModel() == itemModel ? entity.inModel(root.getModel()) : entity.inModel( ReadOnlyGraph.freeze(entity.getModel()) );
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public RegisterItem forUpdate() {
+        if (!isFrozen()) {
+            return this;
+        }
+        RegisterItem copy = new RegisterItem( copyOf(root), parentURI, notation );
+        if (entity != null) {
+            copy.entity = ReadOnlyGraph.isReadOnly(entity.getModel()) ? copyOf(entity) : entity;
+        }
+        copy.entityAsGraph = entityAsGraph;
+        return copy;
+    }
+
     /**
      * Flag that the entity should stored as a whole graph, not as a simple closure
      */
     public void setAsGraph(boolean asGraph) {
+        checkModifiable();
         this.entityAsGraph = asGraph;
     }
 
@@ -48,7 +48,11 @@ import com.epimorphics.registry.security.UserStore;
 import com.epimorphics.registry.store.CachingStore;
 import com.epimorphics.registry.store.StoreAPI;
 import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.ReadOnlyGraph;
+import com.epimorphics.registry.util.SingleFlight;
+import com.epimorphics.registry.util.WeightedCache;
 import com.epimorphics.registry.vocab.RegistryVocab;
+import com.epimorphics.registry.webapi.SharedRepresentation;
 import com.epimorphics.server.core.Service;
 import com.epimorphics.server.core.ServiceBase;
 import com.epimorphics.server.core.ServiceConfig;
@@ -70,7 +74,9 @@ import com.sun.jersey.api.uri.UriComponent;
  *   <li>baseURI - the effective base URI for the registry</li>
  *   <li>bootSpec - location of a bootstrap file defining the root register, and system registers</li>
  *   <li>store - named of a configuration service that provides the StoreAPI implementation in which the registry information is stored</li>
- *   <li>cacheSize - size of register cache to use, if not set then no caching is done, typical value 100</li>
+ *   <li>cacheBudget - memory budget for the store cache in bytes, with optional k/m/g suffix, if neither this nor cacheSize is set then no caching is done, typical value 32m</li>
+ *   <li>cacheSize - legacy size of the store cache as a number of entries, converted to a memory budget, ignored if cacheBudget is set</li>
+ *   <li>cacheTTL - time to live for cached values in milliseconds, default is no expiry</li>
  *   <li>pageSize - size to use for LDP pages, default 50 </li>
  * <ul>
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
@@ -88,22 +94,36 @@ public class Registry extends ServiceBase implements Service {
     public static final String USERSTORE_PARAM = "userStore";
     public static final String STORE_PARAM = "store";
     public static final String CACHE_SIZE_PARAM = "cacheSize";
+    public static final String CACHE_BUDGET_PARAM = "cacheBudget";
+    public static final String CACHE_TTL_PARAM = "cacheTTL";
     public static final String PAGE_SIZE_PARAM = "pageSize";
     public static final String MESSAGE_SERVICE_PARAM = "messageService";
     public static final String FACET_SERVICE_PARAM = "facetService";
+    public static final String STREAM_LIMIT_PARAM = "streamLimit";
+    public static final String COALESCE_READS_PARAM = "coalesceReads";
 
     public static final boolean TEXT_INDEX_INCLUDES_HISTORY = true;
 
     public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_STREAM_LIMIT = 200000;
+
+    /** Smallest store cache budget accepted, in bytes */
+    public static final long MIN_CACHE_BUDGET = 64 * 1024;
+
+    /** Estimated memory per entry used to convert a legacy cacheSize entry count to a budget */
+    public static final long CACHE_ENTRY_ESTIMATE = 64 * 1024;
 
     protected StoreAPI store;
     protected String baseURI;
     protected int pageSize;
+    protected int streamLimit;
+    protected long cacheBudget;
     protected ForwardingService forwarder;
     protected String logDir;
     protected UserStore userStore;
     protected MessagingService messageService;
     protected FacetService facetService;
+    protected SingleFlight<Response> readFlights;
 
 
     @Override
@@ -118,6 +138,49 @@ public class Registry extends ServiceBase implements Service {
         } else {
             pageSize = DEFAULT_PAGE_SIZE;
         }
+        cacheBudget = cacheBudgetFor(config);
+        if (config.containsKey(STREAM_LIMIT_PARAM)) {
+            streamLimit = Integer.parseInt(config.get(STREAM_LIMIT_PARAM));
+        } else {
+            streamLimit = DEFAULT_STREAM_LIMIT;
+        }
+        if ( "true".equalsIgnoreCase(config.get(COALESCE_READS_PARAM)) ) {
+            readFlights = new SingleFlight<Response>();
+        }
+    }
+
+    /**
+     * Return the store cache budget in bytes given by the configuration, or -1 for no cache.
+     * A legacy cacheSize entry count is converted at {@link #CACHE_ENTRY_ESTIMATE} bytes per entry.
+     */
+    protected static long cacheBudgetFor(Map<String, String> config) {
+        String budget = config.get(CACHE_BUDGET_PARAM);
+        String size = config.get(CACHE_SIZE_PARAM);
+        if (budget != null) {
+            if (size != null) {
+                log.warn("Both cacheBudget and cacheSize are set, ignoring cacheSize");
+            }
+            long bytes = WeightedCache.parseBudget(budget);
+            if (bytes < MIN_CACHE_BUDGET) {
+                throw new EpiException("cacheBudget of " + budget + " is too small, it is a memory size in bytes with optional k/m/g suffix (e.g. 32m)");
+            }
+            return bytes;
+        }
+        if (size != null) {
+            int entries;
+            try {
+                entries = Integer.parseInt(size.trim());
+            } catch (NumberFormatException e) {
+                throw new EpiException("cacheSize must be an entry count, use cacheBudget for a memory size such as " + size);
+            }
+            if (entries <= 0) {
+                return -1;
+            }
+            long bytes = entries * CACHE_ENTRY_ESTIMATE;
+            log.info("Store cache of " + entries + " entries configured by cacheSize, using a cacheBudget of " + bytes + " bytes");
+            return bytes;
+        }
+        return -1;
     }
 
     @Override
@@ -125,10 +188,9 @@ public class Registry extends ServiceBase implements Service {
         // Locate the configured store and optionally wrap it in a cache
         try {
             store = getNamedService(getRequiredParam(STORE_PARAM), StoreAPI.class);
-            String cacheSizeStr = config.get(CACHE_SIZE_PARAM);
-            if (cacheSizeStr != null) {
-                int cacheSize = Integer.parseInt(cacheSizeStr);
-                store = new CachingStore(store, cacheSize);
+            if (cacheBudget > 0) {
+                String ttl = config.get(CACHE_TTL_PARAM);
+                store = new CachingStore(store, cacheBudget, ttl == null ? 0 : Long.parseLong(ttl));
             }
         } catch (Exception e) {
             log.error("Misconfigured StoreAPI implementation", e);
@@ -144,6 +206,9 @@ public class Registry extends ServiceBase implements Service {
         if (messageService == null) {
             messageService = new LocalMessagingService();
         }
+        if (store instanceof CachingStore) {
+            ((CachingStore)store).listenTo(messageService);
+        }
 
         // Initialize the registry RDF store from the bootstrap registers if needed
         Description root = store.getDescription(getBaseURI() + "/");
@@ -284,6 +349,13 @@ public class Registry extends ServiceBase implements Service {
         return pageSize;
     }
 
+    /**
+     * The maximum number of triples which a streamed payload ingest may hold in memory at once
+     */
+    public int getStreamLimit() {
+        return streamLimit;
+    }
+
     public ForwardingService getForwarder() {
         return forwarder;
     }
@@ -304,6 +376,13 @@ public class Registry extends ServiceBase implements Service {
         return facetService;
     }
 
+    /**
+     * Return the coalescer shared by concurrent identical reads, or null if reads are not coalesced
+     */
+    public SingleFlight<Response> getReadFlights() {
+        return readFlights;
+    }
+
     /**
      * Factory for command instances, used for handling API requests from the request processor
      */
@@ -363,8 +442,12 @@ public class Registry extends ServiceBase implements Service {
 
         try {
             Response response = command.execute();
-            if (response.getStatus() == 200 && response.getEntity() instanceof Model) {
-                Model m = (Model)response.getEntity();
+            Object entity = response.getEntity();
+            if (entity instanceof SharedRepresentation) {
+                entity = ReadOnlyGraph.withOwnPrefixes( ((SharedRepresentation)entity).getModel() );
+            }
+            if (response.getStatus() == 200 && entity instanceof Model) {
+                Model m = (Model)entity;
                 m.setNsPrefixes(Prefixes.get());
                 return Response.ok( new ModelWrapper( m ) ).build();
             } else {
@@ -21,33 +21,309 @@
 
 package com.epimorphics.registry.store;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.epimorphics.rdfutil.RDFUtil;
 import com.epimorphics.registry.core.Description;
 import com.epimorphics.registry.core.ForwardingRecord;
 import com.epimorphics.registry.core.Register;
 import com.epimorphics.registry.core.RegisterItem;
+import com.epimorphics.registry.message.Message;
+import com.epimorphics.registry.message.MessagingService;
+import com.epimorphics.registry.util.CompactGraph;
 import com.epimorphics.registry.util.DescriptionCache;
-import com.epimorphics.server.indexers.LuceneResult;
+import com.epimorphics.registry.util.ReadOnlyGraph;
+import com.epimorphics.registry.util.WeightedCache;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.OWL;
 
 /**
- * Store wrapper that caches registers.
- * Could have a variant that caches individual descriptions though that seems less useful.
+ * Store wrapper that acts as a read-through cache for the common read calls:
+ * current descriptions (including registers with their membership), items,
+ * entities, member lists, version lists and graphs.
+ * <p>
+ * Entries are keyed by URI plus a version stamp for that URI, and entities
+ * additionally by the version number of the item they were fetched for.
+ * Stamps are held in a fixed array of stripes indexed by URI hash, so they
+ * take constant space; URIs sharing a stripe just invalidate each other.
+ * A write bumps the stamps of the URIs it affects, so that any entry for the
+ * earlier state (including one from a load which was in progress during the
+ * write) is never looked up again and simply ages out of the cache. Stamps
+ * are bumped again once the write's transaction ends, so a reader which saw
+ * the state from before the commit can't leave a stale entry under the new
+ * stamp. Notifications from the messaging service invalidate in the same way,
+ * which covers changes made through other registry instances.
+ * </p><p>
+ * Cached descriptions, entities and graphs are frozen (read-only) and are
+ * shared by all callers without copying. A caller which needs to modify a
+ * description must use {@link Description#forUpdate()}. Cached lists are
+ * unmodifiable.
+ * </p>
  *
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public class CachingStore implements StoreAPI {
+public class CachingStore implements StoreAPI, MessagingService.Process {
 
     protected StoreAPI store;
     protected DescriptionCache cache;
+    protected WeightedCache<RegisterItem> items;
+    protected WeightedCache<Resource> entities;
+    protected WeightedCache<List<RegisterEntryInfo>> members;
+    protected WeightedCache<List<VersionInfo>> versions;
+    protected WeightedCache<Model> graphs;
+
+    public static final int STAMP_STRIPES = 1 << 14;
+
+    protected AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+    protected AtomicLong clock = new AtomicLong();
+    protected ThreadLocal<Pending> pending = new ThreadLocal<Pending>();
+
+    // URIs changed by the current thread, to be invalidated again once the changes are committed.
+    // Depth counts nested transactions, zero for a single write call made outside any transaction.
+    static class Pending {
+        int depth;
+        Set<String> uris = new HashSet<String>();
+
+        Pending(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    static final WeightedCache.Weigher<RegisterItem> ITEM_WEIGHER = new WeightedCache.Weigher<RegisterItem>() {
+        @Override
+        public long weigh(RegisterItem item) {
+            long w = DescriptionCache.weigh( item.getRoot().getModel() );
+            Resource entity = item.getEntity();
+            if (entity != null && entity.getModel() != item.getRoot().getModel()) {
+                w += DescriptionCache.weigh( entity.getModel() );
+            }
+            return w;
+        }
+    };
+
+    static final WeightedCache.Weigher<Resource> ENTITY_WEIGHER = new WeightedCache.Weigher<Resource>() {
+        @Override
+        public long weigh(Resource entity) {
+            return DescriptionCache.weigh( entity.getModel() );
+        }
+    };
 
-    public CachingStore(StoreAPI store, int cachesize) {
+    static final WeightedCache.Weigher<Model> MODEL_WEIGHER = new WeightedCache.Weigher<Model>() {
+        @Override
+        public long weigh(Model model) {
+            return DescriptionCache.weigh(model);
+        }
+    };
+
+    static final WeightedCache.Weigher<List<RegisterEntryInfo>> MEMBERS_WEIGHER = new WeightedCache.Weigher<List<RegisterEntryInfo>>() {
+        @Override
+        public long weigh(List<RegisterEntryInfo> list) {
+            return list.size() * DescriptionCache.MEMBER_WEIGHT;
+        }
+    };
+
+    static final WeightedCache.Weigher<List<VersionInfo>> VERSIONS_WEIGHER = new WeightedCache.Weigher<List<VersionInfo>>() {
+        @Override
+        public long weigh(List<VersionInfo> list) {
+            return list.size() * DescriptionCache.TRIPLE_WEIGHT;
+        }
+    };
+
+    /**
+     * Wrap a store with a cache.
+     * @param store the underlying store
+     * @param budget the total memory budget for the caches, in bytes, split between the individual caches
+     * @param ttl time to live for cached values in milliseconds, zero or less for no expiry
+     */
+    public CachingStore(StoreAPI store, long budget, long ttl) {
         this.store = store;
-        cache = new DescriptionCache(cachesize);
+        cache = new DescriptionCache(budget / 4, ttl);
+        items = new WeightedCache<RegisterItem>("items", budget / 4, ttl, ITEM_WEIGHER);
+        entities = new WeightedCache<Resource>("entities", budget / 4, ttl, ENTITY_WEIGHER);
+        graphs = new WeightedCache<Model>("graphs", budget / 8, ttl, MODEL_WEIGHER);
+        members = new WeightedCache<List<RegisterEntryInfo>>("members", budget / 16, ttl, MEMBERS_WEIGHER);
+        versions = new WeightedCache<List<VersionInfo>>("versions", budget / 16, ttl, VERSIONS_WEIGHER);
+        // Bounds the dictionary entries no longer charged to any cached graph
+        CompactGraph.setDictionaryLimit(budget / 8);
+    }
+
+    public CachingStore(StoreAPI store, long budget) {
+        this(store, budget, 0);
+    }
+
+    public DescriptionCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Return the statistics for each of the caches
+     */
+    public List<WeightedCache.Stats> getStats() {
+        List<WeightedCache.Stats> stats = new ArrayList<WeightedCache.Stats>();
+        stats.add( cache.getStats() );
+        stats.add( items.getStats() );
+        stats.add( entities.getStats() );
+        stats.add( graphs.getStats() );
+        stats.add( members.getStats() );
+        stats.add( versions.getStats() );
+        return stats;
+    }
+
+    /**
+     * Subscribe to change notifications so that changes made elsewhere are invalidated
+     */
+    public void listenTo(MessagingService messagingService) {
+        messagingService.processMessages(this);
+    }
+
+    @Override
+    public void processMessage(Message message) {
+        String target = message.getTarget();
+        if (target == null) return;
+        if (target.endsWith("/")) {
+            target = target.substring(0, target.length() - 1);
+        }
+        int split = target.lastIndexOf('/');
+        if (split == -1) {
+            bump(target);
+            return;
+        }
+        String parent = target.substring(0, split);
+        String local = target.substring(split + 1);
+        if (local.startsWith("_")) {
+            invalidateItem(target, parent + "/" + local.substring(1), parent);
+        } else {
+            invalidateItem(parent + "/_" + local, target, parent);
+        }
+    }
+
+    // Version stamps and invalidation
+
+    protected static int stripe(String uri) {
+        int h = uri.hashCode();
+        return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    protected long stamp(String uri) {
+        return stamps.get( stripe(uri) );
+    }
+
+    protected String key(String uri) {
+        return uri + "@" + stamp(uri);
+    }
+
+    protected void bump(String uri) {
+        bumpStripe( stripe(uri), clock.incrementAndGet() );
+    }
+
+    // Stamps only move forward, even if concurrent bumps of a stripe finish out of order
+    private void bumpStripe(int i, long stamp) {
+        long prior = stamps.get(i);
+        while (prior < stamp && !stamps.compareAndSet(i, prior, stamp)) {
+            prior = stamps.get(i);
+        }
+    }
+
+    /**
+     * Invalidate cached state for the given URIs now and again when the
+     * enclosing transaction, if any, ends
+     */
+    protected void invalidate(String... uris) {
+        Pending p = pending.get();
+        if (p == null) {
+            p = new Pending(0);
+            pending.set(p);
+        }
+        for (String uri : uris) {
+            if (uri == null) continue;
+            bump(uri);
+            p.uris.add(uri);
+        }
+    }
+
+    protected void invalidateItem(String itemURI, String entityURI, String registerURI) {
+        invalidate(itemURI, entityURI, registerURI);
+        // A sub-register is also visible as an entity through its parent's item
+        invalidate( registerItemFor(entityURI) );
+    }
+
+    protected void invalidateItem(RegisterItem item) {
+        Resource entity = item.getEntity();
+        if (entity == null) {
+            entity = item.getEntitySpec();
+        }
+        invalidateItem(item.getRoot().getURI(), entity == null ? null : entity.getURI(), item.getRegisterURI());
+    }
+
+    protected void invalidateRegister(Register register) {
+        String uri = register.getRoot().getURI();
+        invalidate(uri, registerItemFor(uri));
+    }
+
+    /**
+     * Invalidate the changed URIs again, called after each write and at
+     * the end of a transaction, by which point the changes are committed
+     */
+    private void revalidatePending() {
+        Pending p = pending.get();
+        if (p != null) {
+            for (String uri : p.uris) {
+                bump(uri);
+            }
+            if (p.depth == 0) {
+                pending.remove();
+            }
+        }
+    }
+
+    private static String registerItemFor(String uri) {
+        if (uri == null) return null;
+        int split = uri.lastIndexOf('/');
+        if (split == -1 || split == uri.length() - 1) return null;
+        return uri.substring(0, split) + "/_" + uri.substring(split + 1);
+    }
+
+    // StoreAPI
+
+    @Override
+    public StoreTransaction begin(StoreTransaction.Mode mode) {
+        StoreTransaction tx = store.begin(mode);
+        Pending p = pending.get();
+        if (p == null) {
+            pending.set( new Pending(1) );
+        } else {
+            p.depth++;
+        }
+        return tx;
+    }
+
+    @Override
+    public void end(StoreTransaction transaction) {
+        try {
+            store.end(transaction);
+        } finally {
+            Pending p = pending.get();
+            if (p != null) {
+                p.depth--;
+                revalidatePending();
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsRollback() {
+        return store.supportsRollback();
     }
 
     @Override
@@ -57,7 +333,11 @@ public class CachingStore implements StoreAPI {
 
     @Override
     public void unlock(String uri) {
-        store.unlock(uri);
+        try {
+            store.unlock(uri);
+        } finally {
+            revalidatePending();
+        }
     }
 
     @Override
@@ -66,13 +346,20 @@ public class CachingStore implements StoreAPI {
     }
 
     @Override
-    public Description getCurrentVersion(String uri) {
-        Description d = cache.get(uri);
-        if (d == null) {
-            d = store.getCurrentVersion(uri);
-            if (d instanceof Register) {
-                cache.cache(d);
+    public Description getCurrentVersion(final String uri) {
+        return cache.get(key(uri), new WeightedCache.Loader<Description>() {
+            @Override
+            public Description load(String key) {
+                Description d = store.getCurrentVersion(uri);
+                return d == null ? null : adopt(d).freeze();
             }
+        });
+    }
+
+    // A cached register holds no membership, it fetches it through this store so the member list is cached once, separately
+    protected Description adopt(Description d) {
+        if (d instanceof Register) {
+            ((Register)d).setStore(this);
         }
         return d;
     }
@@ -88,13 +375,24 @@ public class CachingStore implements StoreAPI {
     }
 
     @Override
-    public List<VersionInfo> listVersions(String uri) {
-        return store.listVersions(uri);
+    public List<VersionInfo> listVersions(final String uri) {
+        return versions.get(key(uri), new WeightedCache.Loader<List<VersionInfo>>() {
+            @Override
+            public List<VersionInfo> load(String key) {
+                return Collections.unmodifiableList( store.listVersions(uri) );
+            }
+        });
     }
 
     @Override
-    public RegisterItem getItem(String uri, boolean withEntity) {
-        return store.getItem(uri, withEntity);
+    public RegisterItem getItem(final String uri, final boolean withEntity) {
+        return items.get(key(uri) + (withEntity ? "+entity" : ""), new WeightedCache.Loader<RegisterItem>() {
+            @Override
+            public RegisterItem load(String key) {
+                RegisterItem item = store.getItem(uri, withEntity);
+                return item == null ? null : item.freeze();
+            }
+        });
     }
 
 //    @Override
@@ -103,53 +401,95 @@ public class CachingStore implements StoreAPI {
 //    }
 
     @Override
-    public Resource getEntity(RegisterItem item) {
-        return store.getEntity(item);
+    public Resource getEntity(final RegisterItem item) {
+        Resource root = item.getRoot();
+        if (!root.hasProperty(OWL.versionInfo)) {
+            return store.getEntity(item);
+        }
+        String key = key(root.getURI()) + "/" + RDFUtil.getIntValue(root, OWL.versionInfo, 0);
+        Resource entity = entities.get(key, new WeightedCache.Loader<Resource>() {
+            @Override
+            public Resource load(String key) {
+                // Fetch via a private wrapper so the caller's item never sees the unfrozen entity
+                Resource entity = store.getEntity( new RegisterItem(item.getRoot()) );
+                return entity == null ? null : entity.inModel( ReadOnlyGraph.freeze(entity.getModel()) );
+            }
+        });
+        if (entity != null && !item.isFrozen()) {
+            item.setEntity(entity);
+        }
+        return entity;
     }
 
     @Override
-    public List<RegisterEntryInfo> listMembers(Register register) {
-        return store.listMembers(register);
+    public List<RegisterEntryInfo> listMembers(final Register register) {
+        return members.get(key(register.getRoot().getURI()), new WeightedCache.Loader<List<RegisterEntryInfo>>() {
+            @Override
+            public List<RegisterEntryInfo> load(String key) {
+                return Collections.unmodifiableList( store.listMembers(register) );
+            }
+        });
     }
 
     @Override
     public void addToRegister(Register register, RegisterItem item) {
-        cache.flush(register.getRoot().getURI());
-        store.addToRegister(register, item);
+        addToRegister(register, item, Calendar.getInstance());
     }
 
     @Override
     public void addToRegister(Register register, RegisterItem item,
             Calendar timestamp) {
-        cache.flush(register.getRoot().getURI());
-        store.addToRegister(register, item, timestamp);
+        invalidateRegister(register);
+        invalidateItem(item);
+        try {
+            store.addToRegister(register, item, timestamp);
+        } finally {
+            revalidatePending();
+        }
+    }
+
+    @Override
+    public void addAllToRegister(Register register, List<RegisterItem> items, Calendar timestamp) {
+        invalidateRegister(register);
+        for (RegisterItem item : items) {
+            invalidateItem(item);
+        }
+        try {
+            store.addAllToRegister(register, items, timestamp);
+        } finally {
+            revalidatePending();
+        }
     }
 
     @Override
     public String update(Register register) {
-        cache.flush(register.getRoot().getURI());
-        return store.update(register);
+        return update(register, Calendar.getInstance());
     }
 
     @Override
     public String update(Register register, Calendar timestamp) {
-        cache.flush(register.getRoot().getURI());
-        return store.update(register, timestamp);
+        invalidateRegister(register);
+        try {
+            return store.update(register, timestamp);
+        } finally {
+            revalidatePending();
+        }
     }
 
     @Override
     public String update(RegisterItem item, boolean withEntity) {
-        cache.flush(item.getRegisterURI());
-        if (withEntity && item.isRegister()) {
-            cache.flush(item.getEntity().getURI());
-        }
-        return store.update(item, withEntity);
+        return update(item, withEntity, Calendar.getInstance());
     }
 
     @Override
     public String update(RegisterItem item, boolean withEntity,
             Calendar timestamp) {
-        return update(item, withEntity, timestamp);
+        invalidateItem(item);
+        try {
+            return store.update(item, withEntity, timestamp);
+        } finally {
+            revalidatePending();
+        }
     }
 
     @Override
@@ -160,12 +500,91 @@ public class CachingStore implements StoreAPI {
     @Override
     public void loadBootstrap(String filename) {
         store.loadBootstrap(filename);
+        CompactGraph.resetDictionary();
+        long reset = clock.incrementAndGet();
+        for (int i = 0; i < STAMP_STRIPES; i++) {
+            bumpStripe(i, reset);
+        }
+        cache.clear();
+        items.clear();
+        entities.clear();
+        graphs.clear();
+        members.clear();
+        versions.clear();
     }
 
     @Override
     public List<RegisterItem> fetchAll(List<String> itemURIs,
             boolean withEntity) {
-        return store.fetchAll(itemURIs, withEntity);
+        // Items are cached individually, the results are merged into a shared model as the base store does
+        Model shared = ModelFactory.createDefaultModel();
+        List<RegisterItem> results = new ArrayList<RegisterItem>(itemURIs.size());
+        for (String uri : itemURIs) {
+            RegisterItem item = getItem(uri, withEntity);
+            if (item == null) {
+                // Not a well formed item, fall back on the base store for this one
+                item = store.fetchAll(Collections.singletonList(uri), withEntity).get(0);
+            }
+            shared.add( item.getRoot().getModel() );
+            RegisterItem result = new RegisterItem( item.getRoot().inModel(shared) );
+            Resource entity = item.getEntity();
+            if (entity != null) {
+                shared.add( entity.getModel() );
+                result.setEntity( entity.inModel(shared) );
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    @Override
+    public List<Resource> fetchEntities(List<String> uris, Model target) {
+        // Hits are taken from the description cache, the misses are fetched from the base store in one batch
+        List<Description> found = new ArrayList<Description>(uris.size());
+        List<String> missing = new ArrayList<String>();
+        List<String> missingKeys = new ArrayList<String>();
+        for (String uri : uris) {
+            // Keys are taken before the fetch so a concurrent update leaves the fetched values unreachable
+            String k = key(uri);
+            Description d = cache.get(k);
+            if (d == null) {
+                missing.add(uri);
+                missingKeys.add(k);
+            }
+            found.add(d);
+        }
+        if (!missing.isEmpty()) {
+            List<Resource> fetched = store.fetchEntities(missing, null);
+            int m = 0;
+            for (int i = 0; i < found.size(); i++) {
+                if (found.get(i) == null) {
+                    Resource root = fetched.get(m);
+                    if (root != null) {
+                        Description d = Description.descriptionFrom(root, this).freeze();
+                        cache.put(missingKeys.get(m), d);
+                        found.set(i, d);
+                    }
+                    m++;
+                }
+            }
+        }
+        List<Resource> results = new ArrayList<Resource>(uris.size());
+        for (Description d : found) {
+            if (d == null) {
+                results.add(null);
+            } else if (target != null) {
+                target.add( d.getRoot().getModel() );
+                results.add( d.getRoot().inModel(target) );
+            } else {
+                results.add( d.getRoot() );
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<RegisterItem> fetchAllAt(List<String> itemURIs, long time, boolean withEntity) {
+        return store.fetchAllAt(itemURIs, time, withEntity);
     }
 
     @Override
@@ -179,8 +598,23 @@ public class CachingStore implements StoreAPI {
     }
 
     @Override
-    public LuceneResult[] search(String query, int offset, int maxresults, String... fields) {
-        return store.search(query, offset, maxresults, fields);
+    public List<EntityInfo> listEntityOccurences(String uri, String registerPrefix) {
+        return store.listEntityOccurences(uri, registerPrefix);
+    }
+
+    @Override
+    public Map<String, List<EntityInfo>> listEntityOccurences(List<String> uris, String registerPrefix) {
+        return store.listEntityOccurences(uris, registerPrefix);
+    }
+
+    @Override
+    public SearchHit[] search(String query, boolean includeHistory, int offset, int maxresults, String... fields) {
+        return store.search(query, includeHistory, offset, maxresults, fields);
+    }
+
+    @Override
+    public SearchHit[] searchAfter(String query, boolean includeHistory, String after, int maxresults, String... fields) {
+        return store.searchAfter(query, includeHistory, after, maxresults, fields);
     }
 
     @Override
@@ -190,12 +624,23 @@ public class CachingStore implements StoreAPI {
 
     @Override
     public void storeGraph(String graphURI, Model model) {
-        store.storeGraph(graphURI, model);
+        invalidate(graphURI);
+        try {
+            store.storeGraph(graphURI, model);
+        } finally {
+            revalidatePending();
+        }
     }
 
     @Override
-    public Model getGraph(String graphURI) {
-        return store.getGraph(graphURI);
+    public Model getGraph(final String graphURI) {
+        return graphs.get(key(graphURI), new WeightedCache.Loader<Model>() {
+            @Override
+            public Model load(String key) {
+                Model graph = store.getGraph(graphURI);
+                return graph == null ? null : ReadOnlyGraph.freeze(graph);
+            }
+        });
     }
 
     @Override
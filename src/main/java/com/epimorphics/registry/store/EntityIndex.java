@@ -0,0 +1,158 @@
+/******************************************************************
+ * File:        EntityIndex.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory reverse index from entity URI to the items which register that entity.
+ * <p>
+ * Unlike the MemberIndex this covers the whole store so it is loaded in one go,
+ * on first use, and then kept up to date by the store as items are registered
+ * or updated (including status changes).
+ * </p>
+ * <p>
+ * The occurrences of each entity are held sorted by register URI, so a lookup
+ * restricted to a register subtree reads only the occurrences in that subtree.
+ * </p>
+ */
+public class EntityIndex {
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    // Occurrences of each entity keyed by register URI then item URI
+    protected Map<String, TreeMap<String, EntityInfo>> byEntity;
+    protected Map<String, EntityInfo> byItem;
+
+    /**
+     * Test if the index has been loaded
+     */
+    public synchronized boolean isLoaded() {
+        return byEntity != null;
+    }
+
+    /**
+     * Record the complete set of entity occurrences, replacing any previous content
+     */
+    public synchronized void load(List<EntityInfo> infos) {
+        byEntity = new HashMap<String, TreeMap<String, EntityInfo>>();
+        byItem = new HashMap<String, EntityInfo>();
+        for (EntityInfo info : infos) {
+            add(info);
+        }
+    }
+
+    /**
+     * Add or replace the entry for a single item. Ignored if the index has not been loaded.
+     */
+    public synchronized void update(EntityInfo info) {
+        if (byEntity != null) {
+            remove(info.getItemURI());
+            add(info);
+        }
+    }
+
+    /**
+     * Remove any entry for the given item. Ignored if the index has not been loaded.
+     */
+    public synchronized void remove(String itemURI) {
+        if (byEntity == null) return;
+        EntityInfo old = byItem.remove(itemURI);
+        if (old != null) {
+            TreeMap<String, EntityInfo> occurrences = byEntity.get(old.getEntityURI());
+            occurrences.remove( keyFor(old) );
+            if (occurrences.isEmpty()) {
+                byEntity.remove(old.getEntityURI());
+            }
+        }
+    }
+
+    private void add(EntityInfo info) {
+        TreeMap<String, EntityInfo> occurrences = byEntity.get(info.getEntityURI());
+        if (occurrences == null) {
+            occurrences = new TreeMap<String, EntityInfo>();
+            byEntity.put(info.getEntityURI(), occurrences);
+        }
+        occurrences.put(keyFor(info), info);
+        byItem.put(info.getItemURI(), info);
+    }
+
+    // Register URI first so that a register prefix selects a contiguous range
+    private static String keyFor(EntityInfo info) {
+        String register = info.getRegisterURI();
+        return (register == null ? "" : register) + KEY_SEPARATOR + info.getItemURI();
+    }
+
+    /**
+     * Return the registrations of an entity, optionally restricted to a register subtree.
+     * @param entityURI the entity to look for
+     * @param registerPrefix if not null only return occurrences in registers whose URI starts with this prefix
+     */
+    public synchronized List<EntityInfo> find(String entityURI, String registerPrefix) {
+        if (byEntity == null) {
+            throw new IllegalStateException("Entity index not loaded");
+        }
+        return doFind(entityURI, registerPrefix);
+    }
+
+    /**
+     * Batch form of find, all entities are looked up in a single pass of the index.
+     * @return map from each requested entity URI to its (possibly empty) list of occurrences, in request order
+     */
+    public synchronized Map<String, List<EntityInfo>> find(List<String> entityURIs, String registerPrefix) {
+        if (byEntity == null) {
+            throw new IllegalStateException("Entity index not loaded");
+        }
+        Map<String, List<EntityInfo>> results = new LinkedHashMap<String, List<EntityInfo>>();
+        for (String entityURI : entityURIs) {
+            results.put(entityURI, doFind(entityURI, registerPrefix));
+        }
+        return results;
+    }
+
+    private List<EntityInfo> doFind(String entityURI, String registerPrefix) {
+        TreeMap<String, EntityInfo> occurrences = byEntity.get(entityURI);
+        if (occurrences == null) {
+            return Collections.emptyList();
+        }
+        SortedMap<String, EntityInfo> scope = occurrences;
+        if (registerPrefix != null) {
+            scope = occurrences.subMap(registerPrefix, registerPrefix + Character.MAX_VALUE);
+        }
+        return new ArrayList<EntityInfo>( scope.values() );
+    }
+
+    /**
+     * Drop all entries, forcing a rebuild from the store
+     */
+    public synchronized void clear() {
+        byEntity = null;
+        byItem = null;
+    }
+}
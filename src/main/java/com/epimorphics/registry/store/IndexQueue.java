@@ -0,0 +1,603 @@
+/******************************************************************
+ * File:        IndexQueue.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.server.core.Indexer;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Queue of text index updates applied asynchronously by a background
+ * thread, so that index analysis and commits are not part of the latency
+ * of a registration or of the time for which locks are held.
+ * <p>
+ * Queuing is in two steps. A writer prepares the update as it makes the
+ * store change, while it holds the lock on the item, which journals the
+ * update and fixes its sequence. When the store change commits the update
+ * is submitted, and it is discarded if the change is aborted. The indexing
+ * thread takes submitted updates in sequence order, up to a limit, and
+ * applies them as a single index batch, after which the changes are visible
+ * to searches. An update only waits for earlier prepared updates to the same
+ * graph, so the updates for one item are applied in the order of its changes
+ * while a long write holds up nobody else's updates.
+ * </p>
+ * <p>
+ * Once a writer has released its locks it waits if more than the queue
+ * capacity of submitted updates are waiting. The wait is bounded, a writer
+ * which times out carries on and the overflow is logged and counted.
+ * </p>
+ * <p>
+ * If a journal directory is given then each update is written to a small
+ * file there as it is prepared, before the store change commits, and the
+ * files are removed once the updates have been committed to the index.
+ * Updates still in the journal when the queue is started, left by an earlier
+ * run which stopped before committing them, are applied first. A change
+ * which was in progress when the run stopped may be replayed although it
+ * never committed, a reindex corrects that.
+ * </p>
+ */
+public class IndexQueue {
+    static final Logger log = LoggerFactory.getLogger( IndexQueue.class );
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** Maximum time, in ms, for which a writer waits for the queue to drop below its capacity */
+    public static final long SUBMIT_TIMEOUT = 5000;
+
+    /** Maximum number of updates applied in one index batch */
+    public static final int MAX_BATCH = 500;
+
+    /** Maximum time, in ms, for which applied updates are left uncommitted while the queue is busy */
+    public static final long CHECKPOINT_INTERVAL = 5000;
+
+    static final String JOURNAL_SUFFIX = ".idx";
+
+    // Interval at which the indexing thread checks for a stop request, it is not interrupted
+    // since interrupting Lucene file access closes the index files
+    static final long POLL_INTERVAL = 1000;
+
+    /**
+     * A change to one of the indexes, either adding the resources in a graph
+     * or replacing any previous entries for the graph.
+     */
+    public static class Update {
+        protected final String target;
+        protected final String graph;
+        protected final Model model;
+        protected final String summary;
+        protected final boolean replace;
+        protected long sequence;
+        protected long enqueued;
+        protected boolean ready = false;
+
+        /**
+         * @param target name of the index to update
+         * @param graph name of the graph being indexed
+         * @param model the resources to index
+         * @param summary optional summary to store for the resource named by the graph, requires a RegistryIndex
+         * @param replace true if previous entries for the graph should be replaced
+         */
+        public Update(String target, String graph, Model model, String summary, boolean replace) {
+            this.target = target;
+            this.graph = graph;
+            this.model = model;
+            this.summary = summary;
+            this.replace = replace;
+        }
+
+        /**
+         * Return a copy which does not share the model, for updates queued from a model which may change
+         */
+        public Update copy() {
+            return new Update(target, graph, ModelFactory.createDefaultModel().add(model), summary, replace);
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public void applyTo(Indexer indexer) {
+            if (summary != null && indexer instanceof RegistryIndex) {
+                ((RegistryIndex)indexer).updateGraph(graph, model, summary);
+            } else if (replace) {
+                indexer.updateGraph(graph, model);
+            } else {
+                indexer.addGraph(graph, model);
+            }
+        }
+
+        protected void write(DataOutputStream out) throws IOException {
+            out.writeUTF(target);
+            out.writeUTF(graph);
+            out.writeBoolean(replace);
+            out.writeBoolean(summary != null);
+            if (summary != null) {
+                byte[] bytes = summary.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            ByteArrayOutputStream triples = new ByteArrayOutputStream();
+            model.write(triples, "N-TRIPLE");
+            out.writeInt(triples.size());
+            triples.writeTo(out);
+        }
+
+        protected static Update read(DataInputStream in) throws IOException {
+            String target = in.readUTF();
+            String graph = in.readUTF();
+            boolean replace = in.readBoolean();
+            String summary = null;
+            if (in.readBoolean()) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                summary = new String(bytes, "UTF-8");
+            }
+            byte[] triples = new byte[in.readInt()];
+            in.readFully(triples);
+            Model model = ModelFactory.createDefaultModel();
+            model.read(new ByteArrayInputStream(triples), null, "N-TRIPLE");
+            return new Update(target, graph, model, summary, replace);
+        }
+    }
+
+    protected final Map<String, Indexer> indexers;
+    protected final int capacity;
+    protected final File journal;
+
+    // Prepared updates in sequence order, and counts of updates not yet applied and of
+    // submitted updates waiting to be taken, guarded by this
+    protected final LinkedList<Update> queue = new LinkedList<Update>();
+    protected long nextSequence = 0;
+    protected long pending = 0;
+    protected int waiting = 0;
+
+    protected final AtomicLong enqueued = new AtomicLong();
+    protected final AtomicLong applied = new AtomicLong();
+    protected final AtomicLong failed = new AtomicLong();
+    protected final AtomicLong overflows = new AtomicLong();
+    protected volatile long lastLag = 0;
+    protected volatile long maxLag = 0;
+
+    // Only accessed by the indexing thread, or before it starts
+    protected List<Update> uncommitted = new ArrayList<Update>();
+    protected long lastCheckpoint = System.currentTimeMillis();
+
+    protected volatile boolean running = false;
+    protected Thread worker;
+
+    /**
+     * Construct a queue.
+     * @param indexers the indexes which can be updated, by name
+     * @param capacity number of updates waiting to be applied above which writers wait
+     * @param journal directory in which to journal updates, null for no journal
+     */
+    public IndexQueue(Map<String, Indexer> indexers, int capacity, File journal) {
+        this.indexers = indexers;
+        this.capacity = capacity;
+        this.journal = journal;
+        if (journal != null && !journal.isDirectory() && !journal.mkdirs()) {
+            throw new EpiException("Could not create index journal directory: " + journal);
+        }
+    }
+
+    /**
+     * Apply any updates left in the journal and then start the indexing thread
+     */
+    public synchronized void start() {
+        if (running) return;
+        replay();
+        running = true;
+        worker = new Thread("registry-indexer") {
+            @Override
+            public void run() {
+                process();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Apply the updates already queued and stop the indexing thread
+     */
+    public void stop() {
+        Thread w;
+        synchronized (this) {
+            running = false;
+            w = worker;
+            worker = null;
+        }
+        if (w != null) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue an update, equivalent to preparing and then submitting it
+     */
+    public void enqueue(Update update) {
+        prepare(update);
+        submit(update);
+        awaitCapacity(SUBMIT_TIMEOUT);
+    }
+
+    /**
+     * Fix the position of an update in the queue and journal it. It is not applied,
+     * nor are later updates to the same graph, until it has been submitted.
+     */
+    public void prepare(Update update) {
+        synchronized (this) {
+            update.sequence = nextSequence++;
+            update.enqueued = System.currentTimeMillis();
+            queue.add(update);
+            pending++;
+            enqueued.incrementAndGet();
+        }
+        if (journal != null) {
+            try {
+                writeJournal(update);
+            } catch (RuntimeException e) {
+                discard(update);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Make a prepared update available to the indexing thread, once its store change has committed
+     */
+    public synchronized void submit(Update update) {
+        if (update.ready) return;
+        update.ready = true;
+        waiting++;
+        notifyAll();
+    }
+
+    /**
+     * Drop a prepared update whose store change has been aborted
+     */
+    public void discard(Update update) {
+        synchronized (this) {
+            if (update.ready || !queue.remove(update)) return;
+            pending--;
+            enqueued.decrementAndGet();
+            notifyAll();
+        }
+        if (journal != null) {
+            File f = journalFile(update.sequence);
+            if (f.exists() && !f.delete()) {
+                log.warn("Could not remove index journal entry " + f);
+            }
+        }
+    }
+
+    /**
+     * Wait until no more than the queue capacity of submitted updates are waiting, or the timeout expires.
+     * Updates prepared by writes still in progress don't count.
+     * @param timeout maximum time to wait in ms
+     * @return false if the queue was still over capacity when the wait ended
+     */
+    public synchronized boolean awaitCapacity(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (waiting > capacity) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    overflows.incrementAndGet();
+                    log.warn("Text index queue over capacity, " + waiting + " updates waiting");
+                    return false;
+                }
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait until all queued updates have been applied and are visible to searches
+     * @param timeout maximum time to wait in ms
+     * @return true if all updates have been applied
+     */
+    public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (pending > 0) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) return false;
+            wait(wait);
+        }
+        return true;
+    }
+
+    protected void process() {
+        while (running || !isEmpty()) {
+            try {
+                List<Update> batch = nextBatch(POLL_INTERVAL);
+                if (!batch.isEmpty()) {
+                    apply(batch);
+                }
+                if (!uncommitted.isEmpty() && (isEmpty() || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL)) {
+                    checkpoint();
+                }
+            } catch (InterruptedException e) {
+                // Only stop once the queue is drained, via stop()
+            } catch (RuntimeException e) {
+                log.error("Text index update failed", e);
+            }
+        }
+        if (!uncommitted.isEmpty()) {
+            checkpoint();
+        }
+    }
+
+    // True if there are no submitted updates to apply, prepared updates are left for the writer to submit or discard
+    protected synchronized boolean isEmpty() {
+        return waiting == 0;
+    }
+
+    /**
+     * Take submitted updates in sequence order, skipping any behind an unsubmitted update
+     * to the same graph, waiting up to the timeout for there to be some
+     */
+    protected synchronized List<Update> nextBatch(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            List<Update> batch = takeReady();
+            if (!batch.isEmpty()) {
+                waiting -= batch.size();
+                // Wake writers waiting for capacity
+                notifyAll();
+                return batch;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return Collections.emptyList();
+            }
+            wait(wait);
+        }
+    }
+
+    private List<Update> takeReady() {
+        List<Update> batch = new ArrayList<Update>();
+        if (waiting == 0) return batch;
+        Set<String> held = new HashSet<String>();
+        for (Iterator<Update> i = queue.iterator(); i.hasNext() && batch.size() < MAX_BATCH; ) {
+            Update update = i.next();
+            String key = update.target + " " + update.graph;
+            if (!update.ready) {
+                held.add(key);
+            } else if (!held.contains(key)) {
+                batch.add(update);
+                i.remove();
+            }
+        }
+        return batch;
+    }
+
+    protected void apply(List<Update> batch) {
+        for (Indexer indexer : indexers.values()) {
+            indexer.startBatch();
+        }
+        try {
+            for (Update update : batch) {
+                Indexer indexer = indexers.get(update.target);
+                try {
+                    if (indexer == null) {
+                        throw new EpiException("No index called " + update.target);
+                    }
+                    update.applyTo(indexer);
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    log.error("Failed to index " + update.graph + " in " + update.target, e);
+                }
+            }
+        } finally {
+            for (Indexer indexer : indexers.values()) {
+                indexer.endBatch();
+            }
+        }
+        long lag = System.currentTimeMillis() - batch.get(0).enqueued;
+        lastLag = lag;
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+        uncommitted.addAll(batch);
+        applied.addAndGet(batch.size());
+        synchronized (this) {
+            pending -= batch.size();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Commit applied updates to the indexes and remove them from the journal
+     */
+    protected void checkpoint() {
+        for (Indexer indexer : indexers.values()) {
+            if (indexer instanceof RegistryIndex) {
+                ((RegistryIndex)indexer).commit();
+            }
+        }
+        if (journal != null) {
+            for (Update update : uncommitted) {
+                File f = journalFile(update.sequence);
+                if (!f.delete()) {
+                    log.warn("Could not remove index journal entry " + f);
+                }
+            }
+        }
+        uncommitted.clear();
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    // --- journal ---
+
+    protected File journalFile(long seq) {
+        return new File(journal, String.format("%016d%s", seq, JOURNAL_SUFFIX));
+    }
+
+    protected void writeJournal(Update update) {
+        File f = journalFile(update.sequence);
+        try {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(f) ) );
+            try {
+                update.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new EpiException("Failed to write index journal entry " + f, e);
+        }
+    }
+
+    /**
+     * Apply, in order, any updates left in the journal by a previous run
+     */
+    protected void replay() {
+        if (journal == null) return;
+        File[] entries = journal.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JOURNAL_SUFFIX);
+            }
+        });
+        if (entries == null || entries.length == 0) return;
+        Arrays.sort(entries);
+        log.info("Replaying " + entries.length + " text index updates from journal");
+        List<Update> batch = new ArrayList<Update>();
+        for (File f : entries) {
+            String name = f.getName();
+            long seq = Long.parseLong( name.substring(0, name.length() - JOURNAL_SUFFIX.length()) );
+            try {
+                DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(f) ) );
+                try {
+                    Update update = Update.read(in);
+                    update.sequence = seq;
+                    update.enqueued = System.currentTimeMillis();
+                    batch.add(update);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Most likely a partial write as the previous run stopped
+                log.error("Skipping unreadable index journal entry " + f, e);
+                f.delete();
+            }
+            nextSequence = Math.max(nextSequence, seq + 1);
+            if (batch.size() == MAX_BATCH) {
+                replayBatch(batch);
+                batch = new ArrayList<Update>();
+            }
+        }
+        replayBatch(batch);
+        checkpoint();
+    }
+
+    private void replayBatch(List<Update> batch) {
+        if (batch.isEmpty()) return;
+        synchronized (this) {
+            pending += batch.size();
+        }
+        apply(batch);
+    }
+
+    // --- statistics ---
+
+    public synchronized Stats getStats() {
+        Update oldest = queue.peek();
+        long age = oldest == null ? 0 : System.currentTimeMillis() - oldest.enqueued;
+        return new Stats(queue.size(), age, enqueued.get(), applied.get(), failed.get(), overflows.get(), lastLag, maxLag);
+    }
+
+    public static class Stats {
+        protected int queued;
+        protected long oldestAge;
+        protected long enqueued;
+        protected long applied;
+        protected long failed;
+        protected long overflows;
+        protected long lastLag;
+        protected long maxLag;
+
+        Stats(int queued, long oldestAge, long enqueued, long applied, long failed, long overflows, long lastLag, long maxLag) {
+            this.queued = queued;
+            this.oldestAge = oldestAge;
+            this.enqueued = enqueued;
+            this.applied = applied;
+            this.failed = failed;
+            this.overflows = overflows;
+            this.lastLag = lastLag;
+            this.maxLag = maxLag;
+        }
+
+        /** Number of updates waiting to be applied */
+        public int getQueued()        { return queued; }
+        /** Time in ms for which the oldest waiting update has been queued */
+        public long getOldestAge()    { return oldestAge; }
+        public long getEnqueued()     { return enqueued; }
+        public long getApplied()      { return applied; }
+        public long getFailed()       { return failed; }
+        /** Number of times a writer stopped waiting for the queue to drop below capacity */
+        public long getOverflows()    { return overflows; }
+        /** Time in ms from enqueue until visible to searches, for the oldest update in the last batch */
+        public long getLastLag()      { return lastLag; }
+        public long getMaxLag()       { return maxLag; }
+
+        @Override
+        public String toString() {
+            return String.format("index queue: %d queued (oldest %dms), %d enqueued, %d applied, %d failed, %d overflows, lag %dms (max %dms)",
+                    queued, oldestAge, enqueued, applied, failed, overflows, lastLag, maxLag);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/******************************************************************
+ * File:        LockManager.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.server.webapi.WebApiException;
+import com.epimorphics.util.EpiException;
+
+/**
+ * Hierarchical "for update" locks on registers and items.
+ * <p>
+ * Locking a URI takes an exclusive lock on that URI and an intention lock on each
+ * enclosing register, working down from the root. Intention locks are compatible
+ * with each other but not with an exclusive lock, so writers in unrelated registers
+ * proceed in parallel while an operation on a whole register excludes writers on
+ * anything inside it. Locks are reentrant for the owning thread.
+ * </p>
+ * <p>
+ * Each URI has its own lock node, created on demand in a concurrent map and dropped
+ * once no thread holds or waits for it, so there is no global monitor. A lock request
+ * which can't be granted within the timeout fails, as does one which would close
+ * a cycle of waiting threads. The wait-for check is repeated each time a waiting
+ * thread wakes, so a cycle formed after the wait began is still found. Queued
+ * exclusive requests take priority over new intention requests, so a steady flow
+ * of writers inside a register can't starve an operation on the whole register.
+ * Wait times are accumulated in the statistics.
+ * </p>
+ * <p>
+ * A write transaction keeps the store write lock while it holds update locks,
+ * so a thread may block on the store while holding a URI lock that the store
+ * lock's owner is waiting for. The store write lock is therefore taken through
+ * {@link #lockStoreWrite(Runnable)}. Writers first queue for an exclusive lock
+ * node standing for the store, with the same timed wait and wait-for check as
+ * any other lock, and only then take the underlying store lock.
+ * </p>
+ */
+public class LockManager {
+    static final Logger log = LoggerFactory.getLogger( LockManager.class );
+
+    public static final long DEFAULT_TIMEOUT = 60000;
+    public static final long SLOW_WAIT = 1000;
+
+    protected static final long CHECK_INTERVAL = 100;
+
+    protected long timeout;
+    protected final ConcurrentMap<String, LockNode> nodes = new ConcurrentHashMap<String, LockNode>();
+    protected final ConcurrentMap<Thread, Waiting> waitingFor = new ConcurrentHashMap<Thread, Waiting>();
+    protected final LockNode storeNode = new LockNode("the store");
+    protected final ThreadLocal<Integer> held = new ThreadLocal<Integer>();
+
+    protected final AtomicLong acquisitions = new AtomicLong();
+    protected final AtomicLong contended = new AtomicLong();
+    protected final AtomicLong totalWait = new AtomicLong();
+    protected final AtomicLong maxWait = new AtomicLong();
+    protected final AtomicLong timeouts = new AtomicLong();
+    protected final AtomicLong deadlocks = new AtomicLong();
+
+    public LockManager() {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout maximum time, in milliseconds, to wait for any one lock
+     */
+    public LockManager(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Lock the given register or item for update, blocks until the lock is granted.
+     * @throws WebApiException if the lock times out or would deadlock
+     */
+    public void lock(String uri) {
+        List<String> path = pathTo(uri);
+        long start = System.nanoTime();
+        List<LockNode> acquired = new ArrayList<LockNode>(path.size());
+        boolean waited = false;
+        try {
+            for (int i = 0; i < path.size(); i++) {
+                boolean exclusive = i == path.size() - 1;
+                LockNode node = node( path.get(i) );
+                try {
+                    waited |= acquire(node, exclusive, start);
+                } catch (RuntimeException e) {
+                    releaseRef(node);
+                    throw e;
+                }
+                acquired.add(node);
+            }
+        } catch (RuntimeException e) {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                release( acquired.get(i), i == path.size() - 1 );
+            }
+            throw e;
+        }
+        Integer count = held.get();
+        held.set( count == null ? 1 : count + 1 );
+        recordWait(uri, waited, System.nanoTime() - start);
+    }
+
+    /**
+     * Release a lock taken by this thread.
+     * @throws EpiException if this thread does not hold a lock on the URI
+     */
+    public void unlock(String uri) {
+        List<String> path = pathTo(uri);
+        LockNode target = nodes.get( path.get(path.size() - 1) );
+        if (target == null || !target.ownedBy(Thread.currentThread())) {
+            throw new EpiException("Internal error: tried to unlock a resource which was not locked for update");
+        }
+        release(target, true);
+        for (int i = path.size() - 2; i >= 0; i--) {
+            release( nodes.get( path.get(i) ), false );
+        }
+        int count = held.get() - 1;
+        if (count == 0) {
+            held.remove();
+        } else {
+            held.set(count);
+        }
+    }
+
+    /**
+     * Take the store write lock for the calling thread. The thread first acquires the
+     * store lock node, waiting at most the lock timeout and checking for deadlock as it
+     * waits, then the given action does the actual acquisition. Since every store writer
+     * passes through the node first, the action only waits for store readers to finish.
+     * Reentrant, each call must be matched by a call to {@link #unlockStoreWrite()}.
+     * @throws WebApiException if waiting for the store times out or would deadlock
+     */
+    public void lockStoreWrite(Runnable acquire) {
+        acquire(storeNode, true, System.nanoTime());
+        try {
+            acquire.run();
+        } catch (RuntimeException e) {
+            unlockStoreWrite();
+            throw e;
+        }
+    }
+
+    /**
+     * Record release of the store write lock by the calling thread
+     */
+    public void unlockStoreWrite() {
+        synchronized (storeNode) {
+            if (storeNode.owner != Thread.currentThread()) {
+                throw new EpiException("Internal error: tried to unlock the store which was not locked for write");
+            }
+            storeNode.release(storeNode.owner, true);
+            storeNode.notifyAll();
+        }
+    }
+
+    /**
+     * Test if the calling thread holds any locks
+     */
+    public boolean holdsLocks() {
+        return held.get() != null;
+    }
+
+    /**
+     * Return a snapshot of the lock wait statistics
+     */
+    public Stats getStats() {
+        return new Stats(acquisitions.get(), contended.get(), totalWait.get(), maxWait.get(), timeouts.get(), deadlocks.get());
+    }
+
+    /**
+     * Return the lock path for a URI: the root register, each enclosing register and finally
+     * the URI itself. Trailing slashes are ignored so the root register is keyed by its host.
+     */
+    protected static List<String> pathTo(String uri) {
+        String key = uri.endsWith("/") ? uri.substring(0, uri.length() - 1) : uri;
+        List<String> path = new ArrayList<String>();
+        int scheme = key.indexOf("://");
+        int i = key.indexOf('/', scheme == -1 ? 0 : scheme + 3);
+        while (i != -1) {
+            path.add( key.substring(0, i) );
+            i = key.indexOf('/', i + 1);
+        }
+        path.add(key);
+        return path;
+    }
+
+    private LockNode node(String key) {
+        while (true) {
+            LockNode node = nodes.get(key);
+            if (node == null) {
+                node = new LockNode(key);
+                LockNode prior = nodes.putIfAbsent(key, node);
+                if (prior != null) {
+                    node = prior;
+                }
+            }
+            synchronized (node) {
+                if (!node.retired) {
+                    node.refs++;
+                    return node;
+                }
+            }
+        }
+    }
+
+    private void releaseRef(LockNode node) {
+        synchronized (node) {
+            if (--node.refs == 0) {
+                node.retired = true;
+                nodes.remove(node.key, node);
+            }
+        }
+    }
+
+    /**
+     * Acquire one node of a lock path, returns true if we had to wait
+     */
+    private boolean acquire(LockNode node, boolean exclusive, long start) {
+        Thread me = Thread.currentThread();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean waited = false;
+        try {
+            while (true) {
+                Set<Thread> blockers;
+                synchronized (node) {
+                    if (node.grant(me, exclusive)) {
+                        return waited;
+                    }
+                    if (exclusive) {
+                        node.exclusiveWaiters.add(me);
+                    }
+                    blockers = node.blockers(me, exclusive);
+                }
+                waited = true;
+                waitingFor.put(me, new Waiting(node, exclusive));
+                if (wouldDeadlock(me, blockers)) {
+                    deadlocks.incrementAndGet();
+                    throw new WebApiException(SERVICE_UNAVAILABLE, "Lock on " + node.key + " would deadlock, please retry");
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new WebApiException(SERVICE_UNAVAILABLE, "Timed out waiting for lock on " + node.key);
+                }
+                synchronized (node) {
+                    if (!node.canGrant(me, exclusive)) {
+                        node.wait( Math.min(remaining, CHECK_INTERVAL) );
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted waiting for lock on " + node.key);
+        } finally {
+            waitingFor.remove(me);
+            if (exclusive) {
+                synchronized (node) {
+                    if (node.exclusiveWaiters.remove(me)) {
+                        // Intention requests held back behind us may now proceed
+                        node.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void release(LockNode node, boolean exclusive) {
+        synchronized (node) {
+            node.release(Thread.currentThread(), exclusive);
+            node.notifyAll();
+        }
+        releaseRef(node);
+    }
+
+    /**
+     * Follow the wait-for graph from the threads blocking us, a path back to this thread is a deadlock
+     */
+    private boolean wouldDeadlock(Thread me, Set<Thread> blockers) {
+        List<Thread> agenda = new ArrayList<Thread>(blockers);
+        Set<Thread> seen = new HashSet<Thread>();
+        while (!agenda.isEmpty()) {
+            Thread t = agenda.remove( agenda.size() - 1 );
+            if (t == me) return true;
+            if (!seen.add(t)) continue;
+            Waiting waiting = waitingFor.get(t);
+            if (waiting != null) {
+                synchronized (waiting.node) {
+                    agenda.addAll( waiting.node.blockers(t, waiting.exclusive) );
+                }
+            }
+        }
+        return false;
+    }
+
+    private void recordWait(String uri, boolean waited, long wait) {
+        acquisitions.incrementAndGet();
+        if (!waited) return;
+        contended.incrementAndGet();
+        totalWait.addAndGet(wait);
+        long max = maxWait.get();
+        while (wait > max && !maxWait.compareAndSet(max, wait)) {
+            max = maxWait.get();
+        }
+        long waitms = TimeUnit.NANOSECONDS.toMillis(wait);
+        if (waitms >= SLOW_WAIT) {
+            log.warn("Waited " + waitms + "ms for lock on " + uri);
+        } else if (log.isDebugEnabled()) {
+            log.debug("Waited " + waitms + "ms for lock on " + uri);
+        }
+    }
+
+    /**
+     * Records what a blocked thread is waiting for
+     */
+    static class Waiting {
+        final LockNode node;
+        final boolean exclusive;
+
+        Waiting(LockNode node, boolean exclusive) {
+            this.node = node;
+            this.exclusive = exclusive;
+        }
+    }
+
+    /**
+     * State of the lock on one URI, guarded by its own monitor
+     */
+    static class LockNode {
+        final String key;
+        Thread owner;
+        int ownerCount;
+        Map<Thread, Integer> intentions = new HashMap<Thread, Integer>();
+        Set<Thread> exclusiveWaiters = new HashSet<Thread>();
+        int refs;
+        boolean retired;
+
+        LockNode(String key) {
+            this.key = key;
+        }
+
+        boolean ownedBy(Thread t) {
+            synchronized (this) {
+                return owner == t;
+            }
+        }
+
+        boolean canGrant(Thread t, boolean exclusive) {
+            if (owner != null && owner != t) return false;
+            if (exclusive) {
+                for (Thread holder : intentions.keySet()) {
+                    if (holder != t) return false;
+                }
+            } else if (isNewIntention(t)) {
+                // Queued exclusive requests go first, a thread already holding an intention may reenter
+                for (Thread waiter : exclusiveWaiters) {
+                    if (waiter != t) return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isNewIntention(Thread t) {
+            return owner != t && !intentions.containsKey(t);
+        }
+
+        boolean grant(Thread t, boolean exclusive) {
+            if (!canGrant(t, exclusive)) return false;
+            if (exclusive) {
+                owner = t;
+                ownerCount++;
+            } else {
+                Integer count = intentions.get(t);
+                intentions.put(t, count == null ? 1 : count + 1);
+            }
+            return true;
+        }
+
+        void release(Thread t, boolean exclusive) {
+            if (exclusive) {
+                if (--ownerCount == 0) {
+                    owner = null;
+                }
+            } else {
+                Integer count = intentions.get(t);
+                if (count == null) return;
+                if (count == 1) {
+                    intentions.remove(t);
+                } else {
+                    intentions.put(t, count - 1);
+                }
+            }
+        }
+
+        Set<Thread> blockers(Thread t, boolean exclusive) {
+            Set<Thread> blockers = new HashSet<Thread>();
+            if (owner != null && owner != t) {
+                blockers.add(owner);
+            }
+            if (exclusive) {
+                blockers.addAll( intentions.keySet() );
+                blockers.remove(t);
+            } else if (isNewIntention(t)) {
+                blockers.addAll( exclusiveWaiters );
+                blockers.remove(t);
+            }
+            return blockers;
+        }
+    }
+
+    /**
+     * Snapshot of the lock statistics, times in milliseconds
+     */
+    public static class Stats {
+        protected long acquisitions;
+        protected long contended;
+        protected long totalWait;
+        protected long maxWait;
+        protected long timeouts;
+        protected long deadlocks;
+
+        Stats(long acquisitions, long contended, long totalWait, long maxWait, long timeouts, long deadlocks) {
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.totalWait = TimeUnit.NANOSECONDS.toMillis(totalWait);
+            this.maxWait = TimeUnit.NANOSECONDS.toMillis(maxWait);
+            this.timeouts = timeouts;
+            this.deadlocks = deadlocks;
+        }
+
+        public long getAcquisitions() { return acquisitions; }
+        public long getContended()    { return contended; }
+        public long getTotalWait()    { return totalWait; }
+        public long getMaxWait()      { return maxWait; }
+        public long getTimeouts()     { return timeouts; }
+        public long getDeadlocks()    { return deadlocks; }
+
+        @Override
+        public String toString() {
+            return String.format("%d locks, %d contended, wait total %dms max %dms, %d timeouts, %d deadlocks",
+                    acquisitions, contended, totalWait, maxWait, timeouts, deadlocks);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/******************************************************************
+ * File:        MemberIndex.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory index of the current members of each register, ordered by notation.
+ * <p>
+ * Registers are loaded into the index on first use (from a full store query) and
+ * are then kept up to date by the store as items are registered or updated.
+ * A register which has not yet been loaded is simply absent, so the index can
+ * be cleared at any time to force a rebuild from the store.
+ * </p>
+ * <p>
+ * Readers share an immutable snapshot of each register's member list. The
+ * snapshot is only rebuilt on the first read after a change, so a page of a
+ * large register costs a binary search plus the page, not a copy of the register.
+ * </p>
+ */
+public class MemberIndex {
+
+    protected Map<String, Members> registers = new HashMap<String, Members>();
+
+    /**
+     * Return the notation-ordered members of the register or null if
+     * the register has not been loaded into the index. The list is
+     * an unmodifiable snapshot which is not affected by later changes.
+     */
+    public synchronized List<RegisterEntryInfo> getMembers(String registerURI) {
+        Members members = registers.get(registerURI);
+        if (members == null) {
+            return null;
+        }
+        return members.snapshot();
+    }
+
+    /**
+     * Test if the register has been loaded into the index
+     */
+    public synchronized boolean isLoaded(String registerURI) {
+        return registers.containsKey(registerURI);
+    }
+
+    /**
+     * Record the complete set of members of a register, replacing any previous entry.
+     */
+    public synchronized void load(String registerURI, List<RegisterEntryInfo> members) {
+        Members entries = new Members();
+        for (RegisterEntryInfo member : members) {
+            entries.put(member);
+        }
+        registers.put(registerURI, entries);
+    }
+
+    /**
+     * Add or replace the entry for a single member. Ignored if the register
+     * has not been loaded, the next access will pick up the change from the store.
+     */
+    public synchronized void update(String registerURI, RegisterEntryInfo member) {
+        Members entries = registers.get(registerURI);
+        if (entries != null) {
+            entries.put(member);
+        }
+    }
+
+    /**
+     * Drop the entry for a single register, it will be reloaded from the store on next access
+     */
+    public synchronized void flush(String registerURI) {
+        registers.remove(registerURI);
+    }
+
+    /**
+     * Drop all entries, forcing a rebuild from the store
+     */
+    public synchronized void clear() {
+        registers.clear();
+    }
+
+    /**
+     * The members of one register plus the snapshot handed to readers,
+     * only accessed while holding the index lock.
+     */
+    static class Members {
+        final TreeMap<String, RegisterEntryInfo> entries = new TreeMap<String, RegisterEntryInfo>();
+        List<RegisterEntryInfo> snapshot;
+
+        void put(RegisterEntryInfo member) {
+            entries.put(member.getNotation(), member);
+            snapshot = null;
+        }
+
+        List<RegisterEntryInfo> snapshot() {
+            if (snapshot == null) {
+                snapshot = Collections.unmodifiableList( new ArrayList<RegisterEntryInfo>( entries.values() ) );
+            }
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,688 @@
+/******************************************************************
+ * File:        RegistryIndex.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.server.core.Indexer;
+import com.epimorphics.server.core.Service;
+import com.epimorphics.server.core.ServiceBase;
+import com.epimorphics.server.indexers.LuceneIndex;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.util.FileManager;
+
+/**
+ * Lucene text index for the registry. Each URI resource in an indexed graph
+ * becomes one document holding its URI, the graph it came from, its labels
+ * and the values of the configured value properties. The label and value
+ * properties are given by an index configuration file ("config" parameter)
+ * in the same form as used by the generic LuceneIndex, the index is held in
+ * the directory given by the "location" parameter or in memory if none is
+ * given.
+ * <p>
+ * When every version of an item is indexed, searches should return each
+ * item only once, at the rank of its best scoring version. Hits are read
+ * in rank order with search-after and only the first hit for each URI is
+ * kept. Each hit carries an opaque cursor (see {@link SearchCursor}) and
+ * the next page is read by search-after from the cursor of the last hit, so
+ * the cost of a page depends on the page size, not on how deep it is.
+ * </p>
+ * <p>
+ * Changes are visible to searches at the end of each batch, through a near
+ * real time searcher, but are only committed to disk if at least
+ * "commitWindow" seconds (default 0) have passed since the last commit.
+ * </p>
+ * <p>
+ * The whole index can be rebuilt while it stays in use (see {@link #startRebuild()}).
+ * The replacement is built in a side directory, changes made to the live
+ * index in the meantime are recorded, and on completion the live index is
+ * replaced by the rebuilt one plus those changes in a single commit.
+ * </p>
+ * <p>
+ * If the "summaries" parameter is set to "compact" or "entity" then a
+ * summary of each item (see {@link SearchSummary}) can be stored with its
+ * document so that search results can be rendered from the index alone.
+ * </p>
+ */
+public class RegistryIndex extends ServiceBase implements Indexer, Service {
+    static final Logger log = LoggerFactory.getLogger( RegistryIndex.class );
+
+    public static final String LOCATION_PARAM = "location";
+    public static final String CONFIG_PARAM = "config";
+    public static final String SUMMARIES_PARAM = "summaries";
+    public static final String COMMIT_WINDOW_PARAM = "commitWindow";
+
+    public static final String FIELD_URI = "uri";
+    public static final String FIELD_GRAPH = "graph";
+    public static final String FIELD_LABEL = LuceneIndex.FIELD_LABEL;
+    public static final String FIELD_SUMMARY = "summary";
+
+    public static final String LI_NS = "http://www.epimorphics.com/public/vocabulary/lucene-index#";
+    public static final Property labelProp = ResourceFactory.createProperty(LI_NS + "labelProp");
+    public static final Property valueProp = ResourceFactory.createProperty(LI_NS + "valueProp");
+
+    /** Level of summary stored with each item */
+    public enum Summaries { NONE, COMPACT, ENTITY };
+
+    protected static final int MIN_BATCH = 50;
+
+    /** Limit on the URIs tested by one filtered search, kept below the boolean clause limit */
+    protected static final int MAX_FILTER_TERMS = 512;
+
+    protected Set<Property> labelProps = new HashSet<Property>();
+    protected Set<Property> valueProps = new HashSet<Property>();
+    protected Summaries summaries = Summaries.NONE;
+
+    protected File location;
+    protected Directory directory;
+    protected IndexWriter writer;
+    // Replaced if a failed rebuild has to roll back the writer
+    protected volatile SearcherManager searcherManager;
+    protected int batches = 0;
+    protected long commitWindow = 0;
+    protected long lastCommit = 0;
+
+    // Changes to replay into a replacement index, only recorded while a rebuild is in progress
+    protected List<Change> changes;
+
+    @Override
+    public void init(Map<String, String> config, ServletContext context) {
+        super.init(config, context);
+        String configFile = config.get(CONFIG_PARAM);
+        if (configFile != null) {
+            loadConfig( FileManager.get().loadModel(configFile) );
+        }
+        String summaryLevel = config.get(SUMMARIES_PARAM);
+        if (summaryLevel != null) {
+            try {
+                summaries = Summaries.valueOf( summaryLevel.trim().toUpperCase() );
+            } catch (IllegalArgumentException e) {
+                throw new EpiException("Illegal index summaries setting: " + summaryLevel);
+            }
+        }
+        String window = config.get(COMMIT_WINDOW_PARAM);
+        if (window != null) {
+            commitWindow = Long.parseLong( window.trim() ) * 1000;
+        }
+        String dir = config.get(LOCATION_PARAM);
+        location = dir == null ? null : new File(dir);
+        try {
+            directory = location == null ? new RAMDirectory() : FSDirectory.open(location);
+            writer = new IndexWriter(directory, writerConfig());
+            searcherManager = new SearcherManager(writer, true, null);
+        } catch (IOException e) {
+            throw new EpiException("Failed to open text index", e);
+        }
+    }
+
+    protected IndexWriterConfig writerConfig() {
+        return new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+    }
+
+    protected void loadConfig(Model spec) {
+        for (StmtIterator i = spec.listStatements(null, labelProp, (RDFNode)null); i.hasNext();) {
+            labelProps.add( ResourceFactory.createProperty( i.next().getResource().getURI() ) );
+        }
+        for (StmtIterator i = spec.listStatements(null, valueProp, (RDFNode)null); i.hasNext();) {
+            valueProps.add( ResourceFactory.createProperty( i.next().getResource().getURI() ) );
+        }
+    }
+
+    /**
+     * Return the level of item summary which should be supplied to the index
+     */
+    public Summaries getSummaries() {
+        return summaries;
+    }
+
+    // --- indexing ---
+
+    @Override
+    public void addGraph(String graphname, Model graph) {
+        index(graphname, graph, null, false);
+    }
+
+    @Override
+    public void updateGraph(String graphname, Model graph) {
+        index(graphname, graph, null, true);
+    }
+
+    /**
+     * Replace the entries for a graph, storing the given summary with
+     * the document for the resource whose URI is the graph name.
+     */
+    public void updateGraph(String graphname, Model graph, String summary) {
+        index(graphname, graph, summary, true);
+    }
+
+    public synchronized void deleteGraph(String graphname) {
+        if (changes != null) {
+            changes.add( new Change(graphname, null, null) );
+        }
+        try {
+            writer.deleteDocuments( new Term(FIELD_GRAPH, graphname) );
+        } catch (IOException e) {
+            throw new EpiException("Failed to update text index", e);
+        }
+        changed();
+    }
+
+    @Override
+    public synchronized void startBatch() {
+        batches++;
+    }
+
+    @Override
+    public synchronized void endBatch() {
+        if (batches > 0 && --batches == 0) {
+            flush();
+        }
+    }
+
+    protected synchronized void index(String graphname, Model graph, String summary, boolean update) {
+        if (changes != null) {
+            changes.add( new Change(graphname, ModelFactory.createDefaultModel().add(graph), summary) );
+        }
+        try {
+            write(writer, graphname, graph, summary, update);
+        } catch (IOException e) {
+            throw new EpiException("Failed to update text index", e);
+        }
+        changed();
+    }
+
+    protected void write(IndexWriter w, String graphname, Model graph, String summary, boolean update) throws IOException {
+        if (update) {
+            w.deleteDocuments( new Term(FIELD_GRAPH, graphname) );
+        }
+        for (ResIterator i = graph.listSubjects(); i.hasNext();) {
+            Resource subject = i.next();
+            if (subject.isURIResource()) {
+                Document doc = documentFor(graphname, subject);
+                if (summary != null && subject.getURI().equals(graphname)) {
+                    doc.add( new StoredField(FIELD_SUMMARY, summary) );
+                }
+                w.addDocument(doc);
+            }
+        }
+    }
+
+    protected Document documentFor(String graphname, Resource subject) {
+        Document doc = new Document();
+        doc.add( new StringField(FIELD_URI, subject.getURI(), Field.Store.YES) );
+        doc.add( new StringField(FIELD_GRAPH, graphname, Field.Store.YES) );
+        for (StmtIterator i = subject.listProperties(); i.hasNext();) {
+            Statement s = i.next();
+            Property p = s.getPredicate();
+            RDFNode value = s.getObject();
+            if (labelProps.contains(p) && value.isLiteral()) {
+                doc.add( new TextField(FIELD_LABEL, value.asLiteral().getLexicalForm(), Field.Store.YES) );
+            }
+            if (valueProps.contains(p)) {
+                if (value.isURIResource()) {
+                    doc.add( new StringField(p.getURI(), value.asResource().getURI(), Field.Store.NO) );
+                } else if (value.isLiteral()) {
+                    doc.add( new TextField(p.getURI(), value.asLiteral().getLexicalForm(), Field.Store.NO) );
+                }
+            }
+        }
+        return doc;
+    }
+
+    protected synchronized void changed() {
+        if (batches == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Make changes visible to searches, committing them if the commit window has passed
+     */
+    protected synchronized void flush() {
+        if (System.currentTimeMillis() - lastCommit >= commitWindow) {
+            commit();
+        } else {
+            refresh();
+        }
+    }
+
+    /**
+     * Commit all changes to the index
+     */
+    public synchronized void commit() {
+        try {
+            writer.commit();
+            lastCommit = System.currentTimeMillis();
+        } catch (IOException e) {
+            throw new EpiException("Failed to commit text index", e);
+        }
+        refresh();
+    }
+
+    /**
+     * Make all changes visible to searches without waiting for them to be committed
+     */
+    public synchronized void refresh() {
+        try {
+            searcherManager.maybeRefresh();
+        } catch (IOException e) {
+            throw new EpiException("Failed to reopen text index", e);
+        }
+    }
+
+    // --- rebuild ---
+
+    /**
+     * Start building a replacement for the whole index. The replacement is
+     * filled through the returned Rebuild, while this index carries on
+     * serving searches and taking updates, and replaces this index's
+     * content when passed to {@link #finishRebuild(Rebuild)}.
+     */
+    public synchronized Rebuild startRebuild() {
+        if (changes != null) {
+            throw new EpiException("A rebuild of the text index is already in progress");
+        }
+        Rebuild rebuild = new Rebuild();
+        changes = new ArrayList<Change>();
+        return rebuild;
+    }
+
+    /**
+     * Replace the content of this index with the rebuilt index, followed by
+     * the changes made to this index since the rebuild started. Searches see
+     * the old content until the replacement is committed. If the replacement
+     * fails this index is left with its old content and the rebuild is over.
+     */
+    public void finishRebuild(Rebuild rebuild) {
+        try {
+            rebuild.writer.close();
+            synchronized (this) {
+                swap(rebuild);
+            }
+        } catch (IOException e) {
+            throw new EpiException("Failed to replace text index", e);
+        } finally {
+            synchronized (this) {
+                changes = null;
+            }
+            rebuild.discard();
+        }
+    }
+
+    // Assumes this index is locked, so no other changes reach the writer
+    protected void swap(Rebuild rebuild) throws IOException {
+        // Commit outstanding live changes first, so that a rollback only undoes the swap
+        writer.commit();
+        boolean swapped = false;
+        try {
+            writer.deleteAll();
+            writer.addIndexes(rebuild.directory);
+            for (Change change : changes) {
+                if (change.graph == null) {
+                    writer.deleteDocuments( new Term(FIELD_GRAPH, change.graphname) );
+                } else {
+                    write(writer, change.graphname, change.graph, change.summary, true);
+                }
+            }
+            writer.commit();
+            swapped = true;
+        } finally {
+            if (!swapped) {
+                rollback();
+            }
+        }
+        log.info("Replaced text index, replaying " + changes.size() + " changes made during the rebuild");
+        lastCommit = System.currentTimeMillis();
+        refresh();
+    }
+
+    /**
+     * Discard all uncommitted changes and reopen the writer and searchers on the last commit.
+     * Searches in progress finish against the old searcher.
+     */
+    protected synchronized void rollback() {
+        try {
+            writer.rollback();
+        } catch (IOException e) {
+            log.error("Failed to roll back text index", e);
+        }
+        try {
+            SearcherManager old = searcherManager;
+            writer = new IndexWriter(directory, writerConfig());
+            searcherManager = new SearcherManager(writer, true, null);
+            old.close();
+        } catch (IOException e) {
+            throw new EpiException("Failed to reopen text index", e);
+        }
+    }
+
+    /**
+     * Abandon a rebuild, leaving this index unchanged
+     */
+    public void abortRebuild(Rebuild rebuild) {
+        synchronized (this) {
+            changes = null;
+        }
+        try {
+            rebuild.writer.close();
+        } catch (IOException e) {
+            log.warn("Failed to close abandoned text index rebuild", e);
+        } finally {
+            rebuild.discard();
+        }
+    }
+
+    /**
+     * A replacement index being built, in memory or in a directory alongside the live one
+     */
+    public class Rebuild {
+        protected final File sideLocation;
+        protected final Directory directory;
+        protected final IndexWriter writer;
+
+        protected Rebuild() {
+            sideLocation = location == null ? null : new File(location.getPath() + ".rebuild");
+            try {
+                if (sideLocation != null) {
+                    // Left by an earlier rebuild which did not complete
+                    clearDirectory(sideLocation);
+                }
+                directory = sideLocation == null ? new RAMDirectory() : FSDirectory.open(sideLocation);
+                writer = new IndexWriter(directory, writerConfig());
+            } catch (IOException e) {
+                throw new EpiException("Failed to create replacement text index", e);
+            }
+        }
+
+        /**
+         * Add the resources in a graph to the replacement index, storing any summary as for
+         * {@link RegistryIndex#updateGraph(String, Model, String)}. May be called concurrently.
+         */
+        public void add(String graphname, Model graph, String summary) {
+            try {
+                write(writer, graphname, graph, summary, false);
+            } catch (IOException e) {
+                throw new EpiException("Failed to build replacement text index", e);
+            }
+        }
+
+        protected void discard() {
+            try {
+                directory.close();
+            } catch (IOException e) {
+                log.warn("Failed to close replacement text index", e);
+            }
+            if (sideLocation != null) {
+                clearDirectory(sideLocation);
+            }
+        }
+    }
+
+    private static void clearDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * An update made during a rebuild, the graph is null for a deletion
+     */
+    static class Change {
+        final String graphname;
+        final Model graph;
+        final String summary;
+
+        Change(String graphname, Model graph, String summary) {
+            this.graphname = graphname;
+            this.graph = graph;
+            this.summary = summary;
+        }
+    }
+
+    // --- search ---
+
+    /**
+     * Search the index returning one result per matching document
+     */
+    public SearchHit[] search(Query query, int offset, int maxResults) {
+        try {
+            SearcherManager manager = searcherManager;
+            IndexSearcher searcher = manager.acquire();
+            try {
+                ScoreDoc[] hits = searcher.search(query, offset + maxResults).scoreDocs;
+                List<SearchHit> results = new ArrayList<SearchHit>(maxResults);
+                for (int i = offset; i < hits.length; i++) {
+                    results.add( hitFor(searcher.doc(hits[i].doc), hits[i]) );
+                }
+                return results.toArray( new SearchHit[results.size()] );
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new EpiException(e);
+        }
+    }
+
+    /**
+     * Search the index returning one result per matching document, starting
+     * after the given cursor (from {@link SearchHit#getCursor()}), or from the
+     * start if the cursor is null.
+     */
+    public SearchHit[] searchAfter(Query query, String after, int maxResults) {
+        SearchCursor cursor = SearchCursor.decode(after);
+        try {
+            SearcherManager manager = searcherManager;
+            IndexSearcher searcher = manager.acquire();
+            try {
+                TopDocs top = cursor == null ? searcher.search(query, maxResults) : searcher.searchAfter(cursor.toScoreDoc(), query, maxResults);
+                List<SearchHit> results = new ArrayList<SearchHit>(maxResults);
+                for (ScoreDoc hit : top.scoreDocs) {
+                    results.add( hitFor(searcher.doc(hit.doc), hit) );
+                }
+                return results.toArray( new SearchHit[results.size()] );
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new EpiException(e);
+        }
+    }
+
+    /**
+     * Search the index returning at most one result per URI, the best scoring
+     * document for that URI, skipping the first offset distinct URIs.
+     */
+    public SearchHit[] searchCollapsed(Query query, int offset, int maxResults) {
+        return searchCollapsed(query, null, offset, maxResults);
+    }
+
+    /**
+     * Search the index returning at most one result per URI, the best scoring
+     * document for that URI, starting after the given cursor (from
+     * {@link SearchHit#getCursor()}), or from the start if the cursor is null.
+     */
+    public SearchHit[] searchCollapsedAfter(Query query, String after, int maxResults) {
+        return searchCollapsed(query, SearchCursor.decode(after), 0, maxResults);
+    }
+
+    protected SearchHit[] searchCollapsed(Query query, SearchCursor cursor, int offset, int maxResults) {
+        try {
+            SearcherManager manager = searcherManager;
+            IndexSearcher searcher = manager.acquire();
+            try {
+                return searchCollapsed(searcher, query, cursor, offset, maxResults);
+            } finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new EpiException(e);
+        }
+    }
+
+    /**
+     * Collapse in a single search-after pass, hits arrive in rank order so
+     * the first hit seen for a URI is its best. When starting from a cursor,
+     * URIs returned on earlier pages are found with one filtered search per
+     * batch, restricted to the new URIs in that batch.
+     */
+    protected SearchHit[] searchCollapsed(IndexSearcher searcher, Query query, SearchCursor cursor, int offset, int maxResults) throws IOException {
+        List<SearchHit> results = new ArrayList<SearchHit>(maxResults);
+        if (maxResults <= 0) {
+            return new SearchHit[0];
+        }
+        Set<String> seen = new HashSet<String>();
+        ScoreDoc after = null;
+        if (cursor != null) {
+            after = cursor.toScoreDoc();
+            if (cursor.getURI() != null) {
+                seen.add( cursor.getURI() );
+            }
+        }
+        int skipped = 0;
+        int batch = Math.max(2 * maxResults, MIN_BATCH);
+        boolean exhausted = false;
+        while (results.size() < maxResults && !exhausted) {
+            ScoreDoc[] hits = (after == null ? searcher.search(query, batch) : searcher.searchAfter(after, query, batch)).scoreDocs;
+            exhausted = hits.length < batch;
+            Document[] docs = new Document[hits.length];
+            Set<String> fresh = new HashSet<String>();
+            for (int i = 0; i < hits.length; i++) {
+                docs[i] = searcher.doc(hits[i].doc);
+                String uri = docs[i].get(FIELD_URI);
+                if (uri != null && !seen.contains(uri)) {
+                    fresh.add(uri);
+                }
+            }
+            if (cursor != null) {
+                seen.addAll( rankedBefore(searcher, query, cursor, fresh) );
+            }
+            for (int i = 0; i < hits.length; i++) {
+                after = hits[i];
+                String uri = docs[i].get(FIELD_URI);
+                if (uri != null && !seen.add(uri)) continue;
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    results.add( hitFor(docs[i], hits[i]) );
+                    if (results.size() == maxResults) break;
+                }
+            }
+        }
+        return results.toArray( new SearchHit[results.size()] );
+    }
+
+    /**
+     * Return those of the given URIs which have a hit ranked before the
+     * cursor, and so were returned on an earlier page. Filtering leaves the
+     * scores unchanged so the ranks can be compared directly.
+     */
+    protected Set<String> rankedBefore(final IndexSearcher searcher, Query query, final SearchCursor cursor, Set<String> uris) throws IOException {
+        final Set<String> found = new HashSet<String>();
+        List<String> pending = new ArrayList<String>(uris);
+        for (int start = 0; start < pending.size(); start += MAX_FILTER_TERMS) {
+            BooleanQuery filter = new BooleanQuery();
+            for (String uri : pending.subList(start, Math.min(start + MAX_FILTER_TERMS, pending.size()))) {
+                filter.add( new TermQuery( new Term(FIELD_URI, uri) ), Occur.SHOULD );
+            }
+            searcher.search(query, new QueryWrapperFilter(filter), new Collector() {
+                Scorer scorer;
+                int docBase;
+
+                @Override
+                public void setScorer(Scorer scorer) {
+                    this.scorer = scorer;
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    if ( cursor.ranksBefore(scorer.score(), docBase + doc) ) {
+                        found.add( searcher.doc(docBase + doc).get(FIELD_URI) );
+                    }
+                }
+
+                @Override
+                public void setNextReader(AtomicReaderContext context) {
+                    docBase = context.docBase;
+                }
+
+                @Override
+                public boolean acceptsDocsOutOfOrder() {
+                    return true;
+                }
+            });
+        }
+        return found;
+    }
+
+    protected SearchHit hitFor(Document doc, ScoreDoc hit) {
+        return new SearchHit(doc.get(FIELD_URI), hit.score, doc.get(FIELD_SUMMARY), hit.doc);
+    }
+}
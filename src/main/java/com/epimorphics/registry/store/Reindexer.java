@@ -0,0 +1,245 @@
+/******************************************************************
+ * File:        Reindexer.java  
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.epimorphics.registry.core.RegisterItem;
+import com.epimorphics.registry.util.VersionUtil;
+import com.epimorphics.registry.vocab.RegistryVocab;
+import com.epimorphics.registry.vocab.Version;
+import com.epimorphics.server.core.Indexer;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.DCTerms;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Rebuilds the text indexes of a store from scratch, for use after the
+ * index configuration changes or if an index is damaged.
+ * <p>
+ * Every version of every item is read from the store, with its entity
+ * where the index holds summaries, and indexed exactly as it would have
+ * been when registered. The items are partitioned by register and the
+ * partitions, split further if large, are processed on a fork-join pool.
+ * Each item is read under its own short store lock so registrations
+ * carry on during the rebuild.
+ * </p>
+ * <p>
+ * The replacement indexes are built alongside the live ones (see
+ * {@link RegistryIndex#startRebuild()}), which keep serving searches and
+ * taking updates, and are swapped in once complete. If the rebuild fails
+ * the live indexes are left unchanged, and if a swap fails that index keeps
+ * its old content.
+ * </p>
+ */
+public class Reindexer {
+    static final Logger log = LoggerFactory.getLogger( Reindexer.class );
+
+    /** Maximum number of items handled by one task */
+    public static final int ITEMS_PER_TASK = 100;
+
+    protected final StoreBaseImpl store;
+    protected final int parallelism;
+
+    protected RegistryIndex.Rebuild current;
+    protected RegistryIndex.Rebuild history;
+
+    protected final AtomicInteger items = new AtomicInteger();
+    protected final AtomicInteger versions = new AtomicInteger();
+    protected final AtomicInteger failed = new AtomicInteger();
+
+    public Reindexer(StoreBaseImpl store, int parallelism) {
+        this.store = store;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Rebuild the indexes and swap them in
+     * @return the number of items indexed
+     */
+    public int run() {
+        RegistryIndex currentIndex = asRegistryIndex(store.indexer);
+        RegistryIndex historyIndex = store.historyIndexer == null ? null : asRegistryIndex(store.historyIndexer);
+        long start = System.currentTimeMillis();
+
+        // Start recording live changes before reading anything, so none are missed
+        current = currentIndex.startRebuild();
+        if (historyIndex != null) {
+            try {
+                history = historyIndex.startRebuild();
+            } catch (RuntimeException e) {
+                currentIndex.abortRebuild(current);
+                throw e;
+            }
+        }
+        try {
+            final List<RegisterTask> tasks = new ArrayList<RegisterTask>();
+            for (Map.Entry<String, List<String>> entry : itemsByRegister().entrySet()) {
+                tasks.add( new RegisterTask(entry.getKey(), entry.getValue()) );
+            }
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            } finally {
+                pool.shutdown();
+            }
+        } catch (RuntimeException e) {
+            currentIndex.abortRebuild(current);
+            if (history != null) {
+                historyIndex.abortRebuild(history);
+            }
+            throw e;
+        }
+
+        if (history != null) {
+            try {
+                historyIndex.finishRebuild(history);
+            } catch (RuntimeException e) {
+                currentIndex.abortRebuild(current);
+                throw e;
+            }
+        }
+        try {
+            currentIndex.finishRebuild(current);
+        } catch (RuntimeException e) {
+            // The current index keeps its old content, which is still consistent with the store
+            if (history != null) {
+                log.error("Rebuilt history index was swapped in but the current index was not, rerun the reindex");
+            }
+            throw e;
+        }
+        log.info(String.format("Reindexed %d items (%d versions, %d failed) in %dms",
+                items.get(), versions.get(), failed.get(), System.currentTimeMillis() - start));
+        return items.get();
+    }
+
+    private RegistryIndex asRegistryIndex(Indexer indexer) {
+        if (indexer instanceof RegistryIndex) {
+            return (RegistryIndex) indexer;
+        }
+        throw new EpiException("Reindexing requires a RegistryIndex, found: " + indexer);
+    }
+
+    /**
+     * Return the URIs of all register items, grouped by the URI of their register
+     */
+    protected Map<String, List<String>> itemsByRegister() {
+        Map<String, List<String>> partitions = new HashMap<String, List<String>>();
+        store.lockStore();
+        try {
+            Model model = store.getDefaultModel();
+            for (Resource item : model.listSubjectsWithProperty(RDF.type, RegistryVocab.RegisterItem).toList()) {
+                if (!item.isURIResource()) continue;
+                Resource register = item.getPropertyResourceValue(RegistryVocab.register);
+                String key = register == null ? "" : register.getURI();
+                List<String> partition = partitions.get(key);
+                if (partition == null) {
+                    partition = new ArrayList<String>();
+                    partitions.put(key, partition);
+                }
+                partition.add( item.getURI() );
+            }
+        } finally {
+            store.unlockStore();
+        }
+        return partitions;
+    }
+
+    /**
+     * Index all versions of one item
+     */
+    protected void reindexItem(String uri) {
+        List<IndexQueue.Update> updates = new ArrayList<IndexQueue.Update>();
+        store.lockStore();
+        try {
+            Model model = store.getDefaultModel();
+            Resource item = model.getResource(uri);
+            Resource currentVersion = item.getPropertyResourceValue(Version.currentVersion);
+            for (Resource version : model.listSubjectsWithProperty(DCTerms.isVersionOf, item).toList()) {
+                if (!version.isURIResource()) continue;
+                Resource root = VersionUtil.flattenInto(item, version, ModelFactory.createDefaultModel());
+                updates.addAll( store.indexUpdates(new RegisterItem(root), version.getURI(), version.equals(currentVersion)) );
+                versions.incrementAndGet();
+            }
+        } finally {
+            store.unlockStore();
+        }
+        for (IndexQueue.Update update : updates) {
+            RegistryIndex.Rebuild target = StoreBaseImpl.HISTORY_INDEX.equals(update.getTarget()) ? history : current;
+            target.add(update.graph, update.model, update.summary);
+        }
+        items.incrementAndGet();
+    }
+
+    /**
+     * Reindex a group of items from one register, splitting it if large
+     */
+    protected class RegisterTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected final String register;
+        protected final List<String> uris;
+
+        RegisterTask(String register, List<String> uris) {
+            this.register = register;
+            this.uris = uris;
+        }
+
+        @Override
+        protected void compute() {
+            int size = uris.size();
+            if (size > ITEMS_PER_TASK) {
+                invokeAll( new RegisterTask(register, uris.subList(0, size / 2)),
+                           new RegisterTask(register, uris.subList(size / 2, size)) );
+                return;
+            }
+            for (String uri : uris) {
+                try {
+                    reindexItem(uri);
+                } catch (RuntimeException e) {
+                    // One bad item should not prevent recovery of the rest
+                    failed.incrementAndGet();
+                    log.error("Failed to reindex " + uri + " in " + register, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/******************************************************************
+ * File:        SearchCursor.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+
+import java.nio.charset.Charset;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import com.epimorphics.server.webapi.WebApiException;
+
+/**
+ * The position reached by a page of search results, the score and document
+ * number of the last hit plus the URI it was collapsed on. Handed to clients
+ * as an opaque token so the next page can resume with search-after rather
+ * than re-reading the earlier pages.
+ * <p>
+ * Document numbers are only stable within one index reader so after the
+ * index is reopened a page resumed from a cursor may repeat or skip hits
+ * which tie exactly on score with the last hit of the previous page.
+ * </p>
+ */
+public class SearchCursor {
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected final float score;
+    protected final int doc;
+    protected final String uri;
+
+    public SearchCursor(float score, int doc, String uri) {
+        this.score = score;
+        this.doc = doc;
+        this.uri = uri;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    public int getDoc() {
+        return doc;
+    }
+
+    /** The collapse key of the last hit, may be null */
+    public String getURI() {
+        return uri;
+    }
+
+    public ScoreDoc toScoreDoc() {
+        return new ScoreDoc(doc, score);
+    }
+
+    /** Test if a document at the given score and number ranks before this cursor */
+    public boolean ranksBefore(float s, int d) {
+        return s > score || (s == score && d < doc);
+    }
+
+    /**
+     * Return the opaque, URL safe, token for this cursor
+     */
+    public String encode() {
+        String plain = Integer.toHexString( Float.floatToIntBits(score) ) + " " + doc + " " + (uri == null ? "" : uri);
+        return DatatypeConverter.printBase64Binary( plain.getBytes(UTF8) )
+                .replace('+', '-').replace('/', '_').replace("=", "");
+    }
+
+    /**
+     * Decode a token returned by {@link #encode()}, null or empty tokens give null
+     */
+    public static SearchCursor decode(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String b64 = token.replace('-', '+').replace('_', '/');
+            while (b64.length() % 4 != 0) {
+                b64 += "=";
+            }
+            String[] parts = new String( DatatypeConverter.parseBase64Binary(b64), UTF8 ).split(" ", 3);
+            float score = Float.intBitsToFloat( (int) Long.parseLong(parts[0], 16) );
+            int doc = Integer.parseInt(parts[1]);
+            return new SearchCursor(score, doc, parts[2].isEmpty() ? null : parts[2]);
+        } catch (RuntimeException e) {
+            throw new WebApiException(BAD_REQUEST, "Illegal search cursor: " + token);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "after " + uri + " (" + score + ", " + doc + ")";
+    }
+}
@@ -0,0 +1,85 @@
+/******************************************************************
+ * File:        SearchHit.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import com.epimorphics.server.indexers.LuceneResult;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * A single text search result, the URI of the matching item and,
+ * if the index stores them, a summary of the item and its entity.
+ */
+public class SearchHit {
+    protected String uri;
+    protected float score;
+    protected String summary;
+    protected int doc = -1;
+
+    public SearchHit(String uri, float score, String summary) {
+        this.uri = uri;
+        this.score = score;
+        this.summary = summary;
+    }
+
+    public SearchHit(String uri, float score, String summary, int doc) {
+        this(uri, score, summary);
+        this.doc = doc;
+    }
+
+    public SearchHit(LuceneResult result) {
+        this(result.getURI(), result.getScore(), null);
+    }
+
+    public String getURI() {
+        return uri;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    public boolean hasSummary() {
+        return summary != null;
+    }
+
+    /**
+     * Return the parsed summary of the item and its entity, or null if none was stored
+     * @see SearchSummary
+     */
+    public Model getSummary() {
+        return summary == null ? null : SearchSummary.parse(summary);
+    }
+
+    /**
+     * Return an opaque cursor from which the next page of results can be
+     * read, or null if the search does not support cursors
+     * @see SearchCursor
+     */
+    public String getCursor() {
+        return doc < 0 ? null : new SearchCursor(score, doc, uri).encode();
+    }
+
+    @Override
+    public String toString() {
+        return uri + " (" + score + ")";
+    }
+}
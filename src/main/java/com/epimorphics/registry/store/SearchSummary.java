@@ -0,0 +1,109 @@
+/******************************************************************
+ * File:        SearchSummary.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import com.epimorphics.registry.core.RegisterItem;
+import com.epimorphics.registry.vocab.RegistryVocab;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.util.Closure;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Compact description of a register item and its entity, stored with the
+ * item in the text index so that search results can be rendered without
+ * going back to the store.
+ * <p>
+ * The summary holds the item's label, status, notation, register and item
+ * class together with its reg:definition/reg:entity link. The entity is
+ * summarized either by its types and labels or by its full description.
+ * Summaries are serialized as N-Triples.
+ * </p>
+ */
+public class SearchSummary {
+
+    protected static final Property[] ITEM_PROPS = new Property[] {
+        RDF.type, RDFS.label, RegistryVocab.status, RegistryVocab.notation, RegistryVocab.register, RegistryVocab.itemClass };
+
+    protected static final Property[] ENTITY_PROPS = new Property[] { RDF.type, RDFS.label };
+
+    /**
+     * Summarize an item and its entity
+     * @param item the item to summarize
+     * @param entity the item's entity, may be null if not known
+     * @param withEntity if true include the full description of the entity, otherwise just its types and labels
+     */
+    public static String summarize(RegisterItem item, Resource entity, boolean withEntity) {
+        Model summary = ModelFactory.createDefaultModel();
+        Resource root = item.getRoot();
+        Resource itemS = copy(root, summary, ITEM_PROPS);
+        if (!root.hasProperty(RegistryVocab.register) && item.getRegisterURI() != null) {
+            itemS.addProperty(RegistryVocab.register, summary.createResource( item.getRegisterURI() ));
+        }
+        if (entity == null) {
+            entity = item.getEntitySpec();
+        }
+        if (entity != null && entity.isURIResource()) {
+            itemS.addProperty(RegistryVocab.definition,
+                    summary.createResource().addProperty(RegistryVocab.entity, entity));
+            if (withEntity) {
+                summary.add( Closure.closure(entity, false) );
+            } else {
+                copy(entity, summary, ENTITY_PROPS);
+            }
+        }
+        StringWriter out = new StringWriter();
+        summary.write(out, "N-TRIPLE");
+        return out.toString();
+    }
+
+    /**
+     * Parse a serialized summary
+     */
+    public static Model parse(String summary) {
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(summary), null, "N-TRIPLE");
+        return model;
+    }
+
+    /**
+     * Return the entity summarized for the given item, or null if the summary doesn't include one
+     */
+    public static Resource entityOf(Model summary, String itemURI) {
+        Resource def = summary.getResource(itemURI).getPropertyResourceValue(RegistryVocab.definition);
+        return def == null ? null : def.getPropertyResourceValue(RegistryVocab.entity);
+    }
+
+    private static Resource copy(Resource from, Model to, Property[] props) {
+        Resource copy = to.createResource( from.getURI() );
+        for (Property p : props) {
+            to.add( from.listProperties(p) );
+        }
+        return copy;
+    }
+}
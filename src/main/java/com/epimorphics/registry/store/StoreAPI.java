@@ -23,12 +23,12 @@ package com.epimorphics.registry.store;
 
 import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
 
 import com.epimorphics.registry.core.Description;
 import com.epimorphics.registry.core.ForwardingRecord;
 import com.epimorphics.registry.core.Register;
 import com.epimorphics.registry.core.RegisterItem;
-import com.epimorphics.server.indexers.LuceneResult;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Resource;
@@ -43,8 +43,26 @@ import com.hp.hpl.jena.rdf.model.Resource;
  */
 public interface StoreAPI {
 
+    /**
+     * Start a transaction for one registry operation. The transaction is bound to
+     * the calling thread until ended. A nested call joins the current transaction.
+     */
+    public StoreTransaction begin(StoreTransaction.Mode mode);
+
+    /**
+     * End a transaction started by the calling thread, releasing any locks it still holds.
+     */
+    public void end(StoreTransaction transaction);
+
+    /**
+     * Test if the store changes of a write transaction which is marked rollback only
+     * are discarded when it ends, rather than remaining in the store.
+     */
+    public boolean supportsRollback();
+
     /**
      * Lock a specific resource for updating. Will block until any existing lock is lifted.
+     * If called outside of a transaction then starts one which ends on the matching unlock.
      */
     public void lock(String uri);
 
@@ -131,6 +149,25 @@ public interface StoreAPI {
      */
     public List<RegisterItem> fetchAll(List<String> itemURIs, boolean withEntity);
 
+    /**
+     * Retrieve the current versions of a set of resources, as for {@link #getCurrentVersion(String)},
+     * in a single store call.
+     * @param uris the uris of the base VersionedThings (or plain resources) to retrieve
+     * @param target if not null then the descriptions are all added to this model, otherwise each is returned in its own model
+     * @return a list aligned with uris of the root resources of the descriptions, containing null for any unknown resource
+     */
+    public List<Resource> fetchEntities(List<String> uris, Model target);
+
+    /**
+     * Retrieve the versions of a set of RegisterItems which were valid at a given time,
+     * resolved in a single pass over the store.
+     * @param itemURIs the URIs of the base (VersionedThing) items to retrieve
+     * @param time the timestamp at which the desired versions were valid
+     * @param withEntity if true then the entity definition should be retrieved as well
+     * @return a list aligned with itemURIs, containing null for any item which had no version valid at that time
+     */
+    public List<RegisterItem> fetchAllAt(List<String> itemURIs, long time, boolean withEntity);
+
     /**
      * List all members of a register. This gives a low cost way to enumerate the core information
      * on the members without fetching and merging version and entity descriptions.
@@ -143,6 +180,21 @@ public interface StoreAPI {
      */
     public List<EntityInfo> listEntityOccurences(String uri);
 
+    /**
+     * Find all places within a register subtree where the given entity is registered.
+     * @param uri the entity to look for
+     * @param registerPrefix only registers whose URI starts with this prefix are included, null for no restriction
+     */
+    public List<EntityInfo> listEntityOccurences(String uri, String registerPrefix);
+
+    /**
+     * Batch form of listEntityOccurences, all the entities are resolved in a single store access.
+     * @param uris the entities to look for
+     * @param registerPrefix only registers whose URI starts with this prefix are included, null for no restriction
+     * @return map from each requested URI to its (possibly empty) list of occurrences
+     */
+    public Map<String, List<EntityInfo>> listEntityOccurences(List<String> uris, String registerPrefix);
+
     // --- Methods for updating information in the store ---
 
     /**
@@ -161,6 +213,13 @@ public interface StoreAPI {
      */
     public void addToRegister(Register register, RegisterItem item, Calendar timestamp);
 
+    /**
+     * Add a batch of new registered items to a parent register in a single store update.
+     * Each item is initialized as for addToRegister but the parent register is only
+     * versioned once for the whole batch.
+     */
+    public void addAllToRegister(Register register, List<RegisterItem> items, Calendar timestamp);
+
     /**
      * Update the metadata for a register, managing the versioning information.
      * @return the URI of the new version of the item
@@ -204,11 +263,24 @@ public interface StoreAPI {
     /**
      * Free text search over the registered items
      * @param query the text query, supports lucence search syntax
+     * @param includeHistory true if the labels of superseded versions should also be matched,
+     * only affects stores configured with a separate history index
      * @param offset the number of results to skip (to find desired page)
      * @param maxresults the maximum number of results to return
      * @param fields alternating list of tagname/tagvalue pairs
      */
-    public LuceneResult[] search(String query, int offset, int maxresults, String...fields);
+    public SearchHit[] search(String query, boolean includeHistory, int offset, int maxresults, String...fields);
+
+    /**
+     * Free text search over the registered items, continuing from an earlier page
+     * @param query the text query, supports lucence search syntax
+     * @param includeHistory true if the labels of superseded versions should also be matched,
+     * only affects stores configured with a separate history index
+     * @param after the cursor of the last hit of the previous page (see {@link SearchHit#getCursor()}), null to start from the first result
+     * @param maxresults the maximum number of results to return
+     * @param fields alternating list of tagname/tagvalue pairs
+     */
+    public SearchHit[] searchAfter(String query, boolean includeHistory, String after, int maxresults, String...fields);
 
     /**
      * Tests if the register contains an item with the given notation (relative URI)
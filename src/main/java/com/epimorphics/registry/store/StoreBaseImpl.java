@@ -21,18 +21,17 @@
 
 package com.epimorphics.registry.store;
 
-import static com.epimorphics.rdfutil.QueryUtil.createBindings;
-import static com.epimorphics.rdfutil.QueryUtil.selectAll;
-import static com.epimorphics.rdfutil.QueryUtil.selectFirstVar;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -46,7 +45,6 @@ import org.apache.lucene.search.TermQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.epimorphics.rdfutil.QueryUtil;
 import com.epimorphics.rdfutil.RDFUtil;
 import com.epimorphics.registry.core.DelegationRecord;
 import com.epimorphics.registry.core.Description;
@@ -56,7 +54,7 @@ import com.epimorphics.registry.core.Register;
 import com.epimorphics.registry.core.RegisterItem;
 import com.epimorphics.registry.core.Registry;
 import com.epimorphics.registry.core.Status;
-import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.PreparedQuery;
 import com.epimorphics.registry.util.VersionUtil;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.registry.vocab.Version;
@@ -69,23 +67,27 @@ import com.epimorphics.server.indexers.LuceneResult;
 import com.epimorphics.server.webapi.WebApiException;
 import com.epimorphics.util.EpiException;
 import com.epimorphics.vocabs.Time;
+import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ReadWrite;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.Literal;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
-import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResIterator;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.sparql.util.Closure;
 import com.hp.hpl.jena.util.FileManager;
 import com.hp.hpl.jena.vocabulary.DCTerms;
 import com.hp.hpl.jena.vocabulary.OWL;
 import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
 
 /**
  * Implementation of the store API which uses a triple store for persistence
@@ -95,6 +97,12 @@ import com.hp.hpl.jena.vocabulary.RDF;
  * <p>
  * This implementation uses use the ServiceConfig machinery to specify the
  * store to be used ("store" parameter) and the (optional) indexer ("indexer" parameter).
+ * If a separate history indexer is given ("historyIndexer" parameter) then the main
+ * indexer holds just the current version of each item and the history indexer holds
+ * every version, so that default searches only need the smaller current index.
+ * With "asyncIndex" set the indexes are updated by a background thread from a bounded
+ * queue ("indexQueueSize" parameter), journalled to the "indexJournal" directory if given.
+ * With "reindexOnStart" set the indexes are rebuilt from the store in the background.
  * The configured store should <strong>not</strong> use union-default.
  * </p>
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
@@ -104,11 +112,27 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
 
     public static final String STORE_PARAMETER = "store";
     public static final String INDEXER_PARAMETER = "indexer";
+    public static final String HISTORY_INDEXER_PARAMETER = "historyIndexer";
+    public static final String LOCK_TIMEOUT_PARAMETER = "lockTimeout";
+    public static final String SNAPSHOT_READS_PARAMETER = "snapshotReads";
+    public static final String ASYNC_INDEX_PARAMETER = "asyncIndex";
+    public static final String INDEX_QUEUE_SIZE_PARAMETER = "indexQueueSize";
+    public static final String INDEX_JOURNAL_PARAMETER = "indexJournal";
+    public static final String REINDEX_PARAMETER = "reindexOnStart";
+
+    // Names of the indexes as targets for index updates
+    static final String CURRENT_INDEX = "index";
+    static final String HISTORY_INDEX = "history";
 
     protected Store store;
     protected Indexer indexer;
+    protected Indexer historyIndexer;
+    protected IndexQueue indexQueue;
 //    protected DescriptionCache cache;
-    protected Map<String, Lock> locks = new HashMap<String, Lock>();
+    protected LockManager lockManager = new LockManager();
+    protected MemberIndex memberIndex = new MemberIndex();
+    protected VersionIndex versionIndex = new VersionIndex();
+    protected EntityIndex entityIndex = new EntityIndex();
 
     @Override
     public void postInit() {
@@ -116,18 +140,122 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
         String indexerName = config.get(INDEXER_PARAMETER);
         if (indexerName != null) {
             indexer = getNamedService(indexerName, Indexer.class);
+            String historyIndexerName = config.get(HISTORY_INDEXER_PARAMETER);
+            if (historyIndexerName != null) {
+                historyIndexer = getNamedService(historyIndexerName, Indexer.class);
+            }
+            Indexer versionsIndexer = historyIndexer != null ? historyIndexer : indexer;
+            if (Registry.TEXT_INDEX_INCLUDES_HISTORY && !(versionsIndexer instanceof RegistryIndex)) {
+                log.warn("Indexer is not a RegistryIndex, search results will include duplicates from older versions");
+            }
+            if ("true".equalsIgnoreCase( config.get(ASYNC_INDEX_PARAMETER) )) {
+                Map<String, Indexer> targets = new HashMap<String, Indexer>();
+                targets.put(CURRENT_INDEX, indexer);
+                if (historyIndexer != null) {
+                    targets.put(HISTORY_INDEX, historyIndexer);
+                }
+                String queueSize = config.get(INDEX_QUEUE_SIZE_PARAMETER);
+                String journal = config.get(INDEX_JOURNAL_PARAMETER);
+                indexQueue = new IndexQueue(targets,
+                        queueSize == null ? IndexQueue.DEFAULT_CAPACITY : Integer.parseInt(queueSize),
+                        journal == null ? null : new File(journal));
+                indexQueue.start();
+            }
+        }
+        String lockTimeout = config.get(LOCK_TIMEOUT_PARAMETER);
+        if (lockTimeout != null) {
+            lockManager = new LockManager( Long.parseLong(lockTimeout) );
+        }
+        if ("true".equalsIgnoreCase( config.get(SNAPSHOT_READS_PARAMETER) )) {
+            if (store.asDataset().supportsTransactions()) {
+                snapshotReads = true;
+            } else {
+                log.warn("Store does not support transactions, snapshot reads disabled");
+            }
+        }
+        if (indexer != null && "true".equalsIgnoreCase( config.get(REINDEX_PARAMETER) )) {
+            Thread reindex = new Thread("registry-reindex") {
+                @Override
+                public void run() {
+                    try {
+                        reindex( Runtime.getRuntime().availableProcessors() );
+                    } catch (RuntimeException e) {
+                        log.error("Text reindex failed, keeping the existing index", e);
+                    }
+                }
+            };
+            reindex.setDaemon(true);
+            reindex.start();
         }
     }
 
-    public synchronized void lock(String uri) {
-        Lock lock = locks.get(uri);
-        if (lock == null) {
-            lock = new ReentrantLock();
-            locks.put(uri, lock);
+    @Override
+    public StoreTransaction begin(StoreTransaction.Mode mode) {
+        StoreTransaction tx = current.get();
+        if (tx != null) {
+            // Nested operation joins the enclosing transaction
+            tx.depth++;
+            if (mode == StoreTransaction.Mode.WRITE) {
+                tx.mode = mode;
+            }
+            return tx;
         }
-        lock.lock();
-        if (indexer != null) {
-            indexer.startBatch();
+        tx = new StoreTransaction(mode);
+        current.set(tx);
+        return tx;
+    }
+
+    @Override
+    public void end(StoreTransaction tx) {
+        if (tx.getOwner() != Thread.currentThread() || current.get() != tx) {
+            throw new EpiException("Internal error: transaction ended by a thread it is not bound to");
+        }
+        if (--tx.depth > 0) return;
+        if (!tx.locks.isEmpty()) {
+            log.warn("Transaction ended while still holding locks on " + tx.locks);
+            for (int i = tx.locks.size() - 1; i >= 0; i--) {
+                lockManager.unlock( tx.locks.get(i) );
+            }
+            tx.locks.clear();
+        }
+        release(tx);
+        current.remove();
+    }
+
+    @Override
+    public boolean supportsRollback() {
+        // Only snapshot mode runs an explicit write transaction in one dataset transaction
+        return snapshotReads;
+    }
+
+    /**
+     * Return the transaction bound to the calling thread, if any
+     */
+    public StoreTransaction getTransaction() {
+        return current.get();
+    }
+
+    public void lock(String uri) {
+        StoreTransaction tx = current.get();
+        boolean started = tx == null;
+        if (started) {
+            tx = begin(StoreTransaction.Mode.WRITE);
+            tx.implicit = true;
+        }
+        try {
+            lockManager.lock(uri);
+        } catch (RuntimeException e) {
+            // Don't leave a failed implicit transaction bound to the thread
+            if (started) {
+                end(tx);
+            }
+            throw e;
+        }
+        tx.mode = StoreTransaction.Mode.WRITE;
+        tx.locks.add(uri);
+        if (!tx.indexBatch) {
+            startIndexBatch();
+            tx.indexBatch = true;
         }
     }
 
@@ -135,44 +263,256 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
      * Release the "forupdate" lock on the given URI (should be a Register or RegisterItem).
      * Throws an error if there is no such lock.
      */
-    public synchronized void unlock(String uri) {
-        Lock lock = locks.remove(uri);
-        if (lock == null) {
+    public void unlock(String uri) {
+        StoreTransaction tx = current.get();
+        if (tx == null || tx.locks.lastIndexOf(uri) == -1) {
             throw new EpiException("Internal error: tried to unlock a resource which was not locked for update");
         }
-        if (storeWriteLocked) {
-            store.unlock();
-            storeWriteLocked = false;
+        lockManager.unlock(uri);
+        tx.locks.remove( tx.locks.lastIndexOf(uri) );
+        if (!keepsStoreWrite(tx)) {
+            release(tx);
+            if (tx.implicit) {
+                current.remove();
+            }
         }
-        lock.unlock();
-        if (indexer != null) {
+    }
+
+    /**
+     * Release the store write lock and index batch held by a transaction
+     */
+    private void release(StoreTransaction tx) {
+        if (tx.storeWriteLocked) {
+            endStore();
+            tx.storeWriteLocked = false;
+        }
+        if (tx.indexBatch) {
+            endIndexBatch();
+            tx.indexBatch = false;
+        }
+        awaitIndexQueue();
+    }
+
+    /**
+     * Return the manager for the update locks, giving access to the lock wait statistics
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    // Concurrent update operations share a single index batch, which is closed by the last to finish
+    protected int indexBatches = 0;
+
+    protected synchronized void startIndexBatch() {
+        if (indexer != null && indexQueue == null && indexBatches++ == 0) {
+            indexer.startBatch();
+            if (historyIndexer != null) {
+                historyIndexer.startBatch();
+            }
+        }
+    }
+
+    protected synchronized void endIndexBatch() {
+        if (indexer != null && indexQueue == null && --indexBatches == 0) {
             indexer.endBatch();
+            if (historyIndexer != null) {
+                historyIndexer.endBatch();
+            }
         }
     }
 
+    // Transaction bound to each request thread
+    protected ThreadLocal<StoreTransaction> current = new ThreadLocal<StoreTransaction>();
 
-    // Attempt to maintain store lock through a registry block operation
-    boolean storeWriteLocked = false;
+    // Outside a write transaction each store call takes and releases its own lock. Within one
+    // the store write lock is kept from the first write until the last update lock is released.
 
-    protected synchronized void unlockStore() {
-        if (!storeWriteLocked) {
-            store.unlock();
+    protected void unlockStore() {
+        StoreTransaction tx = current.get();
+        if (tx == null || !tx.storeWriteLocked) {
+            endStore();
+            awaitIndexQueue();
+        }
+    }
+
+    protected void lockStore() {
+        StoreTransaction tx = current.get();
+        if (tx == null || !tx.storeWriteLocked) {
+            beginStore(false);
+        }
+    }
+
+    protected void lockStoreWrite() {
+        StoreTransaction tx = current.get();
+        if (tx == null || !keepsStoreWrite(tx)) {
+            beginStore(true);
+        } else if (!tx.storeWriteLocked) {
+            beginStore(true);
+            tx.storeWriteLocked = true;
+        }
+    }
+
+    // A transaction keeps the store write lock from its first write while it holds update locks.
+    // With snapshot reads an explicit transaction keeps it until it ends, so it can be aborted as a whole.
+    private boolean keepsStoreWrite(StoreTransaction tx) {
+        return !tx.locks.isEmpty() || (snapshotReads && !tx.implicit && tx.isWrite());
+    }
+
+    // Snapshot reads. When enabled, store access uses dataset transactions instead of the
+    // store lock so a reader sees the last committed state and is not blocked by a writer.
+    // The in-memory indexes must match that committed state, so index changes made by a
+    // writer are deferred until it commits, and a commit (with its index changes) waits
+    // for the short per-call read transactions in progress to finish.
+
+    protected boolean snapshotReads = false;
+    protected ReentrantReadWriteLock commitGuard = new ReentrantReadWriteLock();
+    protected ThreadLocal<DatasetTransaction> datasetTransaction = new ThreadLocal<DatasetTransaction>();
+
+    static class DatasetTransaction {
+        final boolean write;
+        int depth = 1;
+        List<Runnable> onCommit = new ArrayList<Runnable>();
+        List<IndexQueue.Update> prepared = new ArrayList<IndexQueue.Update>();
+
+        DatasetTransaction(boolean write) {
+            this.write = write;
+        }
+    }
+
+    /**
+     * Test if snapshot reads are in use
+     */
+    public boolean isSnapshotReads() {
+        return snapshotReads;
+    }
+
+    // Per thread count of store locks held, including nested dataset transactions,
+    // and the depth at which the store write lock was taken (zero if not held)
+    protected ThreadLocal<int[]> storeDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+
+    private void beginStore(boolean write) {
+        int[] depth = storeDepth.get();
+        if (write && depth[1] == 0) {
+            // The outermost write lock is taken through the lock manager so a wait for it is part of the deadlock check
+            lockManager.lockStoreWrite(new Runnable() {
+                @Override
+                public void run() {
+                    openStore(true);
+                }
+            });
+            depth[1] = depth[0] + 1;
+        } else {
+            openStore(write);
+        }
+        depth[0]++;
+    }
+
+    private void endStore() {
+        int[] depth = storeDepth.get();
+        if (depth[1] == depth[0]--) {
+            depth[1] = 0;
+            lockManager.unlockStoreWrite();
+        }
+        closeStore();
+    }
+
+    private void openStore(boolean write) {
+        if (!snapshotReads) {
+            if (write) {
+                store.lockWrite();
+            } else {
+                store.lock();
+            }
+            return;
+        }
+        DatasetTransaction dt = datasetTransaction.get();
+        if (dt != null) {
+            if (write && !dt.write) {
+                throw new EpiException("Internal error: attempt to write to the store within a snapshot read");
+            }
+            dt.depth++;
+            return;
+        }
+        if (!write) {
+            commitGuard.readLock().lock();
+        }
+        try {
+            store.asDataset().begin( write ? ReadWrite.WRITE : ReadWrite.READ );
+        } catch (RuntimeException e) {
+            if (!write) {
+                commitGuard.readLock().unlock();
+            }
+            throw e;
         }
+        datasetTransaction.set( new DatasetTransaction(write) );
     }
 
-    protected synchronized void lockStore() {
-        if (!storeWriteLocked) {
-            store.lock();
+    private void closeStore() {
+        if (!snapshotReads) {
+            store.unlock();
+            return;
+        }
+        DatasetTransaction dt = datasetTransaction.get();
+        if (--dt.depth > 0) return;
+        datasetTransaction.remove();
+        Dataset dataset = store.asDataset();
+        StoreTransaction tx = current.get();
+        if (dt.write && tx != null && tx.rollbackOnly) {
+            // Failed operation, drop its changes and the index updates waiting on them
+            try {
+                dataset.abort();
+            } finally {
+                dataset.end();
+                for (IndexQueue.Update update : dt.prepared) {
+                    indexQueue.discard(update);
+                }
+            }
+        } else if (dt.write) {
+            commitGuard.writeLock().lock();
+            try {
+                dataset.commit();
+                for (Runnable action : dt.onCommit) {
+                    action.run();
+                }
+            } finally {
+                dataset.end();
+                commitGuard.writeLock().unlock();
+            }
+        } else {
+            try {
+                dataset.end();
+            } finally {
+                commitGuard.readLock().unlock();
+            }
         }
     }
 
-    protected synchronized void lockStoreWrite() {
-        if (!storeWriteLocked) {
-            store.lockWrite();
-            storeWriteLocked = true;
+    /**
+     * Run an index update once the current store changes are visible to readers.
+     * That is immediately, unless a snapshot write transaction is in progress.
+     */
+    protected void onCommit(Runnable action) {
+        if (inSnapshotWrite()) {
+            datasetTransaction.get().onCommit.add(action);
+        } else {
+            action.run();
         }
     }
 
+    /**
+     * Test if this thread is within a snapshot write transaction. Its uncommitted view of the
+     * store must not be used to load the shared member, version or entity indexes.
+     */
+    protected boolean inSnapshotWrite() {
+        DatasetTransaction dt = snapshotReads ? datasetTransaction.get() : null;
+        return dt != null && dt.write;
+    }
+
     @Override
     public void storeGraph(String graphURI, Model model) {
         lockStoreWrite();
@@ -237,13 +577,13 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
     }
 
     protected Resource doGetCurrentVersion(String uri, Model dest) {
-        Resource root = describe(uri, dest);
+        Resource root = getDefaultModel().createResource(uri);
         Resource version = root.getPropertyResourceValue(Version.currentVersion);
-        if (version != null) {
-            Closure.closure(mod(version), false, root.getModel());
-            VersionUtil.flatten(root, version);
+        if (version == null) {
+            return describe(uri, dest);
         }
-        return root;
+        // Merge root and version in one pass rather than copying both and renaming the version
+        return VersionUtil.flattenInto(root, version, dest == null ? ModelFactory.createDefaultModel() : dest);
     }
 
     @Override
@@ -261,25 +601,26 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
     }
 
     protected Description doGetVersion(String uri, boolean flatten) {
-        Resource version = describe(uri, null);
+        Resource version = getDefaultModel().createResource(uri);
         Resource root = version.getPropertyResourceValue(DCTerms.isVersionOf);
-        if (root != null) {
-            Closure.closure(mod(root), false, version.getModel());
-            if (flatten) VersionUtil.flatten(root, version);
-        } else {
+        if (root == null) {
             throw new EpiException("Version requested on resource with no isVersionOf root");
         }
-        return asDescription(root);
+        if (flatten) {
+            return asDescription( VersionUtil.flattenInto(root, version, ModelFactory.createDefaultModel()) );
+        }
+        version = describe(uri, null);
+        Closure.closure(mod(root), false, version.getModel());
+        return asDescription( root.inModel(version.getModel()) );
     }
 
     @Override
     public Description getVersionAt(String uri, long time) {
         lockStore();
         try {
-            RDFNode version = selectFirstVar("version", getDefaultModel(), VERSION_AT_QUERY, Prefixes.getDefault(),
-                    "root", ResourceFactory.createResource(uri), "time", RDFUtil.fromDateTime(time) );
-            if (version != null && version.isURIResource()) {
-                return doGetVersion( version.asResource().getURI(), true );
+            String version = doGetVersionAt(uri, time);
+            if (version != null) {
+                return doGetVersion( version, true );
             } else {
                 return null;
             }
@@ -287,45 +628,100 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
             unlockStore();
         }
     }
-    static String VERSION_AT_QUERY =
-                    "SELECT ?version WHERE \n" +
-                    "{  \n" +
-                    "    ?version dct:isVersionOf ?root; \n" +
-                    "             version:interval [ time:hasBeginning [time:inXSDDateTime ?start] ]. \n" +
-                    "    FILTER (?start <= ?time) \n" +
-                    "    FILTER NOT EXISTS { \n" +
-                    "        ?version version:interval [ time:hasEnd [time:inXSDDateTime ?end] ]. \n" +
-                    "        FILTER (?end <= ?time) \n" +
-                    "    } \n" +
-                    "} \n";
+
+    // Assumes store is locked
+    protected String doGetVersionAt(String uri, long time) {
+        if (!versionIndex.isLoaded(uri)) {
+            if (inSnapshotWrite()) {
+                VersionIndex uncommitted = new VersionIndex();
+                loadVersionIntervals(uri, uncommitted);
+                return uncommitted.versionAt(uri, time);
+            }
+            loadVersionIntervals(uri, versionIndex);
+        }
+        return versionIndex.versionAt(uri, time);
+    }
+
+    // Assumes store is locked
+    // Finds the same versions and intervals as the old VERSION_AT_QUERY but by direct lookup
+    protected void loadVersionIntervals(String uri, VersionIndex index) {
+        Model model = getDefaultModel();
+        List<VersionIndex.Interval> intervals = new ArrayList<VersionIndex.Interval>();
+        for (Resource version : model.listSubjectsWithProperty(DCTerms.isVersionOf, model.getResource(uri)).toList()) {
+            if (!version.isURIResource()) continue;
+            Resource interval = version.getPropertyResourceValue(Version.interval);
+            intervals.add( new VersionIndex.Interval(
+                    version.getURI(),
+                    RDFUtil.getIntValue(version, OWL.versionInfo, 0),
+                    timeOf(interval, Time.hasBeginning),
+                    timeOf(interval, Time.hasEnd) ) );
+        }
+        index.load(uri, intervals);
+    }
+
+    private long timeOf(Resource interval, Property bound) {
+        Literal instant = instantOf(interval, bound);
+        return instant == null ? -1 : RDFUtil.asTimestamp(instant);
+    }
+
+    private static Literal instantOf(Resource interval, Property bound) {
+        if (interval != null) {
+            Resource instant = interval.getPropertyResourceValue(bound);
+            if (instant != null) {
+                Statement s = instant.getProperty(Time.inXSDDateTime);
+                if (s != null && s.getObject().isLiteral()) {
+                    return s.getLiteral();
+                }
+            }
+        }
+        return null;
+    }
 
 
     @Override
     public List<VersionInfo> listVersions(String uri) {
         lockStore();
         try {
-            ResultSet rs = selectAll(getDefaultModel(), VERSION_LIST_QUERY, Prefixes.getDefault(),
-                createBindings("root", ResourceFactory.createResource(uri)));
-            List<VersionInfo> results = new ArrayList<VersionInfo>();
-            while (rs.hasNext()) {
-                QuerySolution soln = rs.next();
-                VersionInfo vi = new VersionInfo(
-                        soln.getResource("version"),
-                        soln.getLiteral("info"),
-                        soln.getLiteral("from"),
-                        soln.getLiteral("to")      );
-                Resource replaces = soln.getResource("replaces");
-                if (replaces != null) {
-                    vi.setReplaces(replaces.getURI());
-                }
-                results.add( vi );
-            }
-            return results;
+            return listVersions(getDefaultModel(), uri);
         } finally {
             unlockStore();
         }
     }
-    static String VERSION_LIST_QUERY =
+
+    // Access plan equivalent to VERSION_LIST_QUERY but by direct lookup, see QueryBenchmark in the tests
+    static List<VersionInfo> listVersions(Model model, String uri) {
+        List<VersionInfo> results = new ArrayList<VersionInfo>();
+        for (ResIterator i = model.listSubjectsWithProperty(DCTerms.isVersionOf, model.getResource(uri)); i.hasNext();) {
+            Resource version = i.next();
+            Statement info = version.getProperty(OWL.versionInfo);
+            if (info == null) continue;
+            Resource interval = version.getPropertyResourceValue(Version.interval);
+            VersionInfo vi = new VersionInfo(version, info.getLiteral(),
+                    instantOf(interval, Time.hasBeginning), instantOf(interval, Time.hasEnd));
+            Resource replaces = version.getPropertyResourceValue(DCTerms.replaces);
+            if (replaces != null) {
+                vi.setReplaces(replaces.getURI());
+            }
+            results.add( vi );
+        }
+        Collections.sort(results, new Comparator<VersionInfo>() {
+            @Override
+            public int compare(VersionInfo a, VersionInfo b) {
+                return Integer.compare(versionNumber(a), versionNumber(b));
+            }
+        });
+        return results;
+    }
+
+    private static int versionNumber(VersionInfo vi) {
+        try {
+            return Integer.parseInt( vi.getVersion() );
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static final String VERSION_LIST_QUERY =
             "SELECT ?version ?info ?from ?to ?replaces WHERE \n" +
             "{  \n" +
             "    ?version dct:isVersionOf ?root; \n" +
@@ -354,27 +750,54 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
 
     @Override
     public List<EntityInfo> listEntityOccurences(String uri) {
-        Resource entity = ResourceFactory.createResource(uri);
+        return listEntityOccurences(uri, null);
+    }
+
+    @Override
+    public List<EntityInfo> listEntityOccurences(String uri, String registerPrefix) {
+        return loadEntityIndex().find(uri, registerPrefix);
+    }
+
+    @Override
+    public Map<String, List<EntityInfo>> listEntityOccurences(List<String> uris, String registerPrefix) {
+        return loadEntityIndex().find(uris, registerPrefix);
+    }
+
+    /**
+     * Return the entity index, loading it if need be. Within a snapshot write the
+     * index is built privately, since the shared one must hold only committed state.
+     */
+    protected EntityIndex loadEntityIndex() {
+        if (entityIndex.isLoaded()) {
+            return entityIndex;
+        }
         lockStore();
         try {
-            ResultSet matches = QueryUtil.selectAll(getDefaultModel(), ENTITY_FIND_QUERY, Prefixes.getDefault(), "entity", entity);
+            if (entityIndex.isLoaded()) {
+                return entityIndex;
+            }
+            EntityIndex index = inSnapshotWrite() ? new EntityIndex() : entityIndex;
+            // Unbound query finds all registered entities in one pass
+            ResultSet matches = ENTITY_FIND.select(getDefaultModel());
             List<EntityInfo> results = new ArrayList<EntityInfo>();
             while (matches.hasNext()) {
                 QuerySolution soln = matches.next();
-                results.add( new EntityInfo(entity, soln.getResource("item"), soln.getResource("register"), soln.getResource("status") ) );
+                results.add( new EntityInfo(soln.getResource("entity"), soln.getResource("item"), soln.getResource("register"), soln.getResource("status") ) );
             }
-            return results;
+            index.load(results);
+            return index;
         } finally {
             unlockStore();
         }
     }
-    static String ENTITY_FIND_QUERY =
+    static final String ENTITY_FIND_QUERY =
             "SELECT * WHERE { " +
                     "?item reg:register ?register; " +
                     "      version:currentVersion ?itemVer . " +
                     "?itemVer reg:status ?status; " +
                     "         reg:definition [reg:entity ?entity] . " +
             "}";
+    static final PreparedQuery ENTITY_FIND = new PreparedQuery(ENTITY_FIND_QUERY);
 
 
     @Override
@@ -420,7 +843,9 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                     }
                 }
             }
-            item.setEntity(entity);
+            if (!item.isFrozen()) {
+                item.setEntity(entity);
+            }
             return entity;
         } else {
             log.warn("Item requested had no entity reference: " + root);
@@ -458,6 +883,44 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
         }
     }
 
+    @Override
+    public List<Resource> fetchEntities(List<String> uris, Model target) {
+        lockStore();
+        try {
+            List<Resource> results = new ArrayList<Resource>(uris.size());
+            for ( String uri : uris ) {
+                Resource root = doGetCurrentVersion(uri, target);
+                results.add( root.hasProperty(RDF.type) ? root : null );
+            }
+            return results;
+        } finally {
+            unlockStore();
+        }
+    }
+
+    @Override
+    public List<RegisterItem> fetchAllAt(List<String> itemURIs, long time, boolean withEntity) {
+        lockStore();
+        try {
+            List<RegisterItem> results = new ArrayList<RegisterItem>(itemURIs.size());
+            for ( String uri : itemURIs ) {
+                String version = doGetVersionAt(uri, time);
+                if (version == null) {
+                    results.add(null);
+                    continue;
+                }
+                RegisterItem item = doGetVersion(version, true).asRegisterItem();
+                if (withEntity) {
+                    doGetEntity(item, null, true);
+                }
+                results.add(item);
+            }
+            return results;
+        } finally {
+            unlockStore();
+        }
+    }
+
 
 //    public  List<RegisterItem>  doFetchMembers(Register register, boolean withEntity) {
 //        lockStore();
@@ -487,10 +950,14 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
 
     @Override
     public List<RegisterEntryInfo> listMembers(Register register) {
+        String registerURI = register.getRoot().getURI();
+        List<RegisterEntryInfo> members = memberIndex.getMembers(registerURI);
+        if (members != null) {
+            return members;
+        }
         lockStore();
         try {
-            ResultSet rs = selectAll(getDefaultModel(), REGISTER_LIST_QUERY, Prefixes.getDefault(),
-                                        createBindings("register", register.getRoot()) );
+            ResultSet rs = REGISTER_LIST.select(getDefaultModel(), "register", register.getRoot());
             List<RegisterEntryInfo> results = new ArrayList<RegisterEntryInfo>();
             Resource priorItem = null;
             RegisterEntryInfo prior = null;
@@ -512,12 +979,17 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                     results.add( prior );
                 }
             }
-            return results;
+            if (inSnapshotWrite()) {
+                // Uncommitted view, don't let it reach the shared index
+                return Collections.unmodifiableList(results);
+            }
+            memberIndex.load(registerURI, results);
+            return memberIndex.getMembers(registerURI);
         } finally {
             unlockStore();
         }
     }
-    static String REGISTER_LIST_QUERY =
+    static final String REGISTER_LIST_QUERY =
             "SELECT * WHERE { " +
                     "?item reg:register ?register; " +
                     "      version:currentVersion ?itemVer; " +
@@ -527,6 +999,87 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                     "         reg:definition [reg:entity ?entity]; " +
                     "         rdfs:label ?label . " +
             "} ORDER BY ?notation";
+    static final PreparedQuery REGISTER_LIST = new PreparedQuery(REGISTER_LIST_QUERY);
+
+    /**
+     * Drop all cached membership, version and entity information, it will be rebuilt from the store on demand
+     */
+    public void resetIndexes() {
+        memberIndex.clear();
+        versionIndex.clear();
+        entityIndex.clear();
+    }
+
+    // Assumes store is locked
+    protected void updateIndexes(Resource itemRoot) {
+        indexMember(itemRoot);
+        indexEntity(itemRoot);
+    }
+
+    // Assumes store is locked
+    // Equivalent to an ENTITY_FIND_QUERY solution for a single item, but using direct lookup
+    protected void indexEntity(Resource itemRoot) {
+        if (!entityIndex.isLoaded()) return;
+        Resource item = mod(itemRoot);
+        Resource register = item.getPropertyResourceValue(RegistryVocab.register);
+        Resource itemVer = item.getPropertyResourceValue(Version.currentVersion);
+        Resource status = itemVer == null ? null : itemVer.getPropertyResourceValue(RegistryVocab.status);
+        Resource definition = itemVer == null ? null : itemVer.getPropertyResourceValue(RegistryVocab.definition);
+        Resource entity = definition == null ? null : definition.getPropertyResourceValue(RegistryVocab.entity);
+        final String itemURI = item.getURI();
+        final EntityInfo info = (register == null || status == null || entity == null) ? null : new EntityInfo(entity, item, register, status);
+        onCommit(new Runnable() {
+            @Override
+            public void run() {
+                if (info == null) {
+                    entityIndex.remove(itemURI);
+                } else {
+                    entityIndex.update(info);
+                }
+            }
+        });
+    }
+
+    // Assumes store is locked
+    // Equivalent to a REGISTER_LIST_QUERY solution for a single item, but using direct lookup
+    protected void indexMember(Resource itemRoot) {
+        Resource item = mod(itemRoot);
+        Resource register = item.getPropertyResourceValue(RegistryVocab.register);
+        Resource itemVer = item.getPropertyResourceValue(Version.currentVersion);
+        if (register == null || itemVer == null || !memberIndex.isLoaded(register.getURI())) return;
+
+        Resource status = itemVer.getPropertyResourceValue(RegistryVocab.status);
+        Resource definition = itemVer.getPropertyResourceValue(RegistryVocab.definition);
+        Resource entity = definition == null ? null : definition.getPropertyResourceValue(RegistryVocab.entity);
+        Statement notation = item.getProperty(RegistryVocab.notation);
+        List<Statement> labels = itemVer.listProperties(RDFS.label).toList();
+        List<Statement> types = item.listProperties(RegistryVocab.itemClass).toList();
+        final String registerURI = register.getURI();
+        if (status == null || entity == null || notation == null || labels.isEmpty() || types.isEmpty()) {
+            // Would not be matched by REGISTER_LIST_QUERY, be safe and reload
+            onCommit(new Runnable() {
+                @Override
+                public void run() {
+                    memberIndex.flush(registerURI);
+                }
+            });
+            return;
+        }
+        final RegisterEntryInfo info = new RegisterEntryInfo(status, item, entity,
+                labels.get(0).getLiteral(), types.get(0).getResource(), notation.getLiteral());
+        for (Statement s : labels) {
+            info.addLabel( s.getLiteral() );
+        }
+        for (Statement s : types) {
+            info.addType( s.getResource() );
+        }
+        onCommit(new Runnable() {
+            @Override
+            public void run() {
+                memberIndex.update(registerURI, info);
+            }
+        });
+    }
 
 
     @Override
@@ -548,6 +1101,12 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
         lockStoreWrite();
         try {
             getDefaultModel().add( bootmodel );
+            onCommit(new Runnable() {
+                @Override
+                public void run() {
+                    resetIndexes();
+                }
+            });
         } finally {
             unlock("/");
         }
@@ -570,6 +1129,32 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                 modCurrent(register).addProperty(RegistryVocab.subregister, entity);
             }
             modCurrent(register).removeAll(DCTerms.modified).addProperty(DCTerms.modified, getDefaultModel().createTypedLiteral(now));
+            updateIndexes(item.getRoot());
+        } finally {
+            unlockStore();
+        }
+    }
+
+    @Override
+    public void addAllToRegister(Register register, List<RegisterItem> items, Calendar now) {
+        lockStoreWrite();
+        try {
+            for (RegisterItem item : items) {
+                doUpdateItem(item, true, now);
+            }
+            doUpdate(register.getRoot(), now);
+            Resource current = modCurrent(register);
+            for (RegisterItem item : items) {
+                mod(item).addProperty(RegistryVocab.register, register.getRoot());
+                Resource entity = item.getEntity();
+                if (entity.hasProperty(RDF.type, RegistryVocab.Register)) {
+                    current.addProperty(RegistryVocab.subregister, entity);
+                }
+            }
+            current.removeAll(DCTerms.modified).addProperty(DCTerms.modified, getDefaultModel().createTypedLiteral(now));
+            for (RegisterItem item : items) {
+                updateIndexes(item.getRoot());
+            }
         } finally {
             unlockStore();
         }
@@ -624,26 +1209,184 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
         Model st = getDefaultModel();
         root.inModel(st).removeAll(OWL.versionInfo).removeAll(Version.currentVersion);
         st.add( newVersion.getModel() );
+        final String rootURI = root.getURI();
+        final String versionURI = newVersion.getURI();
+        final int versionNumber = RDFUtil.getIntValue(newVersion, OWL.versionInfo, 0);
+        final long time = cal.getTimeInMillis();
+        onCommit(new Runnable() {
+            @Override
+            public void run() {
+                versionIndex.addVersion(rootURI, versionURI, versionNumber, time);
+            }
+        });
         return newVersion.inModel(st);
     }
 
-    protected void doIndex(Resource root, String graph) {
+    protected void doIndex(RegisterItem item, String graph) {
         if (indexer != null) {
-            // If use updateGraph then get one entry per entity, which is much more efficient
-            // However, then can't search on older names for entities which have been updated
-            if (Registry.TEXT_INDEX_INCLUDES_HISTORY) {
-                indexer.addGraph(graph, root.getModel());
-            } else {
-                indexer.updateGraph(graph, root.getModel());
+            for (IndexQueue.Update update : indexUpdates(item, graph, true)) {
+                index(update);
+            }
+        }
+    }
+
+    /**
+     * Return the index updates for a version of an item, held in the given graph. Older
+     * (not current) versions are only indexed in an index which holds every version.
+     */
+    protected List<IndexQueue.Update> indexUpdates(RegisterItem item, String graph, boolean current) {
+        List<IndexQueue.Update> updates = new ArrayList<IndexQueue.Update>();
+        Resource root = item.getRoot();
+        // If use updateGraph then get one entry per entity, which is much more efficient
+        // However, then can't search on older names for entities which have been updated
+        if (historyIndexer != null) {
+            if (current) {
+                currentUpdates(item, updates);
+            }
+            updates.add( new IndexQueue.Update(HISTORY_INDEX, graph, root.getModel(), null, false) );
+        } else if (current || Registry.TEXT_INDEX_INCLUDES_HISTORY) {
+            updates.add( new IndexQueue.Update(CURRENT_INDEX, graph, root.getModel(), null, !Registry.TEXT_INDEX_INCLUDES_HISTORY) );
+        }
+        return updates;
+    }
+
+    /**
+     * Apply an index update. With asynchronous indexing the update is prepared, and journalled,
+     * as the store change is made and is submitted to the queue once the change commits. The
+     * thread waits for queue capacity only once it has released its locks, so a busy queue
+     * never holds up other requests.
+     */
+    protected void index(IndexQueue.Update update) {
+        if (indexQueue != null) {
+            final IndexQueue.Update queued = update.copy();
+            try {
+                indexQueue.prepare(queued);
+            } catch (RuntimeException e) {
+                if (inSnapshotWrite()) {
+                    // Not yet committed, so fail the change rather than lose its index update
+                    throw e;
+                }
+                log.error("Could not journal text index update for " + update.graph + ", reindex to recover", e);
+                return;
             }
+            if (inSnapshotWrite()) {
+                datasetTransaction.get().prepared.add(queued);
+            }
+            onCommit(new Runnable() {
+                @Override
+                public void run() {
+                    indexQueue.submit(queued);
+                    StoreTransaction tx = current.get();
+                    if (tx == null) {
+                        unboundIndexUpdates.get()[0]++;
+                    } else {
+                        tx.indexUpdates++;
+                    }
+                }
+            });
+        } else if (snapshotReads) {
+            // Index the change only once it is committed, it may yet be aborted
+            final IndexQueue.Update deferred = update.copy();
+            onCommit(new Runnable() {
+                @Override
+                public void run() {
+                    applyIndexUpdate(deferred);
+                }
+            });
+        } else {
+            applyIndexUpdate(update);
         }
     }
 
+    private void applyIndexUpdate(IndexQueue.Update update) {
+        update.applyTo( HISTORY_INDEX.equals(update.getTarget()) ? historyIndexer : indexer );
+    }
+
+    // Count of index updates queued by store calls made outside of any transaction
+    protected ThreadLocal<int[]> unboundIndexUpdates = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * If this thread has queued index updates and no longer holds any store or update locks,
+     * wait for the queue to be within its capacity
+     */
+    protected void awaitIndexQueue() {
+        if (indexQueue == null || storeDepth.get()[0] > 0) return;
+        StoreTransaction tx = current.get();
+        if (tx != null && (tx.storeWriteLocked || !tx.locks.isEmpty())) return;
+        if (tx == null) {
+            int[] count = unboundIndexUpdates.get();
+            if (count[0] == 0) return;
+            count[0] = 0;
+        } else {
+            if (tx.indexUpdates == 0) return;
+            tx.indexUpdates = 0;
+        }
+        indexQueue.awaitCapacity(IndexQueue.SUBMIT_TIMEOUT);
+    }
+
+    /**
+     * Rebuild the text indexes from the store, while the existing indexes stay in use, see {@link Reindexer}
+     * @param parallelism number of threads reading from the store
+     * @return the number of items reindexed
+     */
+    public int reindex(int parallelism) {
+        return new Reindexer(this, parallelism).run();
+    }
+
+    /**
+     * Return the queue for asynchronous index updates, giving access to the indexing lag, or null if indexing is synchronous
+     */
+    public IndexQueue getIndexQueue() {
+        return indexQueue;
+    }
+
+    /**
+     * Add updates indexing each resource in the current index under its own URI, so that
+     * an update replaces just that resource's previous entry. If the index stores summaries
+     * then the item's entry carries a summary of the item and its entity.
+     */
+    protected void currentUpdates(RegisterItem item, List<IndexQueue.Update> updates) {
+        Resource root = item.getRoot();
+        String summary = summaryFor(item);
+        for (ResIterator i = root.getModel().listSubjects(); i.hasNext();) {
+            Resource subject = i.next();
+            if (subject.isURIResource()) {
+                Model description = ModelFactory.createDefaultModel();
+                description.add( subject.listProperties() );
+                String itemSummary = subject.equals(root) ? summary : null;
+                updates.add( new IndexQueue.Update(CURRENT_INDEX, subject.getURI(), description, itemSummary, true) );
+            }
+        }
+    }
+
+    protected String summaryFor(RegisterItem item) {
+        if ( !(indexer instanceof RegistryIndex) ) {
+            return null;
+        }
+        RegistryIndex.Summaries level = ((RegistryIndex)indexer).getSummaries();
+        if (level == RegistryIndex.Summaries.NONE) {
+            return null;
+        }
+        Resource entity = item.getEntity();
+        if (entity == null) {
+            // Item only update, use a separate wrapper so the caller's item is unchanged
+            entity = doGetEntity(new RegisterItem(item.getRoot()), null, true);
+        }
+        return SearchSummary.summarize(item, entity, level == RegistryIndex.Summaries.ENTITY);
+    }
+
     @Override
     public String update(RegisterItem item, boolean withEntity, Calendar timestamp) {
         lockStoreWrite();
         try {
-            return doUpdateItem(item, withEntity, timestamp);
+            String version = doUpdateItem(item, withEntity, timestamp);
+            updateIndexes(item.getRoot());
+            return version;
         } finally {
             unlockStore();
         }
@@ -660,8 +1403,6 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
 
         Resource newVersion = doUpdate(item.getRoot(), now, RegisterItem.RIGID_PROPS);
 
-        doIndex(item.getRoot(), newVersion.getURI());
-
         if (withEntity) {
             Resource entity = item.getEntity();
             Resource entityRef = newVersion.getPropertyResourceValue(RegistryVocab.definition);
@@ -711,6 +1452,9 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                 entityRef.addProperty(RegistryVocab.sourceGraph, graph);
             }
         }
+
+        // Index once the entity is in place so that summaries can include it
+        doIndex(item, newVersion.getURI());
         return newVersion.getURI();
     }
 
@@ -741,10 +1485,19 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
     }
 
     @Override
-    public LuceneResult[] search(String query, int offset, int maxresults, String... fields) {
+    public SearchHit[] search(String query, boolean includeHistory, int offset, int maxresults, String... fields) {
+        return search(query, includeHistory, null, offset, maxresults, fields);
+    }
+
+    @Override
+    public SearchHit[] searchAfter(String query, boolean includeHistory, String after, int maxresults, String... fields) {
+        return search(query, includeHistory, after, 0, maxresults, fields);
+    }
+
+    protected SearchHit[] search(String query, boolean includeHistory, String after, int offset, int maxresults, String... fields) {
         if (indexer != null) {
             Analyzer analyzer = new StandardAnalyzer(org.apache.lucene.util.Version.LUCENE_40);
-            QueryParser parser = new QueryParser(org.apache.lucene.util.Version.LUCENE_40, LuceneIndex.FIELD_LABEL, analyzer);
+            QueryParser parser = new QueryParser(org.apache.lucene.util.Version.LUCENE_40, RegistryIndex.FIELD_LABEL, analyzer);
             Query search;
             try {
                 search = parser.parse( query );
@@ -766,15 +1519,37 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                 search = bq;
             }
 
-            LuceneIndex index = (LuceneIndex) indexer;
-            if (Registry.TEXT_INDEX_INCLUDES_HISTORY) {
-                return SearchFilter.search(index, search, offset, maxresults);
+            if (historyIndexer != null) {
+                return includeHistory ? search(historyIndexer, search, true, after, offset, maxresults) : search(indexer, search, false, after, offset, maxresults);
             } else {
-                return index.search(search, offset, maxresults);
+                return search(indexer, search, Registry.TEXT_INDEX_INCLUDES_HISTORY, after, offset, maxresults);
             }
         } else {
-            return new LuceneResult[0];
+            return new SearchHit[0];
+        }
+    }
+
+    /**
+     * Search a text index, optionally collapsing multiple versions of the same item,
+     * starting either after a cursor from an earlier page or at an offset
+     */
+    protected SearchHit[] search(Indexer index, Query search, boolean collapse, String after, int offset, int maxresults) {
+        if (index instanceof RegistryIndex) {
+            RegistryIndex ri = (RegistryIndex)index;
+            if (after != null) {
+                return collapse ? ri.searchCollapsedAfter(search, after, maxresults) : ri.searchAfter(search, after, maxresults);
+            }
+            return collapse ? ri.searchCollapsed(search, offset, maxresults) : ri.search(search, offset, maxresults);
+        }
+        if (after != null) {
+            throw new WebApiException(BAD_REQUEST, "Search cursors are not supported by the configured index");
         }
+        LuceneResult[] results = ((LuceneIndex)index).search(search, offset, maxresults);
+        SearchHit[] hits = new SearchHit[results.length];
+        for (int i = 0; i < results.length; i++) {
+            hits[i] = new SearchHit(results[i]);
+        }
+        return hits;
     }
 
     // Debug support only
@@ -793,7 +1568,7 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
         lockStore();
         try {
             Model m = getDefaultModel();
-            ResultSet rs = QueryUtil.selectAll(m, DELEGATION_LIST_QUERY, Prefixes.getDefault());
+            ResultSet rs = DELEGATION_LIST.select(m);
             while (rs.hasNext()) {
                 QuerySolution soln = rs.nextSolution();
                 Status status = Status.forResource( soln.getResource("status") );
@@ -831,7 +1606,7 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
             unlockStore();
         }
     }
-    static String DELEGATION_LIST_QUERY =
+    static final String DELEGATION_LIST_QUERY =
             "SELECT * WHERE {" +
             "   { " +                              // DelegatedRegister case, registers are managed, hence additional versioning
             "      ?record a reg:DelegatedRegister ; version:currentVersion ?ver ." +
@@ -852,11 +1627,12 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
             "      OPTIONAL {?record reg:enumerationObject ?object. } " +
             "   } " +
             "}";
+    static final PreparedQuery DELEGATION_LIST = new PreparedQuery(DELEGATION_LIST_QUERY);
 
 
     @Override
     public ResultSet query(String query) {
-        store.lock();
+        lockStore();
         try {
             QueryExecution exec = QueryExecutionFactory.create(query, store.asDataset());
             try {
@@ -865,7 +1641,7 @@ public class StoreBaseImpl extends ServiceBase implements StoreAPI, Service {
                 exec.close();
             }
         } finally {
-            store.unlock();
+            unlockStore();
         }
     }
 
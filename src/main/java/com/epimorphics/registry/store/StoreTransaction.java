@@ -0,0 +1,106 @@
+/******************************************************************
+ * File:        StoreTransaction.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of one registry operation against the store. A transaction is bound
+ * to the thread which began it until it is ended, and records the update
+ * locks taken and whether the store write lock is held on its behalf.
+ * <p>
+ * Read transactions take the store read lock afresh for each store call, so
+ * concurrent readers never share state. A write transaction takes the store
+ * write lock on its first write and keeps it until its last update lock is
+ * released, so that a block of related changes is applied as a unit. With
+ * snapshot reads an explicit write transaction keeps its dataset transaction
+ * until it ends, and if it has been marked rollback only, because the
+ * operation failed, its changes are aborted rather than committed.
+ * </p>
+ */
+public class StoreTransaction {
+
+    public enum Mode { READ, WRITE };
+
+    protected Mode mode;
+    protected final Thread owner;
+    protected final List<String> locks = new ArrayList<String>();
+    protected boolean storeWriteLocked = false;
+    protected boolean indexBatch = false;
+    protected boolean implicit = false;
+    protected boolean rollbackOnly = false;
+    protected int depth = 1;
+    // Count of asynchronous index updates queued by this transaction, it waits for queue capacity once it holds no locks
+    protected int indexUpdates = 0;
+
+    public StoreTransaction(Mode mode) {
+        this.mode = mode;
+        this.owner = Thread.currentThread();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isWrite() {
+        return mode == Mode.WRITE;
+    }
+
+    /**
+     * Return the thread to which this transaction is bound
+     */
+    public Thread getOwner() {
+        return owner;
+    }
+
+    /**
+     * Return the URIs of the update locks currently held by this transaction
+     */
+    public List<String> getLocks() {
+        return locks;
+    }
+
+    /**
+     * True if the transaction was started implicitly by taking an update lock
+     * outside of any transaction, it ends when that lock is released.
+     */
+    public boolean isImplicit() {
+        return implicit;
+    }
+
+    /**
+     * Mark the transaction as failed, so that its store changes are aborted where the store supports it
+     */
+    public void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    public boolean isRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    @Override
+    public String toString() {
+        return mode + " transaction on " + owner.getName() + (locks.isEmpty() ? "" : " locking " + locks);
+    }
+}
@@ -24,7 +24,6 @@ package com.epimorphics.registry.store;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.epimorphics.registry.core.Description;
 import com.epimorphics.registry.core.Register;
 import com.epimorphics.registry.core.RegisterItem;
 
@@ -43,11 +42,14 @@ public class StoreUtil {
      */
     public static List<RegisterItem> fetchMembersAt(StoreAPI store, Register register, long time, boolean withEntity) {
         List<RegisterEntryInfo> members = store.listMembers(register);
-        List<RegisterItem> results = new ArrayList<RegisterItem>( members.size() );
+        List<String> itemURIs = new ArrayList<String>( members.size() );
         for (RegisterEntryInfo member : members) {
-            Description d = store.getVersionAt(member.getItemURI(), time);
-            if (d != null) {
-                results.add( d.asRegisterItem() );
+            itemURIs.add( member.getItemURI() );
+        }
+        List<RegisterItem> results = new ArrayList<RegisterItem>( members.size() );
+        for (RegisterItem item : store.fetchAllAt(itemURIs, time, withEntity)) {
+            if (item != null) {
+                results.add( item );
             }
         }
         return results;
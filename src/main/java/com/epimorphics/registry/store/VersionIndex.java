@@ -0,0 +1,161 @@
+/******************************************************************
+ * File:        VersionIndex.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the validity intervals of the versions of each VersionedThing,
+ * used to answer point-in-time queries by binary search rather than a store query.
+ * <p>
+ * Like the MemberIndex, entries are loaded on first use and then maintained
+ * by the store as new versions are created.
+ * </p>
+ */
+public class VersionIndex {
+
+    protected Map<String, List<Interval>> index = new HashMap<String, List<Interval>>();
+
+    /**
+     * Validity interval for a single version. An end of -1 means the version is still current.
+     */
+    public static class Interval implements Comparable<Interval> {
+        protected String version;
+        protected int number;
+        protected long start;
+        protected long end;
+
+        public Interval(String version, int number, long start, long end) {
+            this.version = version;
+            this.number = number;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * True if this version was valid at the given time, with the same
+         * (start inclusive, end exclusive) semantics as the original VERSION_AT_QUERY.
+         */
+        public boolean validAt(long time) {
+            return start != -1 && start <= time && (end == -1 || end > time);
+        }
+
+        @Override
+        public int compareTo(Interval other) {
+            if (start != other.start) {
+                return start < other.start ? -1 : 1;
+            }
+            return number - other.number;
+        }
+    }
+
+    /**
+     * Test if the versions of the given root have been loaded into the index
+     */
+    public synchronized boolean isLoaded(String root) {
+        return index.containsKey(root);
+    }
+
+    /**
+     * Record the complete set of versions for a root, replacing any previous entry.
+     */
+    public synchronized void load(String root, List<Interval> versions) {
+        List<Interval> sorted = new ArrayList<Interval>( versions );
+        Collections.sort(sorted);
+        index.put(root, sorted);
+    }
+
+    /**
+     * Record the creation of a new version, closing the interval of the previously
+     * current version. Ignored if the root has not been loaded.
+     */
+    public synchronized void addVersion(String root, String version, int number, long time) {
+        List<Interval> versions = index.get(root);
+        if (versions != null) {
+            for (Interval i : versions) {
+                if (i.end == -1) {
+                    i.end = time;
+                }
+            }
+            versions.add( new Interval(version, number, time, -1) );
+            Collections.sort(versions);
+        }
+    }
+
+    /**
+     * Return the URI of the version of root which was valid at the given time, or null
+     * if there was no such version. The root must already have been loaded into the index.
+     */
+    public synchronized String versionAt(String root, long time) {
+        List<Interval> versions = index.get(root);
+        if (versions == null) {
+            throw new IllegalStateException("Version index not loaded for " + root);
+        }
+        // Find the last version starting at or before time
+        int lo = 0;
+        int hi = versions.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (versions.get(mid).start <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        // Intervals should be contiguous so first match is normally the answer,
+        // scan back in case of degenerate (zero length) intervals
+        for (int i = lo - 1; i >= 0; i--) {
+            Interval interval = versions.get(i);
+            if (interval.validAt(time)) {
+                return interval.version;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop all entries, forcing a rebuild from the store
+     */
+    public synchronized void clear() {
+        index.clear();
+    }
+}
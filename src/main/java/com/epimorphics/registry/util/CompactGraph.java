@@ -0,0 +1,367 @@
+/******************************************************************
+ * File:        CompactGraph.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * Compact immutable graph, used for frozen cached descriptions in place of
+ * a memory graph. URIs are dictionary encoded against a shared
+ * {@link NodeDictionary}, literals and blank nodes, which are rarely shared
+ * between descriptions, are held in a node table of the graph itself. The
+ * triples are held as a single int array of (subject, predicate, object)
+ * ids sorted in that order, plus a permutation of the triples sorted by
+ * object. That is 16 bytes per triple against the couple of hundred a
+ * memory graph needs for its triple objects and three hash indexes.
+ * <p>
+ * The weight of a graph counts its triples, its own nodes and any
+ * dictionary entries it added, so the cache holding it pays for new
+ * dictionary entries. The shared dictionary is retired once its entries
+ * exceed a limit in bytes (see {@link #setDictionaryLimit(long)}), which
+ * bounds the memory held by entries whose graphs have been evicted.
+ * </p>
+ * <p>
+ * Finds with a known subject or object use binary search over the matching
+ * index, other finds scan. Literal objects are matched by value, as for a
+ * memory graph. Updates are rejected (the GraphBase defaults).
+ * </p>
+ */
+public class CompactGraph extends GraphBase {
+    /** Default estimated heap, in bytes, at which the shared dictionary is retired and a fresh one started */
+    public static final long DEFAULT_DICTIONARY_LIMIT = 64L << 20;
+
+    /** Heap cost of a triple in the id arrays, nodes are counted separately */
+    public static final int TRIPLE_WEIGHT = 16;
+
+    protected static volatile NodeDictionary shared = new NodeDictionary();
+    protected static volatile long dictionaryLimit = DEFAULT_DICTIONARY_LIMIT;
+
+    protected static final int ANY = -2;
+
+    // Ids of the graph's own nodes count down from here, locals[i] has id LOCAL - i
+    protected static final int LOCAL = -3;
+
+    static final Comparator<Node> BY_HASH = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return Integer.compare(a.hashCode(), b.hashCode());
+        }
+    };
+
+    protected final NodeDictionary dictionary;
+    protected final Node[] locals;
+    protected final int[] spo;
+    protected final int[] byObject;
+    protected final long nodeWeight;
+
+    protected CompactGraph(NodeDictionary dictionary, Node[] locals, int[] spo, int[] byObject, long nodeWeight) {
+        this.dictionary = dictionary;
+        this.locals = locals;
+        this.spo = spo;
+        this.byObject = byObject;
+        this.nodeWeight = nodeWeight;
+    }
+
+    /**
+     * Return a compact copy of the given graph, encoded against the shared dictionary.
+     * The prefixes of the source graph are copied and locked.
+     */
+    public static CompactGraph encode(Graph graph) {
+        return encode(graph, dictionary());
+    }
+
+    /**
+     * Return a compact copy of the given graph, encoded against the given dictionary.
+     */
+    public static CompactGraph encode(Graph graph, NodeDictionary dictionary) {
+        List<Triple> triples = graph.find(Node.ANY, Node.ANY, Node.ANY).toList();
+        int n = triples.size();
+
+        // Node table sorted by hash, for lookup by binary search
+        Set<Node> own = new HashSet<Node>();
+        for (Triple t : triples) {
+            if (!t.getSubject().isURI()) own.add( t.getSubject() );
+            if (!t.getObject().isURI()) own.add( t.getObject() );
+        }
+        Node[] locals = own.toArray( new Node[own.size()] );
+        Arrays.sort(locals, BY_HASH);
+        Map<Node, Integer> localIds = new HashMap<Node, Integer>();
+        long weight = 0;
+        for (int i = 0; i < locals.length; i++) {
+            localIds.put(locals[i], LOCAL - i);
+            weight += NodeDictionary.weigh(locals[i]);
+        }
+
+        final int[] raw = new int[n * 3];
+        for (int i = 0; i < n; i++) {
+            Triple t = triples.get(i);
+            Node[] nodes = new Node[]{ t.getSubject(), t.getPredicate(), t.getObject() };
+            for (int k = 0; k < 3; k++) {
+                Node node = nodes[k];
+                if (node.isURI()) {
+                    int id = dictionary.lookup(node);
+                    if (id == NodeDictionary.NONE) {
+                        // Charged to this graph, a concurrent encoder may charge it too
+                        id = dictionary.encode(node);
+                        weight += NodeDictionary.weigh(node);
+                    }
+                    raw[3*i + k] = id;
+                } else {
+                    raw[3*i + k] = localIds.get(node);
+                }
+            }
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareTriples(raw, a, b, 0);
+            }
+        });
+        int[] spo = new int[n * 3];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(raw, 3 * order[i], spo, 3 * i, 3);
+        }
+
+        final int[] sorted = spo;
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareTriples(sorted, a, b, 2);
+            }
+        });
+        int[] byObject = new int[n];
+        for (int i = 0; i < n; i++) byObject[i] = order[i];
+
+        CompactGraph compact = new CompactGraph(dictionary, locals, spo, byObject, weight);
+        compact.getPrefixMapping().setNsPrefixes( graph.getPrefixMapping() ).lock();
+        return compact;
+    }
+
+    /**
+     * Compare two encoded triples, starting from the given slot (0 for SPO order, 2 for OSP order)
+     */
+    private static int compareTriples(int[] triples, int a, int b, int first) {
+        for (int k = 0; k < 3; k++) {
+            int slot = (first + k) % 3;
+            int x = triples[3*a + slot];
+            int y = triples[3*b + slot];
+            if (x != y) return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the current shared dictionary, retiring it first if it has grown too large
+     */
+    public static NodeDictionary dictionary() {
+        NodeDictionary d = shared;
+        if (d.getWeight() > dictionaryLimit) {
+            synchronized (CompactGraph.class) {
+                if (shared == d) {
+                    shared = new NodeDictionary();
+                }
+                d = shared;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Start a fresh shared dictionary, e.g. after the store has been reloaded.
+     * Existing compact graphs keep using the dictionary they were encoded against.
+     */
+    public static void resetDictionary() {
+        shared = new NodeDictionary();
+    }
+
+    /**
+     * Set the estimated heap, in bytes, at which the shared dictionary is retired
+     */
+    public static void setDictionaryLimit(long bytes) {
+        dictionaryLimit = bytes;
+    }
+
+    public NodeDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Estimated heap cost of the graph in bytes, including the dictionary entries it added
+     */
+    public long getWeight() {
+        return (long) size() * TRIPLE_WEIGHT + nodeWeight;
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        return byObject.length;
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+        Node sn = m.getMatchSubject();
+        Node pn = m.getMatchPredicate();
+        Node on = m.getMatchObject();
+        int s = id(sn);
+        int p = id(pn);
+        Node literal = null;
+        int o;
+        if (on != null && on.isLiteral()) {
+            // Match literals by value, so the id can only narrow the search if there is a subject
+            literal = on;
+            o = ANY;
+        } else {
+            o = id(on);
+        }
+        if (s == NodeDictionary.NONE || p == NodeDictionary.NONE || o == NodeDictionary.NONE) {
+            return NiceIterator.emptyIterator();
+        }
+        int n = byObject.length;
+        if (s != ANY) {
+            int from = lowerBound(s, 0, false);
+            int to = lowerBound(s + 1, from, false);
+            return new Matches(from, to, false, p, o, literal);
+        } else if (o != ANY) {
+            int from = lowerBound(o, 0, true);
+            int to = lowerBound(o + 1, from, true);
+            return new Matches(from, to, true, p, o, null);
+        } else {
+            return new Matches(0, n, false, p, o, literal);
+        }
+    }
+
+    private int id(Node n) {
+        if (n == null || !n.isConcrete()) {
+            return ANY;
+        }
+        return n.isURI() ? dictionary.lookup(n) : localId(n);
+    }
+
+    private int localId(Node n) {
+        int h = n.hashCode();
+        int lo = 0, hi = locals.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (locals[mid].hashCode() < h) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < locals.length && locals[i].hashCode() == h; i++) {
+            if (locals[i].equals(n)) {
+                return LOCAL - i;
+            }
+        }
+        return NodeDictionary.NONE;
+    }
+
+    private Node decode(int id) {
+        return id >= 0 ? dictionary.decode(id) : locals[LOCAL - id];
+    }
+
+    private int triple(int pos, boolean objectOrder) {
+        return objectOrder ? byObject[pos] : pos;
+    }
+
+    /**
+     * Return the first position whose subject (or object) id is not less than the key
+     */
+    private int lowerBound(int key, int from, boolean objectOrder) {
+        int slot = objectOrder ? 2 : 0;
+        int lo = from, hi = byObject.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (spo[3 * triple(mid, objectOrder) + slot] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Iterates over a range of one of the indexes, decoding the triples which match
+     */
+    class Matches extends NiceIterator<Triple> {
+        protected int pos;
+        protected final int end;
+        protected final boolean objectOrder;
+        protected final int p;
+        protected final int o;
+        protected final Node literal;
+        protected Triple next;
+
+        Matches(int from, int to, boolean objectOrder, int p, int o, Node literal) {
+            this.pos = from;
+            this.end = to;
+            this.objectOrder = objectOrder;
+            this.p = p;
+            this.o = o;
+            this.literal = literal;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && pos < end) {
+                int t = 3 * triple(pos++, objectOrder);
+                if ( (p == ANY || spo[t + 1] == p) && (o == ANY || spo[t + 2] == o) ) {
+                    Node object = decode( spo[t + 2] );
+                    if (literal == null || literal.sameValueAs(object)) {
+                        next = Triple.create(decode(spo[t]), decode(spo[t + 1]), object);
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Triple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Triple t = next;
+            next = null;
+            return t;
+        }
+    }
+}
@@ -21,42 +21,62 @@
 
 package com.epimorphics.registry.util;
 
-import org.apache.commons.collections.map.LRUMap;
-
 import com.epimorphics.registry.core.Description;
+import com.epimorphics.registry.core.Register;
+import com.hp.hpl.jena.rdf.model.Model;
 
 /**
  * Cache for Description objects which can optionally be injected into stores.
  * Especially useful for caching Register objects with their membership list.
+ * Bounded by the estimated memory size of the cached descriptions.
  * 
  * @author <a href="mailto:dave@epimorphics.com">Dave Reynolds</a>
  */
-public class DescriptionCache  {
-    static final int DEFAULT_SIZE = 100;
+public class DescriptionCache extends WeightedCache<Description> {
+    public static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    /** Rough in-memory size of a triple in a memory model, including its index entries, see also {@link CompactGraph#TRIPLE_WEIGHT} */
+    public static final int TRIPLE_WEIGHT = 200;
     
-    LRUMap cache;
+    /** Rough in-memory size of a RegisterEntryInfo */
+    public static final int MEMBER_WEIGHT = 400;
+
+    public static final Weigher<Description> WEIGHER = new Weigher<Description>() {
+        @Override
+        public long weigh(Description d) {
+            long w = weigh( d.getRoot().getModel() );
+            if (d instanceof Register && ((Register)d).hasMembers()) {
+                w += ((Register)d).getMembers().size() * MEMBER_WEIGHT;
+            }
+            return w;
+        }
+    };
     
-    public DescriptionCache() {
-        this(DEFAULT_SIZE);
+    /**
+     * Estimated heap cost of a model in bytes, allowing for compact frozen models
+     */
+    public static long weigh(Model model) {
+        return ReadOnlyGraph.weigh(model, TRIPLE_WEIGHT);
     }
-    
-    public DescriptionCache(int size) {
-        cache = new LRUMap(size);
+
+    public DescriptionCache() {
+        this(DEFAULT_BUDGET);
     }
     
-    public void cache(Description d) {
-        cache.put(d.getRoot().getURI(), d);
+    public DescriptionCache(long budget) {
+        this(budget, 0);
     }
     
-    public Description get(String uri) {
-        return (Description) cache.get(uri);
+    /**
+     * Construct a cache with the given memory budget in bytes and time to live 
+     * in milliseconds (zero or less for no expiry)
+     */
+    public DescriptionCache(long budget, long ttl) {
+        super("descriptions", budget, ttl, WEIGHER);
     }
     
-    public void flush(String uri) {
-        cache.remove(uri);
+    public void cache(Description d) {
+        put(d.getRoot().getURI(), d);
     }
     
-    public void clear() {
-        cache.clear();
-    }
 }
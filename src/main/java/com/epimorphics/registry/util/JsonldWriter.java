@@ -0,0 +1,218 @@
+/******************************************************************
+ * File:        JsonldWriter.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import static com.epimorphics.registry.util.RDFStreamWriter.id;
+import static com.epimorphics.registry.util.RDFStreamWriter.jsonString;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Writes compacted JSON-LD directly from a model, without building the
+ * intermediate expanded and compacted object trees that the generic
+ * JSON-LD processor needs.
+ * <p>
+ * The output is equivalent to compacting against the registry prefixes
+ * context: the context is given inline, IRIs are abbreviated to compact
+ * IRIs where a prefix matches, plain literals become strings and single
+ * values are not wrapped in arrays.
+ * </p>
+ */
+public class JsonldWriter {
+
+    /**
+     * Context compiled from a prefix mapping. Holds a namespace lookup table
+     * for compaction and the pre-rendered text of the @context object.
+     */
+    public static class Context {
+        protected Map<String, String> prefixFor = new HashMap<String, String>();
+        protected List<String> otherNamespaces = new ArrayList<String>();
+        protected String json;
+
+        public Context(PrefixMapping prefixes) {
+            StringBuilder buf = new StringBuilder("{");
+            boolean first = true;
+            for (Map.Entry<String, String> entry : prefixes.getNsPrefixMap().entrySet()) {
+                String prefix = entry.getKey();
+                String ns = entry.getValue();
+                if (prefix.isEmpty()) continue;     // Not a legal JSON-LD term
+                buf.append(first ? "\n    " : ",\n    ");
+                first = false;
+                buf.append( jsonString(prefix) ).append(": ").append( jsonString(ns) );
+                if ( !prefixFor.containsKey(ns) ) {
+                    prefixFor.put(ns, prefix);
+                    if ( !(ns.endsWith("/") || ns.endsWith("#")) ) {
+                        otherNamespaces.add(ns);
+                    }
+                }
+            }
+            json = buf.append(first ? "}" : "\n  }").toString();
+        }
+
+        /**
+         * Return the compact IRI for the given IRI using the longest matching namespace,
+         * or the IRI itself if no prefix applies.
+         */
+        public String compact(String iri) {
+            for (int i = iri.length() - 1; i > 0; i--) {
+                char c = iri.charAt(i);
+                if (c == '/' || c == '#') {
+                    String prefix = prefixFor.get( iri.substring(0, i + 1) );
+                    if (prefix != null) {
+                        return compactIRI(prefix, iri, i + 1);
+                    }
+                }
+            }
+            for (String ns : otherNamespaces) {
+                if (iri.startsWith(ns)) {
+                    return compactIRI(prefixFor.get(ns), iri, ns.length());
+                }
+            }
+            return iri;
+        }
+
+        private String compactIRI(String prefix, String iri, int split) {
+            String local = iri.substring(split);
+            if (local.startsWith("//")) {
+                // Would be read as an absolute IRI
+                return iri;
+            }
+            return prefix + ":" + local;
+        }
+
+        /**
+         * Return the JSON text for the @context object
+         */
+        public String getJson() {
+            return json;
+        }
+    }
+
+    protected Writer out;
+    protected Context context;
+
+    public JsonldWriter(Writer out, Context context) {
+        this.out = out;
+        this.context = context;
+    }
+
+    /**
+     * Write the model as a single compacted JSON-LD document. The writer is not flushed.
+     */
+    public void write(Model model) throws IOException {
+        List<Resource> subjects = model.listSubjects().toList();
+        out.write("{\n  \"@context\": ");
+        out.write( context.getJson() );
+        if (subjects.size() == 1) {
+            out.write(",");
+            writeNode(subjects.get(0), "  ");
+        } else if (!subjects.isEmpty()) {
+            out.write(",\n  \"@graph\": [");
+            boolean first = true;
+            for (Resource subject : subjects) {
+                out.write( first ? "\n    {" : ",\n    {" );
+                first = false;
+                writeNode(subject, "      ");
+                out.write("\n    }");
+            }
+            out.write("\n  ]");
+        }
+        out.write("\n}\n");
+    }
+
+    /**
+     * Write the entries of a node object, the enclosing braces are written by the caller
+     */
+    protected void writeNode(Resource subject, String indent) throws IOException {
+        Map<Property, List<RDFNode>> values = new LinkedHashMap<Property, List<RDFNode>>();
+        for (StmtIterator i = subject.listProperties(); i.hasNext();) {
+            Statement s = i.next();
+            List<RDFNode> vals = values.get( s.getPredicate() );
+            if (vals == null) {
+                vals = new ArrayList<RDFNode>(1);
+                values.put(s.getPredicate(), vals);
+            }
+            vals.add( s.getObject() );
+        }
+
+        out.write("\n");
+        out.write(indent);
+        out.write("\"@id\": ");
+        out.write( jsonString( resourceId(subject.asNode()) ) );
+        for (Map.Entry<Property, List<RDFNode>> entry : values.entrySet()) {
+            boolean isType = entry.getKey().equals(RDF.type);
+            out.write(",\n");
+            out.write(indent);
+            out.write( jsonString( isType ? "@type" : context.compact(entry.getKey().getURI()) ) );
+            out.write(": ");
+            List<RDFNode> vals = entry.getValue();
+            if (vals.size() > 1) out.write("[");
+            for (int i = 0; i < vals.size(); i++) {
+                if (i > 0) out.write(", ");
+                Node n = vals.get(i).asNode();
+                if (isType && !n.isLiteral()) {
+                    out.write( jsonString( resourceId(n) ) );
+                } else {
+                    writeValue(n);
+                }
+            }
+            if (vals.size() > 1) out.write("]");
+        }
+    }
+
+    protected void writeValue(Node n) throws IOException {
+        if (n.isLiteral()) {
+            String lex = jsonString( n.getLiteralLexicalForm() );
+            String lang = n.getLiteralLanguage();
+            String dt = n.getLiteralDatatypeURI();
+            if (lang != null && !lang.isEmpty()) {
+                out.write("{\"@value\": " + lex + ", \"@language\": " + jsonString(lang) + "}");
+            } else if (dt != null) {
+                out.write("{\"@value\": " + lex + ", \"@type\": " + jsonString( context.compact(dt) ) + "}");
+            } else {
+                out.write(lex);
+            }
+        } else {
+            out.write("{\"@id\": " + jsonString( resourceId(n) ) + "}");
+        }
+    }
+
+    protected String resourceId(Node n) {
+        return n.isURI() ? context.compact( n.getURI() ) : id(n);
+    }
+}
@@ -0,0 +1,121 @@
+/******************************************************************
+ * File:        NodeDictionary.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Interns RDF nodes, assigning each distinct node a small integer id.
+ * Graphs encoded against the same dictionary share a single copy of each
+ * node, so a URI used by thousands of cached descriptions is held once.
+ * <p>
+ * Ids are never reused and entries are never removed, a dictionary which has
+ * grown too large is simply retired in favour of a fresh one and is reclaimed
+ * once no graph encoded against it remains reachable. The estimated heap used
+ * by the entries is tracked so that the size limit can be set in bytes. Safe
+ * for concurrent use.
+ * </p>
+ */
+public class NodeDictionary {
+    /** Returned by {@link #lookup(Node)} for nodes not in the dictionary */
+    public static final int NONE = -1;
+
+    /** Approximate heap cost of an entry, excluding the characters of the node's text */
+    public static final int ENTRY_WEIGHT = 120;
+
+    protected final ConcurrentMap<Node, Integer> ids = new ConcurrentHashMap<Node, Integer>();
+    protected volatile Node[] nodes = new Node[1024];
+    protected int size = 0;
+    protected volatile long weight = 0;
+
+    /**
+     * Return the id for the node, adding it to the dictionary if necessary
+     */
+    public int encode(Node node) {
+        Integer id = ids.get(node);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(node);
+            if (id != null) {
+                return id;
+            }
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            nodes[size] = node;
+            // Publishing through the concurrent map makes the array slot visible to decoders
+            ids.put(node, size);
+            weight += weigh(node);
+            return size++;
+        }
+    }
+
+    /**
+     * Return the id of the node, or NONE if it is not in the dictionary
+     */
+    public int lookup(Node node) {
+        Integer id = ids.get(node);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Return the node with the given id
+     */
+    public Node decode(int id) {
+        return nodes[id];
+    }
+
+    /**
+     * Return the number of nodes in the dictionary
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Return the estimated heap used by the dictionary, in bytes
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Estimate the heap used by a node and its entry in a dictionary or node table, in bytes
+     */
+    public static long weigh(Node node) {
+        String text;
+        if (node.isURI()) {
+            text = node.getURI();
+        } else if (node.isLiteral()) {
+            text = node.getLiteralLexicalForm();
+        } else {
+            text = node.getBlankNodeLabel();
+        }
+        return ENTRY_WEIGHT + 2L * text.length();
+    }
+}
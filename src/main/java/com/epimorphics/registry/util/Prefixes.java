@@ -52,6 +52,7 @@ public class Prefixes {
     static PrefixMapping prefixes;
     static PrefixMapping defaultPrefixes;
     static Map<String, Object> jsonldContext;
+    static JsonldWriter.Context compiledJsonldContext;
     
     static {
         defaultPrefixes = FileManager.get().loadModel(PREFIXES_FILE);
@@ -90,6 +91,16 @@ public class Prefixes {
         return jsonldContext;
     }
     
+    /**
+     * Return the default JSON-LD context compiled for use by the JsonldWriter
+     */
+    public static JsonldWriter.Context getCompiledJsonldContext() {
+        if (compiledJsonldContext == null) {
+            compiledJsonldContext = new JsonldWriter.Context( get() );
+        }
+        return compiledJsonldContext;
+    }
+    
     /**
      * Return the URI of the prefixes register
      */
@@ -111,6 +122,7 @@ public class Prefixes {
     public static void resetCache() {
         prefixes = null;
         jsonldContext = null;
+        compiledJsonldContext = null;
     }
     
     private static PrefixMapping loadPrefixes() {
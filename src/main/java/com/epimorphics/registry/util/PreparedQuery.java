@@ -0,0 +1,131 @@
+/******************************************************************
+ * File:        PreparedQuery.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import java.util.List;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+
+/**
+ * An internal SELECT query which is parsed, compiled to algebra and optimized
+ * once, on first use, and then executed many times with different values
+ * for its parameter variables. Saves the prefix expansion, parse and
+ * optimization costs that QueryUtil.selectAll pays on every call.
+ * <p>
+ * Parameters are substituted into the compiled algebra, so parameter
+ * variables are not returned in the results. Safe for concurrent use.
+ * </p>
+ */
+public class PreparedQuery {
+    protected final String queryString;
+    protected final PrefixMapping prefixes;
+    protected volatile Compiled compiled;
+
+    /**
+     * Prepare a query which uses the default registry prefixes
+     */
+    public PreparedQuery(String queryString) {
+        this(queryString, null);
+    }
+
+    /**
+     * Prepare a query using the given prefixes, which are read when the query is first used
+     */
+    public PreparedQuery(String queryString, PrefixMapping prefixes) {
+        this.queryString = queryString;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Run the query over the model
+     * @param bindings alternating variable names (without "?") and the RDFNode values to bind them to
+     */
+    public ResultSet select(Model model, Object...bindings) {
+        Compiled c = compile();
+        Op op = c.op;
+        if (bindings.length > 0) {
+            op = Substitute.substitute(op, toBinding(bindings));
+        }
+        QueryIterator results = Algebra.exec(op, model.getGraph());
+        return ResultSetFactory.create(results, c.resultVars);
+    }
+
+    /**
+     * Return the parsed form of the query
+     */
+    public Query getQuery() {
+        return compile().query;
+    }
+
+    protected Compiled compile() {
+        Compiled c = compiled;
+        if (c == null) {
+            Query query = new Query();
+            query.setPrefixMapping( prefixes == null ? Prefixes.getDefault() : prefixes );
+            QueryFactory.parse(query, queryString, null, Syntax.defaultQuerySyntax);
+            c = new Compiled(query, Algebra.optimize( Algebra.compile(query) ));
+            // Benign race, at worst a query is compiled twice
+            compiled = c;
+        }
+        return c;
+    }
+
+    protected static Binding toBinding(Object...bindings) {
+        BindingMap binding = BindingFactory.create();
+        for (int i = 0; i + 1 < bindings.length; i += 2) {
+            binding.add( Var.alloc((String)bindings[i]), ((RDFNode)bindings[i + 1]).asNode() );
+        }
+        return binding;
+    }
+
+    @Override
+    public String toString() {
+        return queryString;
+    }
+
+    static class Compiled {
+        final Query query;
+        final Op op;
+        final List<String> resultVars;
+
+        Compiled(Query query, Op op) {
+            this.query = query;
+            this.op = op;
+            this.resultVars = query.getResultVars();
+        }
+    }
+}
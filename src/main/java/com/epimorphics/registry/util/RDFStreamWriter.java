@@ -0,0 +1,306 @@
+/******************************************************************
+ * File:        RDFStreamWriter.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.epimorphics.registry.webapi.RequestProcessor;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Incremental RDF serializer used for streamed responses. The output is
+ * written as a sequence of chunks (each a small model) so that a large
+ * result never needs to be held in memory as a whole and the first bytes
+ * can be sent as soon as the first chunk is ready.
+ * <p>
+ * Supports N-Triples, Turtle (prefix declarations written once as a header,
+ * then the triples of each chunk grouped by subject) and JSON-LD in expanded
+ * form (a top level array of node objects). A subject may appear in several
+ * chunks, which is legal in all three formats. Blank node labels are derived
+ * from the underlying node ids so are stable across chunks.
+ * </p>
+ */
+public class RDFStreamWriter {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Format {
+        NTRIPLES("nt", RequestProcessor.MIME_NTRIPLES + "; charset=UTF-8"),
+        TURTLE("ttl", RequestProcessor.FULL_MIME_TURTLE),
+        JSONLD("jsonld", JSONLDSupport.FULL_MIME_JSONLD);
+
+        protected String name;
+        protected String mime;
+
+        private Format(String name, String mime) {
+            this.name = name;
+            this.mime = mime;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        /**
+         * Return the format with the given short name (nt, ttl, jsonld), defaults to Turtle
+         */
+        public static Format forName(String name) {
+            for (Format f : values()) {
+                if (f.name.equals(name)) return f;
+            }
+            return TURTLE;
+        }
+    }
+
+    protected Writer out;
+    protected Format format;
+    protected PrefixMapping prefixes;
+    protected boolean first = true;
+
+    public RDFStreamWriter(OutputStream out, Format format, PrefixMapping prefixes) {
+        this.out = new BufferedWriter( new OutputStreamWriter(out, UTF8) );
+        this.format = format;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Write any header needed by the format, call before the first chunk
+     */
+    public void start() throws IOException {
+        if (format == Format.TURTLE) {
+            for (Map.Entry<String, String> entry : prefixes.getNsPrefixMap().entrySet()) {
+                out.write("@prefix " + entry.getKey() + ": <" + entry.getValue() + "> .\n");
+            }
+            out.write("\n");
+        } else if (format == Format.JSONLD) {
+            out.write("[");
+        }
+    }
+
+    /**
+     * Write all the triples of the given chunk and flush them to the underlying stream
+     */
+    public void write(Model chunk) throws IOException {
+        ResIterator si = chunk.listSubjects();
+        while (si.hasNext()) {
+            Resource subject = si.next();
+            switch (format) {
+            case NTRIPLES: writeNTriples(subject); break;
+            case TURTLE:   writeTurtle(subject); break;
+            case JSONLD:   writeJsonld(subject); break;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Close off the serialization, call after the last chunk
+     */
+    public void finish() throws IOException {
+        if (format == Format.JSONLD) {
+            out.write("\n]\n");
+        }
+        out.flush();
+    }
+
+    protected void writeNTriples(Resource subject) throws IOException {
+        StmtIterator i = subject.listProperties();
+        while (i.hasNext()) {
+            Statement s = i.next();
+            out.write( term(s.getSubject().asNode(), false) );
+            out.write(" ");
+            out.write( term(s.getPredicate().asNode(), false) );
+            out.write(" ");
+            out.write( term(s.getObject().asNode(), false) );
+            out.write(" .\n");
+        }
+    }
+
+    protected void writeTurtle(Resource subject) throws IOException {
+        out.write( term(subject.asNode(), true) );
+        StmtIterator i = subject.listProperties();
+        boolean firstProp = true;
+        while (i.hasNext()) {
+            Statement s = i.next();
+            out.write( firstProp ? "\n    " : " ;\n    " );
+            firstProp = false;
+            if (s.getPredicate().equals(RDF.type)) {
+                out.write("a");
+            } else {
+                out.write( term(s.getPredicate().asNode(), true) );
+            }
+            out.write(" ");
+            out.write( term(s.getObject().asNode(), true) );
+        }
+        out.write(" .\n\n");
+    }
+
+    protected void writeJsonld(Resource subject) throws IOException {
+        out.write( first ? "\n  {" : ",\n  {" );
+        first = false;
+        out.write("\"@id\": ");
+        out.write( jsonString( id(subject.asNode()) ) );
+
+        Set<Property> properties = new LinkedHashSet<Property>();
+        for (StmtIterator i = subject.listProperties(); i.hasNext();) {
+            properties.add( i.next().getPredicate() );
+        }
+        for (Property p : properties) {
+            String key = p.equals(RDF.type) ? "@type" : p.getURI();
+            out.write(",\n    ");
+            out.write( jsonString(key) );
+            out.write(": [");
+            boolean firstValue = true;
+            StmtIterator i = subject.listProperties(p);
+            while (i.hasNext()) {
+                RDFNode value = i.next().getObject();
+                if (!firstValue) out.write(", ");
+                firstValue = false;
+                if (p.equals(RDF.type) && !value.isLiteral()) {
+                    out.write( jsonString( id(value.asNode()) ) );
+                } else {
+                    out.write( jsonValue(value.asNode()) );
+                }
+            }
+            out.write("]");
+        }
+        out.write("\n  }");
+    }
+
+    protected String term(Node n, boolean abbreviate) {
+        if (n.isURI()) {
+            if (abbreviate) {
+                String qname = prefixes.qnameFor(n.getURI());
+                if (qname != null && !qname.endsWith(".")) {
+                    return qname;
+                }
+            }
+            return "<" + escape(n.getURI(), false) + ">";
+        } else if (n.isBlank()) {
+            return id(n);
+        } else {
+            String lex = "\"" + escape(n.getLiteralLexicalForm(), true) + "\"";
+            String lang = n.getLiteralLanguage();
+            String dt = n.getLiteralDatatypeURI();
+            if (lang != null && !lang.isEmpty()) {
+                return lex + "@" + lang;
+            } else if (dt != null) {
+                return lex + "^^" + term(Node.createURI(dt), abbreviate);
+            }
+            return lex;
+        }
+    }
+
+    protected String jsonValue(Node n) {
+        if (n.isLiteral()) {
+            StringBuilder value = new StringBuilder();
+            value.append("{\"@value\": ").append( jsonString(n.getLiteralLexicalForm()) );
+            String lang = n.getLiteralLanguage();
+            String dt = n.getLiteralDatatypeURI();
+            if (lang != null && !lang.isEmpty()) {
+                value.append(", \"@language\": ").append( jsonString(lang) );
+            } else if (dt != null) {
+                value.append(", \"@type\": ").append( jsonString(dt) );
+            }
+            return value.append("}").toString();
+        }
+        return "{\"@id\": " + jsonString( id(n) ) + "}";
+    }
+
+    /**
+     * Identifier for a resource node, blank nodes are given a label safe for all three formats
+     */
+    protected static String id(Node n) {
+        if (n.isURI()) {
+            return n.getURI();
+        }
+        StringBuilder label = new StringBuilder("_:b");
+        for (char c : n.getBlankNodeLabel().toCharArray()) {
+            if (Character.isLetterOrDigit(c) && c < 128) {
+                label.append(c);
+            } else {
+                label.append('x').append( Integer.toHexString(c) );
+            }
+        }
+        return label.toString();
+    }
+
+    protected static String escape(String s, boolean isString) {
+        StringBuilder buf = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\': buf.append("\\\\"); break;
+            case '"':  buf.append(isString ? "\\\"" : "%22"); break;
+            case '\n': buf.append("\\n"); break;
+            case '\r': buf.append("\\r"); break;
+            case '\t': buf.append("\\t"); break;
+            case '>':  buf.append(isString ? ">" : "%3E"); break;
+            default:
+                if (c < 0x20) {
+                    buf.append( String.format("\\u%04X", (int)c) );
+                } else {
+                    buf.append(c);
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    protected static String jsonString(String s) {
+        StringBuilder buf = new StringBuilder(s.length() + 2);
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\': buf.append("\\\\"); break;
+            case '"':  buf.append("\\\""); break;
+            case '\n': buf.append("\\n"); break;
+            case '\r': buf.append("\\r"); break;
+            case '\t': buf.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    buf.append( String.format("\\u%04x", (int)c) );
+                } else {
+                    buf.append(c);
+                }
+            }
+        }
+        return buf.append('"').toString();
+    }
+}
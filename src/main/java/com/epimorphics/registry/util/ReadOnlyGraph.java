@@ -0,0 +1,141 @@
+/******************************************************************
+ * File:        ReadOnlyGraph.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.shared.impl.PrefixMappingImpl;
+
+/**
+ * Read-only view of a graph, used to freeze descriptions so that they can
+ * be shared between threads. Every update, including bulk updates, is
+ * rejected. Frozen models are backed by a {@link CompactGraph} copy. The view has its own prefix mapping, locked for a shared frozen
+ * graph, so response-specific prefixes can be set on a per-request view
+ * (see {@link #withOwnPrefixes(Model)}) without touching the shared copy.
+ */
+public class ReadOnlyGraph extends WrappedGraph {
+    protected PrefixMapping prefixes;
+
+    public ReadOnlyGraph(Graph base) {
+        this(base, true);
+    }
+
+    protected ReadOnlyGraph(Graph base, boolean lockPrefixes) {
+        super(base);
+        prefixes = new PrefixMappingImpl().setNsPrefixes( base.getPrefixMapping() );
+        if (lockPrefixes) {
+            prefixes.lock();
+        }
+    }
+
+    /**
+     * Return a read-only, compact, copy of the given model, the model itself if it is already read-only
+     */
+    public static Model freeze(Model model) {
+        if (isReadOnly(model)) {
+            return model;
+        }
+        return ModelFactory.createModelForGraph( new ReadOnlyGraph( CompactGraph.encode(model.getGraph()) ) );
+    }
+
+    /**
+     * Return the estimated heap cost of the model's triples in bytes, using
+     * the given per-triple weight unless the model is compact.
+     */
+    public static long weigh(Model model, int tripleWeight) {
+        Graph graph = model.getGraph();
+        if (graph instanceof ReadOnlyGraph) {
+            graph = ((ReadOnlyGraph)graph).base;
+        }
+        if (graph instanceof CompactGraph) {
+            return ((CompactGraph)graph).getWeight();
+        }
+        return (long) graph.size() * tripleWeight;
+    }
+
+    /**
+     * Test if the model is a read-only view
+     */
+    public static boolean isReadOnly(Model model) {
+        return model.getGraph() instanceof ReadOnlyGraph;
+    }
+
+    /**
+     * Return a model whose prefixes can be set freely. For a read-only model
+     * this is a fresh view over the same triples, with no copying.
+     */
+    public static Model withOwnPrefixes(Model model) {
+        if (isReadOnly(model)) {
+            return ModelFactory.createModelForGraph( new ReadOnlyGraph( ((ReadOnlyGraph)model.getGraph()).base, false ) );
+        }
+        return model;
+    }
+
+    @Override
+    public void add(Triple t) {
+        throw new AddDeniedException("Read only graph", t);
+    }
+
+    @Override
+    public void performAdd(Triple t) {
+        throw new AddDeniedException("Read only graph", t);
+    }
+
+    @Override
+    public void delete(Triple t) {
+        throw new DeleteDeniedException("Read only graph", t);
+    }
+
+    @Override
+    public void performDelete(Triple t) {
+        throw new DeleteDeniedException("Read only graph", t);
+    }
+
+    public void remove(Node s, Node p, Node o) {
+        throw new DeleteDeniedException("Read only graph");
+    }
+
+    public void clear() {
+        throw new DeleteDeniedException("Read only graph");
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public BulkUpdateHandler getBulkUpdateHandler() {
+        // Route bulk updates through performAdd/performDelete, not through the base graph's handler
+        return new SimpleBulkUpdateHandler(this);
+    }
+
+    @Override
+    public PrefixMapping getPrefixMapping() {
+        return prefixes;
+    }
+}
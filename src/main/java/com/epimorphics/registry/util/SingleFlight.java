@@ -0,0 +1,98 @@
+/******************************************************************
+ * File:        SingleFlight.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.util.EpiException;
+
+/**
+ * Coalesces concurrent executions of the same keyed task. The first caller
+ * for a key runs the task, callers which arrive while it is in flight wait
+ * for and share its result (or exception). Nothing is retained once the
+ * task completes, so a later call runs the task afresh.
+ */
+public class SingleFlight<V> {
+    protected final ConcurrentMap<String, FutureTask<V>> inflight = new ConcurrentHashMap<String, FutureTask<V>>();
+    protected final AtomicLong executions = new AtomicLong();
+    protected final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Run the task, or wait for the in-flight run of a task with the same key
+     */
+    public V execute(String key, Callable<V> task) {
+        FutureTask<V> flight = new FutureTask<V>(task);
+        FutureTask<V> prior = inflight.putIfAbsent(key, flight);
+        if (prior != null) {
+            coalesced.incrementAndGet();
+            return await(prior);
+        }
+        try {
+            executions.incrementAndGet();
+            flight.run();
+            return await(flight);
+        } finally {
+            inflight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Number of times a task has been run
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * Number of calls which shared the result of an in-flight task
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    protected V await(FutureTask<V> flight) {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted waiting for shared result", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EpiException(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d executions, %d coalesced", executions.get(), coalesced.get());
+    }
+}
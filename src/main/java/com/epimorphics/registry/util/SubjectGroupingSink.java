@@ -0,0 +1,138 @@
+/******************************************************************
+ * File:        SubjectGroupingSink.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.REQUEST_ENTITY_TOO_LARGE;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import com.epimorphics.server.webapi.WebApiException;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Stream sink which groups parsed triples by subject and passes each completed
+ * group on to a handler, so that large payloads can be processed without
+ * building a model of the whole payload.
+ * <p>
+ * Each group is the description of one URI subject together with the descriptions
+ * of any blank nodes reachable from it, in a fresh model. The payload must be
+ * grouped by subject (as written by all the usual serializers) and blank node
+ * descriptions must appear before the end of the subject which uses them.
+ * At most <code>limit</code> triples are buffered at any time, payloads which
+ * need more than that are rejected.
+ * </p>
+ * <p>
+ * Call {@link #complete()} once the parse has returned to flush the final group.
+ * </p>
+ */
+public class SubjectGroupingSink extends StreamRDFBase {
+
+    /**
+     * Receives each completed subject group in turn
+     */
+    public interface GroupHandler {
+        public void group(Resource subject);
+    }
+
+    protected GroupHandler handler;
+    protected int limit;
+    protected Node currentSubject;
+    protected Model current;
+    protected Model pending = ModelFactory.createDefaultModel();
+    protected int buffered = 0;
+
+    public SubjectGroupingSink(GroupHandler handler, int limit) {
+        this.handler = handler;
+        this.limit = limit;
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        Node subject = triple.getSubject();
+        if (subject.isBlank()) {
+            pending.getGraph().add(triple);
+        } else {
+            if (!subject.equals(currentSubject)) {
+                flush();
+                currentSubject = subject;
+                current = ModelFactory.createDefaultModel();
+            }
+            current.getGraph().add(triple);
+        }
+        if (++buffered > limit) {
+            throw new WebApiException(REQUEST_ENTITY_TOO_LARGE,
+                    "Streamed payload needs more than " + limit + " triples to be held in memory, check it is grouped by subject");
+        }
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple( quad.asTriple() );
+    }
+
+    /**
+     * Flush the final group, call once the parse is complete.
+     */
+    public void complete() {
+        flush();
+        if (!pending.isEmpty()) {
+            throw new WebApiException(BAD_REQUEST, "Streamed payload contains blank nodes which are not referenced by any preceding subject");
+        }
+    }
+
+    protected void flush() {
+        if (current == null) return;
+
+        // Move across the descriptions of any blank nodes reachable from this subject
+        List<Resource> agenda = new ArrayList<Resource>();
+        for (RDFNode o : current.listObjects().toList()) {
+            if (o.isAnon()) agenda.add( o.asResource() );
+        }
+        while (!agenda.isEmpty()) {
+            Resource bnode = agenda.remove( agenda.size() - 1 );
+            for (Statement s : pending.listStatements(bnode, null, (RDFNode)null).toList()) {
+                current.add(s);
+                pending.remove(s);
+                if (s.getObject().isAnon()) {
+                    agenda.add( s.getObject().asResource() );
+                }
+            }
+        }
+
+        Resource subject = current.wrapAsResource(currentSubject);
+        current = null;
+        currentSubject = null;
+        buffered = (int) pending.size();
+        handler.group(subject);
+    }
+}
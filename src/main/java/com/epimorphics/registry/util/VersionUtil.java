@@ -21,14 +21,19 @@
 
 package com.epimorphics.registry.util;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 
 import com.epimorphics.rdfutil.RDFUtil;
 import com.epimorphics.registry.vocab.Version;
 import com.epimorphics.vocabs.Time;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.rdf.model.Literal;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
@@ -38,6 +43,7 @@ import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
 import com.hp.hpl.jena.util.ResourceUtils;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 import com.hp.hpl.jena.vocabulary.DCTerms;
 import com.hp.hpl.jena.vocabulary.OWL;
 import com.hp.hpl.jena.vocabulary.RDF;
@@ -60,6 +66,63 @@ public class VersionUtil {
         root.removeAll(DCTerms.replaces);
     }
 
+    /** Properties of the root and version which are dropped when they are merged */
+    static final Set<Node> FLATTEN_DROPPED = new HashSet<Node>();
+    static {
+        FLATTEN_DROPPED.add( Version.currentVersion.asNode() );
+        FLATTEN_DROPPED.add( Version.interval.asNode() );
+        FLATTEN_DROPPED.add( DCTerms.isVersionOf.asNode() );
+        FLATTEN_DROPPED.add( DCTerms.replaces.asNode() );
+    }
+
+    /**
+     * Copy the merge of a root VersionedThing and one of its versions into the
+     * destination model, in a single pass over the source. Gives the same result as
+     * copying the closures of both and then calling {@link #flatten(Resource, Resource)}
+     * but without the intermediate copy of the version or the rewrite of its triples.
+     * @param root the root resource, in the source model
+     * @param version the version resource, in the same source model
+     * @param dest the model to copy to
+     * @return the flattened root resource in the destination model
+     */
+    public static Resource flattenInto(Resource root, Resource version, Model dest) {
+        Graph src = root.getModel().getGraph();
+        Node rootN = root.asNode();
+        Node versionN = version.asNode();
+        Graph target = dest.getGraph();
+        Set<Node> visited = new HashSet<Node>();
+        copyFlattened(src, rootN, rootN, versionN, target, visited);
+        copyFlattened(src, versionN, rootN, versionN, target, visited);
+        return root.inModel(dest);
+    }
+
+    private static void copyFlattened(Graph src, Node subject, Node root, Node version, Graph dest, Set<Node> visited) {
+        boolean top = subject.equals(root) || subject.equals(version);
+        List<Node> bnodes = null;
+        ExtendedIterator<Triple> i = src.find(subject, Node.ANY, Node.ANY);
+        try {
+            while (i.hasNext()) {
+                Triple t = i.next();
+                if (top && FLATTEN_DROPPED.contains(t.getPredicate())) continue;
+                Node o = t.getObject();
+                if (o.equals(version)) {
+                    o = root;
+                } else if (o.isBlank() && visited.add(o)) {
+                    if (bnodes == null) bnodes = new ArrayList<Node>();
+                    bnodes.add(o);
+                }
+                dest.add( Triple.create(top ? root : subject, t.getPredicate(), o) );
+            }
+        } finally {
+            i.close();
+        }
+        if (bnodes != null) {
+            for (Node bnode : bnodes) {
+                copyFlattened(src, bnode, root, version, dest, visited);
+            }
+        }
+    }
+
     public static String versionedURI(Resource r, int version) {
         return r.getURI() + ":" + version;
     }
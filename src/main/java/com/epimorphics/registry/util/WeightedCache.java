@@ -0,0 +1,356 @@
+/******************************************************************
+ * File:        WeightedCache.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.epimorphics.util.EpiException;
+
+/**
+ * Thread-safe LRU cache bounded by the total estimated weight (in bytes) of
+ * its values rather than by the number of entries. Entries can optionally
+ * expire after a fixed time to live.
+ * <p>
+ * Concurrent misses for the same key are coalesced, the first caller runs
+ * the load and the others wait for its result. A load which overlaps a
+ * flush or clear returns its result to its callers but the result is not
+ * cached, so an invalidation is never undone by a slow load.
+ * </p>
+ */
+public class WeightedCache<V> {
+
+    /**
+     * Estimates the memory used by a cached value, in bytes
+     */
+    public interface Weigher<V> {
+        public long weigh(V value);
+    }
+
+    /**
+     * Fetches a value on a cache miss, may return null
+     */
+    public interface Loader<V> {
+        public V load(String key);
+    }
+
+    protected final String name;
+    protected final long budget;
+    protected final long ttl;
+    protected final Weigher<V> weigher;
+
+    protected final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+    protected long weight = 0;
+    protected final ConcurrentMap<String, Load<V>> loading = new ConcurrentHashMap<String, Load<V>>();
+    protected final AtomicLong generation = new AtomicLong();
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+    protected final AtomicLong evictions = new AtomicLong();
+    protected final AtomicLong expirations = new AtomicLong();
+    protected final AtomicLong loads = new AtomicLong();
+    protected final AtomicLong coalesced = new AtomicLong();
+    protected final AtomicLong loadTime = new AtomicLong();
+
+    /**
+     * Construct a cache.
+     * @param name  name used to identify the cache in statistics
+     * @param budget maximum total weight of the cached values, in bytes
+     * @param ttl time to live for entries in milliseconds, zero or less if they don't expire
+     * @param weigher estimates the weight of each value
+     */
+    public WeightedCache(String name, long budget, long ttl, Weigher<V> weigher) {
+        this.name = name;
+        this.budget = budget;
+        this.ttl = ttl;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Return the cached value for the key, or null if there isn't one
+     */
+    public V get(String key) {
+        V value = lookup(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Return the value for the key, loading and caching it if needed.
+     * Concurrent calls for the same missing key share a single load.
+     */
+    public V get(final String key, final Loader<V> loader) {
+        V value = lookup(key);
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        long gen = generation.get();
+        Load<V> load = loading.get(key);
+        if (load != null && load.generation == gen) {
+            coalesced.incrementAndGet();
+            return load.await();
+        }
+        load = new Load<V>(gen, new Callable<V>() {
+            @Override
+            public V call() {
+                return loader.load(key);
+            }
+        });
+        Load<V> prior = loading.putIfAbsent(key, load);
+        if (prior != null && prior.generation == gen) {
+            coalesced.incrementAndGet();
+            return prior.await();
+        } else if (prior != null) {
+            // Stale load still in progress, replace it
+            loading.put(key, load);
+        }
+        long start = System.nanoTime();
+        try {
+            load.task.run();
+            value = load.await();
+        } finally {
+            loading.remove(key, load);
+            loads.incrementAndGet();
+            loadTime.addAndGet( System.nanoTime() - start );
+        }
+        if (value != null && isCacheable(value)) {
+            put(key, value, gen);
+        }
+        return value;
+    }
+
+    /**
+     * Test whether a loaded value should be cached, all values are by default
+     */
+    protected boolean isCacheable(V value) {
+        return true;
+    }
+
+    /**
+     * Add a value to the cache
+     */
+    public void put(String key, V value) {
+        put(key, value, generation.get());
+    }
+
+    protected void put(String key, V value, long gen) {
+        long w = weigher.weigh(value);
+        if (w > budget) return;
+        synchronized (entries) {
+            if (gen != generation.get()) {
+                // Invalidated while the value was being loaded
+                return;
+            }
+            Entry<V> old = entries.put(key, new Entry<V>(value, w, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE));
+            if (old != null) {
+                weight -= old.weight;
+            }
+            weight += w;
+            Iterator<Entry<V>> i = entries.values().iterator();
+            while (weight > budget && i.hasNext()) {
+                Entry<V> eldest = i.next();
+                i.remove();
+                weight -= eldest.weight;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    protected V lookup(String key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires < System.currentTimeMillis()) {
+                entries.remove(key);
+                weight -= entry.weight;
+                expirations.incrementAndGet();
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * Remove any cached value for the key. Loads of the key already in progress will not be cached.
+     */
+    public void flush(String key) {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Entry<V> old = entries.remove(key);
+            if (old != null) {
+                weight -= old.weight;
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Stats getStats() {
+        int size;
+        long w;
+        synchronized (entries) {
+            size = entries.size();
+            w = weight;
+        }
+        return new Stats(name, size, w, budget, hits.get(), misses.get(), evictions.get(), expirations.get(),
+                loads.get(), coalesced.get(), loadTime.get());
+    }
+
+    /**
+     * Parse a memory budget, a number of bytes with an optional k, m or g suffix
+     */
+    public static long parseBudget(String budget) {
+        String b = budget.trim().toLowerCase();
+        long scale = 1;
+        if (b.endsWith("k")) {
+            scale = 1024;
+        } else if (b.endsWith("m")) {
+            scale = 1024 * 1024;
+        } else if (b.endsWith("g")) {
+            scale = 1024 * 1024 * 1024;
+        }
+        if (scale != 1) {
+            b = b.substring(0, b.length() - 1).trim();
+        }
+        try {
+            return Long.parseLong(b) * scale;
+        } catch (NumberFormatException e) {
+            throw new EpiException("Illegal cache budget: " + budget);
+        }
+    }
+
+    static class Entry<V> {
+        final V value;
+        final long weight;
+        final long expires;
+
+        Entry(V value, long weight, long expires) {
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    static class Load<V> {
+        final long generation;
+        final FutureTask<V> task;
+
+        Load(long generation, Callable<V> loader) {
+            this.generation = generation;
+            this.task = new FutureTask<V>(loader);
+        }
+
+        V await() {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EpiException("Interrupted waiting for cache load", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new EpiException(cause);
+            }
+        }
+    }
+
+    public static class Stats {
+        protected String name;
+        protected int entries;
+        protected long weight;
+        protected long budget;
+        protected long hits;
+        protected long misses;
+        protected long evictions;
+        protected long expirations;
+        protected long loads;
+        protected long coalesced;
+        protected long loadTime;
+
+        Stats(String name, int entries, long weight, long budget, long hits, long misses, long evictions,
+                long expirations, long loads, long coalesced, long loadTime) {
+            this.name = name;
+            this.entries = entries;
+            this.weight = weight;
+            this.budget = budget;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.loads = loads;
+            this.coalesced = coalesced;
+            this.loadTime = TimeUnit.NANOSECONDS.toMillis(loadTime);
+        }
+
+        public String getName()       { return name; }
+        public int  getEntries()      { return entries; }
+        public long getWeight()       { return weight; }
+        public long getBudget()       { return budget; }
+        public long getHits()         { return hits; }
+        public long getMisses()       { return misses; }
+        public long getEvictions()    { return evictions; }
+        public long getExpirations()  { return expirations; }
+        public long getLoads()        { return loads; }
+        public long getCoalesced()    { return coalesced; }
+        public long getLoadTime()     { return loadTime; }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d entries, %dk of %dk, %d hits, %d misses, %d evictions, %d expired, %d loads (%d coalesced) in %dms",
+                    name, entries, weight / 1024, budget / 1024, hits, misses, evictions, expirations, loads, coalesced, loadTime);
+        }
+    }
+}
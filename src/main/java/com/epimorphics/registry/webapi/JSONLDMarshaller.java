@@ -21,6 +21,7 @@
 
 package com.epimorphics.registry.webapi;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -37,10 +38,10 @@ import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
 import com.epimorphics.registry.util.JSONLDSupport;
+import com.epimorphics.registry.util.JsonldWriter;
+import com.epimorphics.registry.util.Prefixes;
 import com.hp.hpl.jena.rdf.model.Model;
 
-import com.github.jsonldjava.utils.JSONUtils;
-
 @Provider
 @Produces(JSONLDSupport.MIME_JSONLD)
 public class JSONLDMarshaller implements MessageBodyWriter<Model> {
@@ -66,11 +67,8 @@ public class JSONLDMarshaller implements MessageBodyWriter<Model> {
             MultivaluedMap<String, Object> httpHeaders,
             OutputStream entityStream) throws IOException,
             WebApplicationException {
-//        Object jsonld = JSONLDSupport.toJSONLDNoContext(t);
-        Object jsonld = JSONLDSupport.toJSONLD(t);
-        Writer writer = new OutputStreamWriter(entityStream, Charset.forName("UTF-8"));
-//        JSONUtils.write(writer, jsonld);
-        JSONUtils.writePrettyPrint(writer, jsonld);
+        Writer writer = new BufferedWriter( new OutputStreamWriter(entityStream, Charset.forName("UTF-8")) );
+        new JsonldWriter(writer, Prefixes.getCompiledJsonldContext()).write(t);
         writer.flush();
     }
 
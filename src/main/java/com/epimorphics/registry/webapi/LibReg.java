@@ -49,6 +49,7 @@ import com.epimorphics.registry.security.UserInfo;
 import com.epimorphics.registry.store.RegisterEntryInfo;
 import com.epimorphics.registry.store.StoreAPI;
 import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.ReadOnlyGraph;
 import com.epimorphics.registry.util.TypedTemplateIndex;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.server.core.Service;
@@ -98,6 +99,7 @@ public class LibReg extends ServiceBase implements LibPlugin, Service {
     }
 
     private ModelWrapper wrapModel(Model m) {
+        m = ReadOnlyGraph.withOwnPrefixes(m);
         m.setNsPrefixes( Prefixes.get() );
         return new ModelWrapper( m );
     }
@@ -464,14 +466,16 @@ public class LibReg extends ServiceBase implements LibPlugin, Service {
         Model model = ModelFactory.createDefaultModel();
         ModelWrapper modelw = new ModelWrapper(model);
         model.setNsPrefixes( Prefixes.get() );
+        List<String> uris = new ArrayList<>(results.size());
         for (FacetResultEntry result : results) {
             RDFNode value = result.getItem();
             if (value.isResource()) {
-                Resource valueR = value.asResource();
-                RegisterItem item = store.getItem(valueR.getURI(), false);
-                Resource root = item.getRoot();
-                model.add( root.getModel() );
-                wrappedResults.add( new RDFNodeWrapper(modelw, root.inModel(model)) );
+                uris.add( value.asResource().getURI() );
+            }
+        }
+        for (Resource root : store.fetchEntities(uris, model)) {
+            if (root != null) {
+                wrappedResults.add( new RDFNodeWrapper(modelw, root) );
             }
         }
         return wrappedResults;
@@ -31,6 +31,7 @@ public class Parameters {
     public static final String STATUS_UPDATE = "update";
     public static final String FORCE = "force";
     public static final String QUERY = "query";
+    public static final String HISTORY = "_history";
     public static final String TAG = "tag";
     public static final String GRAPH = "graph";
     public static final String ANNOTATION = "annotation";
@@ -45,6 +46,8 @@ public class Parameters {
     public static final String COLLECTION_METADATA_ONLY = "non-member-properties";
     public static final String FIRST_PAGE = "firstPage";
     public static final String PAGE_NUMBER = "_page";
+    public static final String PAGE_AFTER = "_after";
+    public static final String COUNT = "_count";
 
     public static final String STATUS = "status";
 
@@ -52,5 +55,6 @@ public class Parameters {
     public static final String BATCH_MANAGED = "batch-managed";
 
     public static final String FORMAT = "_format";
+    public static final String STREAM = "_stream";
 
 }
@@ -49,13 +49,16 @@ import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.jena.riot.Lang;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.UnavailableSecurityManagerException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.epimorphics.registry.commands.CommandRegister;
 import com.epimorphics.registry.commands.CommandUpdate;
+import com.epimorphics.registry.commands.CommandValidate;
 import com.epimorphics.registry.core.Command;
 import com.epimorphics.registry.core.Command.Operation;
 import com.epimorphics.registry.core.ForwardingRecord;
@@ -91,6 +94,7 @@ public class RequestProcessor extends BaseEndpoint {
     static final Logger log = LoggerFactory.getLogger( RequestProcessor.class );
 
     public static final String FULL_MIME_TURTLE = "text/turtle; charset=UTF-8";
+    public static final String MIME_NTRIPLES = "application/n-triples";
     public static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
     public static final String UI_PATH = "ui";
     private static final String SYSTEM_QUERY = "system/query";
@@ -135,6 +139,10 @@ public class RequestProcessor extends BaseEndpoint {
 
     private Response readAsRDF(PassThroughResult ptr, String mime) {
         Response response = doRead(ptr);
+        if (response.getEntity() instanceof StreamingOutput) {
+            // Streamed responses already carry the requested type
+            return response;
+        }
         return Response.ok().type(mime).entity(response.getEntity()).build();
     }
 
@@ -183,8 +191,9 @@ public class RequestProcessor extends BaseEndpoint {
     }
 
     @GET
-    @Produces({FULL_MIME_TURTLE, FULL_MIME_RDFXML, JSONLDSupport.FULL_MIME_JSONLD})
+    @Produces({FULL_MIME_TURTLE, FULL_MIME_RDFXML, JSONLDSupport.FULL_MIME_JSONLD, MIME_NTRIPLES})
     public Response read() {
+        negotiateStream( uriInfo.getQueryParameters() );
         PassThroughResult result = checkForPassThrough();
         if (result != null && result.isDone()) {
             return result.getResponse();
@@ -219,6 +228,21 @@ public class RequestProcessor extends BaseEndpoint {
         return command.execute();
     }
 
+    /**
+     * Pick the serialization for a streamed read from the Accept header,
+     * unless given explicitly by _format. N-Triples is only available streamed.
+     */
+    private void negotiateStream(MultivaluedMap<String, String> parameters) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (accept == null || parameters.containsKey(Parameters.FORMAT)) return;
+        if (accept.contains(MIME_NTRIPLES)) {
+            parameters.putSingle(Parameters.STREAM, "");
+            parameters.putSingle(Parameters.FORMAT, "nt");
+        } else if (parameters.containsKey(Parameters.STREAM) && accept.contains(JSONLDSupport.MIME_JSONLD)) {
+            parameters.putSingle(Parameters.FORMAT, "jsonld");
+        }
+    }
+
     private PassThroughResult checkForPassThrough() {
         String path = uriInfo.getPath();
         ForwardingService fs = Registry.get().getForwarder();
@@ -263,6 +287,12 @@ public class RequestProcessor extends BaseEndpoint {
     public Response validate(@Context HttpHeaders hh, InputStream body) {
         MultivaluedMap<String, String> parameters = uriInfo.getQueryParameters();
         if ( parameters.get(Parameters.VALIDATE) != null ) {
+            if (parameters.containsKey(Parameters.STREAM) && body != null) {
+                // Leave the body to be read incrementally as the results are written
+                Command command = makeCommand(Operation.Validate);
+                ((CommandValidate)command).setURISource(body);
+                return command.execute();
+            }
             if (body != null) {
                 for (String uri : FileManager.get().readWholeFileAsUTF8(body).split("\\s")) {
                     parameters.add(Parameters.VALIDATE, uri);
@@ -276,12 +306,15 @@ public class RequestProcessor extends BaseEndpoint {
     }
 
     @POST
-    @Consumes({MIME_TURTLE, MIME_RDFXML, JSONLDSupport.MIME_JSONLD})
+    @Consumes({MIME_TURTLE, MIME_RDFXML, MIME_NTRIPLES, JSONLDSupport.MIME_JSONLD})
     public Response register(@Context HttpHeaders hh, InputStream body) {
         MultivaluedMap<String, String> parameters = uriInfo.getQueryParameters();
         Command command = null;
         if ( parameters.get(Parameters.VALIDATE) != null ) {
             return validate(hh , body);
+        } else if ( parameters.containsKey(Parameters.STREAM) && body != null ) {
+            command = makeCommand(Operation.Register);
+            ((CommandRegister)command).setPayloadStream(body, getStreamLang(hh), baseURI(true));
         } else if ( parameters.get(Parameters.TAG) != null ) {
             // TODO to support tagging delegated regsiter would need a checkForPassThrough here
             command = makeCommand(Operation.Tag);
@@ -441,6 +474,22 @@ public class RequestProcessor extends BaseEndpoint {
         return Response.ok().build();
     }
 
+    /**
+     * Find the RIOT language for a streamed payload, only line or subject oriented syntaxes are supported.
+     */
+    private Lang getStreamLang(HttpHeaders hh) {
+        MediaType mediaType = hh.getMediaType();
+        String mime = mediaType == null ? "" : mediaType.getType() + "/" + mediaType.getSubtype();
+        if ( MIME_TURTLE.equals( mime ) ) {
+            return Lang.TURTLE;
+        } else if ( MIME_NTRIPLES.equals( mime ) ) {
+            return Lang.NTRIPLES;
+        } else if ( MIME_RDFXML.equals( mime ) ) {
+            return Lang.RDFXML;
+        }
+        throw new WebApiException(Status.BAD_REQUEST, "Streamed payloads must be Turtle, N-Triples or RDF/XML");
+    }
+
     public Model getBodyModel(HttpHeaders hh, InputStream body, boolean isPOST) {
         MediaType mediaType = hh.getMediaType();
         if (mediaType == null) return null;
@@ -455,6 +504,8 @@ public class RequestProcessor extends BaseEndpoint {
                 lang = FileUtils.langXML;
             } else if ( MIME_TURTLE.equals( mime ) ) {
                 lang = FileUtils.langTurtle;
+            } else if ( MIME_NTRIPLES.equals( mime ) ) {
+                lang = FileUtils.langNTriple;
             } else {
                 return null;
             }
@@ -0,0 +1,98 @@
+/******************************************************************
+ * File:        SharedRepresentation.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.webapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.epimorphics.registry.util.ReadOnlyGraph;
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Response entity for a read whose result is shared between coalesced
+ * requests. Holds a read-only view of the result model and its serialized
+ * bytes for each media type requested so far, each serialization is
+ * produced once however many requests share it.
+ * See {@link SharedRepresentationWriter}.
+ */
+public class SharedRepresentation {
+
+    public interface Serializer {
+        public void write(Model model, OutputStream out) throws IOException;
+    }
+
+    protected final Model model;
+    protected final ConcurrentMap<String, FutureTask<byte[]>> serializations = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    /**
+     * Wrap a result model, which must not be modified afterwards
+     */
+    public SharedRepresentation(Model model) {
+        this.model = ModelFactory.createModelForGraph( new ReadOnlyGraph(model.getGraph()) );
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * Return the serialization for the given media type, producing it with the serializer if needed
+     */
+    public byte[] serialize(String mediaType, final Serializer serializer) throws IOException {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.write(model, out);
+                return out.toByteArray();
+            }
+        });
+        FutureTask<byte[]> prior = serializations.putIfAbsent(mediaType, task);
+        if (prior == null) {
+            task.run();
+        } else {
+            task = prior;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EpiException("Interrupted waiting for shared serialization", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new EpiException(cause);
+        }
+    }
+}
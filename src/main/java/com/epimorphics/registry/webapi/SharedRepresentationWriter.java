@@ -0,0 +1,82 @@
+/******************************************************************
+ * File:        SharedRepresentationWriter.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.webapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.Providers;
+
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * Writes a {@link SharedRepresentation}. The serialization for each media
+ * type is produced once, by whichever provider would write the underlying
+ * model, and the bytes are reused for every request sharing the representation.
+ */
+@Provider
+public class SharedRepresentationWriter implements MessageBodyWriter<SharedRepresentation> {
+
+    @Context Providers providers;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return SharedRepresentation.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(SharedRepresentation t, Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(SharedRepresentation rep, Class<?> type, Type genericType,
+            final Annotation[] annotations, final MediaType mediaType,
+            final MultivaluedMap<String, Object> httpHeaders,
+            OutputStream entityStream) throws IOException,
+            WebApplicationException {
+        byte[] bytes = rep.serialize(mediaType.toString(), new SharedRepresentation.Serializer() {
+            @Override
+            public void write(Model model, OutputStream out) throws IOException {
+                @SuppressWarnings("unchecked")
+                Class<Model> modelClass = (Class<Model>) model.getClass();
+                MessageBodyWriter<Model> writer = providers.getMessageBodyWriter(modelClass, modelClass, annotations, mediaType);
+                if (writer == null) {
+                    throw new WebApplicationException(Response.Status.NOT_ACCEPTABLE);
+                }
+                writer.writeTo(model, modelClass, modelClass, annotations, mediaType, httpHeaders, out);
+            }
+        });
+        entityStream.write(bytes);
+    }
+}
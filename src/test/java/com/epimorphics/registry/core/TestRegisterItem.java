@@ -24,6 +24,13 @@ package com.epimorphics.registry.core;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.epimorphics.util.EpiException;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
 // Mosts tests are in the TestStoreImpl code
 public class TestRegisterItem {
 
@@ -36,6 +43,45 @@ public class TestRegisterItem {
         check("bad:1", false);   // This is a legal pchar* but not a legal notation   
     }
     
+    @Test
+    public void testFreeze() {
+        Model im = ModelFactory.createDefaultModel();
+        Resource root = im.createResource("http://example.com/reg/_red").addProperty(RDFS.label, "red");
+        Model em = ModelFactory.createDefaultModel();
+        Resource entity = em.createResource("http://example.com/reg/red").addProperty(RDFS.label, "red");
+        RegisterItem item = new RegisterItem(root);
+        item.setEntity(entity);
+        assertSame(item, item.forUpdate());
+
+        item.freeze();
+        assertTrue(item.isFrozen());
+        try {
+            item.setProperty(RDFS.label, im.createLiteral("blue"));
+            fail("Frozen item should not be modifiable");
+        } catch (EpiException e) {
+            // expected
+        }
+        try {
+            item.getEntity().addProperty(RDFS.comment, "blue");
+            fail("Frozen entity should not be modifiable");
+        } catch (JenaException e) {
+            // expected
+        }
+        try {
+            item.getRoot().getModel().add( ModelFactory.createDefaultModel().add(entity.getModel()) );
+            fail("Bulk updates to a frozen item should be rejected");
+        } catch (JenaException e) {
+            // expected
+        }
+
+        RegisterItem copy = item.forUpdate();
+        assertFalse(copy.isFrozen());
+        copy.setProperty(RDFS.label, im.createLiteral("blue"));
+        copy.getEntity().addProperty(RDFS.comment, "blue");
+        assertEquals("red", item.getRoot().getProperty(RDFS.label).getString());
+        assertFalse(item.getEntity().hasProperty(RDFS.comment));
+    }
+
     private void check(String target, boolean expected) {
         assertEquals(target, expected, RegisterItem.LEGAL_NOTATION.matcher(target).matches());
     }
@@ -0,0 +1,106 @@
+/******************************************************************
+ * File:        QueryBenchmark.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+
+package com.epimorphics.registry.store;
+
+import static com.epimorphics.rdfutil.QueryUtil.createBindings;
+import static com.epimorphics.rdfutil.QueryUtil.selectAll;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import com.epimorphics.registry.util.PreparedQuery;
+import com.epimorphics.registry.util.Prefixes;
+import com.epimorphics.registry.util.VersionUtil;
+import com.epimorphics.registry.vocab.RegistryVocab;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Microbenchmark for the internal version listing query. Compares re-parsing
+ * the query on each call (the old QueryUtil.selectAll route), a
+ * PreparedQuery, and the direct lookup that StoreBaseImpl now uses.
+ * Not a unit test, run by hand: QueryBenchmark [items] [versions] [rounds]
+ */
+public class QueryBenchmark {
+    static final String BASE = "http://location.data.gov.uk/reg/";
+
+    public static void main(String[] args) {
+        int nitems = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int nversions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Model model = ModelFactory.createDefaultModel();
+        List<String> uris = new ArrayList<String>();
+        for (int i = 0; i < nitems; i++) {
+            Model m = ModelFactory.createDefaultModel();
+            Resource item = m.createResource(BASE + "_item" + i)
+                    .addProperty(RDF.type, RegistryVocab.RegisterItem)
+                    .addProperty(RDFS.label, "item " + i);
+            for (int v = 0; v < nversions; v++) {
+                Resource ver = VersionUtil.nextVersion(item, Calendar.getInstance());
+                model.add( ver.getModel() );
+                item = item.inModel(ver.getModel());
+                VersionUtil.flatten(item, ver.inModel(ver.getModel()));
+            }
+            uris.add(item.getURI());
+        }
+        System.out.println(String.format("%d items with %d versions, %d triples", nitems, nversions, model.size()));
+
+        final PreparedQuery prepared = new PreparedQuery(StoreBaseImpl.VERSION_LIST_QUERY);
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            int n = 0;
+            for (String uri : uris) {
+                ResultSet rs = selectAll(model, StoreBaseImpl.VERSION_LIST_QUERY, Prefixes.getDefault(),
+                        createBindings("root", model.getResource(uri)));
+                while (rs.hasNext()) { rs.next(); n++; }
+            }
+            report("parse per call", start, n, uris.size());
+
+            start = System.nanoTime();
+            n = 0;
+            for (String uri : uris) {
+                ResultSet rs = prepared.select(model, "root", model.getResource(uri));
+                while (rs.hasNext()) { rs.next(); n++; }
+            }
+            report("prepared query", start, n, uris.size());
+
+            start = System.nanoTime();
+            n = 0;
+            for (String uri : uris) {
+                n += StoreBaseImpl.listVersions(model, uri).size();
+            }
+            report("direct lookup ", start, n, uris.size());
+        }
+    }
+
+    private static void report(String label, long start, int results, int calls) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%s: %6.1f us/call (%d results)", label, elapsed / 1000.0 / calls, results));
+    }
+}
@@ -0,0 +1,191 @@
+/******************************************************************
+ * File:        TestHistoryIndex.java 
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.rdfutil.RDFUtil;
+import com.epimorphics.registry.core.Register;
+import com.epimorphics.registry.core.RegisterItem;
+import com.epimorphics.registry.vocab.RegistryVocab;
+import com.epimorphics.server.core.ServiceConfig;
+import com.epimorphics.server.stores.MemStore;
+import com.epimorphics.util.TestUtil;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.util.FileUtils;
+import com.hp.hpl.jena.vocabulary.DCTerms;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Check the separation of the current and history text indexes
+ */
+public class TestHistoryIndex {
+    static final String ROOT_REGISTER = "http://location.data.gov.uk/";
+    static final String REG1 = ROOT_REGISTER + "reg1";
+    static final String REG1_ITEM = ROOT_REGISTER + "_reg1";
+
+    StoreAPI store;
+    RegistryIndex index;
+
+    @Before
+    public void setup() {
+        MemStore basestore = new MemStore();
+        basestore.init(new HashMap<String, String>(), null);
+        index = createIndex("entity");
+        RegistryIndex history = createIndex("none");
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put( StoreBaseImpl.STORE_PARAMETER, "basestore");
+        config.put( StoreBaseImpl.INDEXER_PARAMETER, "index");
+        config.put( StoreBaseImpl.HISTORY_INDEXER_PARAMETER, "history");
+        StoreBaseImpl store = new StoreBaseImpl();
+        store.init(config, null);
+
+        ServiceConfig.get().initServices("basestore", basestore, "index", index, "history", history, "store", store);
+        this.store = store;
+        store.loadBootstrap(TestStoreImpl.BOOTSTRAP_FILE);
+    }
+
+    @After
+    public void tearDown() {
+        store = null;
+        ServiceConfig.get().clearServices();
+    }
+
+    @Test
+    public void testCurrentAndHistory() {
+        Register root = store.getCurrentVersion(ROOT_REGISTER).asRegister();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("file:test/reg1.ttl", ROOT_REGISTER, FileUtils.langTurtle);
+        Calendar now = Calendar.getInstance();
+        store.addToRegister(root, RegisterItem.fromEntityRequest(RDFUtil.findRoot(m), ROOT_REGISTER, true, now), now);
+
+        checkSearch("register", false, REG1_ITEM);
+
+        RegisterItem ri = store.getItem(REG1_ITEM, false);
+        ri.setProperty(RDFS.label, ResourceFactory.createPlainLiteral("renamed register"));
+        store.update(ri, false);
+
+        checkSearch("renamed", false, REG1_ITEM);
+        checkSearch("1", false);
+        checkSearch("1", true, REG1_ITEM);
+        checkSearch("register", false, REG1_ITEM);
+        checkSearch("register", true, REG1_ITEM);
+    }
+
+    @Test
+    public void testSummaries() {
+        Register root = store.getCurrentVersion(ROOT_REGISTER).asRegister();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("file:test/reg1.ttl", ROOT_REGISTER, FileUtils.langTurtle);
+        Calendar now = Calendar.getInstance();
+        store.addToRegister(root, RegisterItem.fromEntityRequest(RDFUtil.findRoot(m), ROOT_REGISTER, true, now), now);
+
+        SearchHit[] hits = store.search("register", false, 0, 10);
+        assertEquals(1, hits.length);
+        checkSummary(hits[0], "register 1");
+
+        // Item only update still summarizes the entity
+        RegisterItem ri = store.getItem(REG1_ITEM, false);
+        ri.setProperty(RegistryVocab.status, RegistryVocab.statusExperimental);
+        store.update(ri, false);
+        hits = store.search("register", false, 0, 10);
+        assertEquals(1, hits.length);
+        Model summary = checkSummary(hits[0], "register 1");
+        assertTrue( summary.contains(summary.getResource(REG1_ITEM), RegistryVocab.status, RegistryVocab.statusExperimental) );
+
+        // The history index has no summaries
+        hits = store.search("register", true, 0, 10);
+        assertEquals(1, hits.length);
+        assertFalse( hits[0].hasSummary() );
+    }
+
+    @Test
+    public void testReindex() {
+        Register root = store.getCurrentVersion(ROOT_REGISTER).asRegister();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("file:test/reg1.ttl", ROOT_REGISTER, FileUtils.langTurtle);
+        Calendar now = Calendar.getInstance();
+        store.addToRegister(root, RegisterItem.fromEntityRequest(RDFUtil.findRoot(m), ROOT_REGISTER, true, now), now);
+        RegisterItem ri = store.getItem(REG1_ITEM, false);
+        ri.setProperty(RDFS.label, ResourceFactory.createPlainLiteral("renamed register"));
+        store.update(ri, false);
+
+        // An entry the store knows nothing about is dropped by the rebuild
+        Model stale = ModelFactory.createDefaultModel();
+        stale.createResource(ROOT_REGISTER + "_stale").addProperty(RDFS.label, "stale register");
+        index.updateGraph(ROOT_REGISTER + "_stale", stale);
+        checkSearch("stale", false, ROOT_REGISTER + "_stale");
+
+        assertTrue( ((StoreBaseImpl)store).reindex(2) > 0 );
+
+        checkSearch("stale", false);
+        checkSearch("renamed", false, REG1_ITEM);
+        checkSearch("1", false);
+        checkSearch("1", true, REG1_ITEM);
+        SearchHit[] hits = store.search("register", false, 0, 10);
+        assertEquals(1, hits.length);
+        checkSummary(hits[0], "register 1");
+    }
+
+    private Model checkSummary(SearchHit hit, String entityLabel) {
+        assertTrue( hit.hasSummary() );
+        Model summary = hit.getSummary();
+        Resource entity = SearchSummary.entityOf(summary, hit.getURI());
+        assertEquals(REG1, entity.getURI());
+        assertEquals(entityLabel, RDFUtil.getStringValue(entity, RDFS.label));
+        assertTrue( entity.hasProperty(DCTerms.description) );
+        return summary;
+    }
+
+    private void checkSearch(String query, boolean includeHistory, String...uris) {
+        List<String> actual = new ArrayList<String>();
+        for (SearchHit result : store.search(query, includeHistory, 0, 10)) {
+            actual.add( result.getURI() );
+        }
+        TestUtil.testArray(actual, uris);
+    }
+
+    private RegistryIndex createIndex(String summaries) {
+        RegistryIndex index = new RegistryIndex();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(RegistryIndex.CONFIG_PARAM, "src/main/webapp/WEB-INF/index-config.ttl");
+        config.put(RegistryIndex.SUMMARIES_PARAM, summaries);
+        index.init(config, null);
+        return index;
+    }
+}
@@ -0,0 +1,195 @@
+/******************************************************************
+ * File:        TestIndexQueue.java 
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.epimorphics.server.core.Indexer;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestIndexQueue {
+    static final String BASE_URI = "http://example.com/test/";
+
+    RegistryIndex index;
+    Map<String, Indexer> targets;
+    File journal;
+
+    @Before
+    public void setup() throws IOException {
+        index = new RegistryIndex();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(RegistryIndex.CONFIG_PARAM, "src/main/webapp/WEB-INF/index-config.ttl");
+        index.init(config, null);
+        targets = new HashMap<String, Indexer>();
+        targets.put("index", index);
+        journal = Files.createTempDirectory("index-journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : journal.listFiles()) {
+            f.delete();
+        }
+        journal.delete();
+    }
+
+    @Test
+    public void testAsyncIndexing() throws Exception {
+        IndexQueue queue = new IndexQueue(targets, 5, journal);
+        queue.start();
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue( updateFor(i) );
+        }
+        assertTrue( queue.awaitIdle(10000) );
+        assertEquals(10, search("label1"));
+        assertEquals(20, queue.getStats().getApplied());
+        assertEquals(0, queue.getStats().getQueued());
+
+        // Replacing updates leave one entry per graph
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue( updateFor(i) );
+        }
+        queue.stop();
+        assertEquals(10, search("label1"));
+        assertEquals(0, journal.listFiles().length);
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+        // Updates journalled but never applied, as if the process had stopped
+        IndexQueue stopped = new IndexQueue(targets, 10, journal);
+        for (int i = 0; i < 3; i++) {
+            stopped.enqueue( updateFor(i) );
+        }
+        assertEquals(3, journal.listFiles().length);
+        assertEquals(0, search("label1"));
+
+        IndexQueue restarted = new IndexQueue(targets, 10, journal);
+        restarted.start();
+        assertEquals(1, search("label1"));
+        assertEquals(2, search("label0"));
+        assertEquals(0, journal.listFiles().length);
+
+        // New updates follow the replayed ones in the journal sequence
+        restarted.enqueue( updateFor(3) );
+        assertTrue( restarted.awaitIdle(10000) );
+        assertEquals(2, search("label1"));
+        restarted.stop();
+    }
+
+    @Test
+    public void testUpdateOrder() throws Exception {
+        IndexQueue queue = new IndexQueue(targets, 10, journal);
+        queue.start();
+        IndexQueue.Update first = updateFor(0);
+        IndexQueue.Update second = updateFor(0);
+        second.model.getResource(BASE_URI + "u0").removeAll(RDFS.label).addProperty(RDFS.label, "renamed");
+        queue.prepare(first);
+        queue.prepare(second);
+        // Journalled as soon as prepared
+        assertEquals(2, journal.listFiles().length);
+
+        // A later update waits for the submission of earlier ones to the same graph
+        queue.submit(second);
+        assertFalse( queue.awaitIdle(200) );
+        assertEquals(0, search("renamed"));
+
+        // but not for those to other graphs
+        IndexQueue.Update other = updateFor(1);
+        queue.prepare(other);
+        queue.submit(other);
+        for (int i = 0; i < 100 && search("label1") == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, search("label1"));
+
+        queue.submit(first);
+        assertTrue( queue.awaitIdle(10000) );
+        assertEquals(1, search("renamed"));
+        assertEquals(0, search("label0"));
+        queue.stop();
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        IndexQueue queue = new IndexQueue(targets, 10, journal);
+        queue.start();
+        IndexQueue.Update aborted = updateFor(0);
+        queue.prepare(aborted);
+        IndexQueue.Update later = updateFor(0);
+        queue.prepare(later);
+        queue.submit(later);
+
+        // Discarding an aborted update removes its journal entry and releases later updates
+        queue.discard(aborted);
+        assertTrue( queue.awaitIdle(10000) );
+        assertEquals(1, queue.getStats().getApplied());
+        assertEquals(1, queue.getStats().getEnqueued());
+        assertEquals(1, search("label0"));
+        queue.stop();
+        assertEquals(0, journal.listFiles().length);
+    }
+
+    @Test
+    public void testOverCapacity() {
+        // Not started, so nothing is taken from the queue
+        IndexQueue queue = new IndexQueue(targets, 1, null);
+        queue.enqueue( updateFor(0) );
+        // Prepared updates of writes still in progress don't count against the capacity
+        IndexQueue.Update update = updateFor(1);
+        queue.prepare(update);
+        assertTrue( queue.awaitCapacity(100) );
+        queue.submit(update);
+        assertFalse( queue.awaitCapacity(100) );
+        assertEquals(1, queue.getStats().getOverflows());
+        assertEquals(2, queue.getStats().getQueued());
+    }
+
+    private IndexQueue.Update updateFor(int i) {
+        Model m = ModelFactory.createDefaultModel();
+        m.createResource(BASE_URI + "u" + i).addProperty(RDFS.label, "label" + (i % 2));
+        return new IndexQueue.Update("index", BASE_URI + "graph/" + i, m, null, true);
+    }
+
+    private int search(String text) throws ParseException {
+        QueryParser parser = new QueryParser(Version.LUCENE_40, RegistryIndex.FIELD_LABEL, new StandardAnalyzer(Version.LUCENE_40));
+        return index.search(parser.parse(text), 0, 100).length;
+    }
+}
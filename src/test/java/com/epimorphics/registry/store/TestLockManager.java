@@ -0,0 +1,294 @@
+/******************************************************************
+ * File:        TestLockManager.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ * 
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+
+package com.epimorphics.registry.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+import com.epimorphics.server.webapi.WebApiException;
+
+public class TestLockManager {
+    static final String ROOT = "http://example.com/";
+    static final String REG1 = ROOT + "reg1";
+    static final String REG2 = ROOT + "reg2";
+
+    @Test
+    public void testPath() {
+        assertEquals(Arrays.asList("http://example.com"), LockManager.pathTo(ROOT));
+        assertEquals(Arrays.asList("http://example.com", REG1, REG1 + "/_red"), LockManager.pathTo(REG1 + "/_red"));
+    }
+
+    @Test
+    public void testLocking() throws Exception {
+        LockManager lm = new LockManager(200);
+
+        // Reentrant
+        lm.lock(REG1);
+        lm.lock(REG1);
+        lm.unlock(REG1);
+        assertTrue( lm.holdsLocks() );
+
+        // Unrelated registers don't conflict, enclosed items do
+        assertTrue( canLockElsewhere(lm, REG2) );
+        assertTrue( canLockElsewhere(lm, REG2 + "/_item") );
+        assertFalse( canLockElsewhere(lm, REG1 + "/_item") );
+        assertFalse( canLockElsewhere(lm, ROOT) );
+        lm.unlock(REG1);
+        assertFalse( lm.holdsLocks() );
+
+        // An item lock excludes a lock on its register but not on a sibling
+        lm.lock(REG1 + "/_red");
+        assertTrue( canLockElsewhere(lm, REG1 + "/_blue") );
+        assertFalse( canLockElsewhere(lm, REG1) );
+        lm.unlock(REG1 + "/_red");
+        assertTrue( canLockElsewhere(lm, REG1) );
+
+        assertTrue( lm.getStats().getTimeouts() > 0 );
+        // Everything has been released, so the root can be locked
+        assertTrue( canLockElsewhere(lm, ROOT) );
+
+        try {
+            lm.unlock(REG1);
+            fail("Should reject unlock of resource which is not locked");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeadlockDetection() throws Exception {
+        final LockManager lm = new LockManager(10000);
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                lm.lock(REG2);
+                holding.countDown();
+                try {
+                    proceed.await();
+                    lm.lock(REG1);
+                    lm.unlock(REG1);
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    lm.unlock(REG2);
+                }
+            }
+        };
+        lm.lock(REG1);
+        other.start();
+        assertTrue( holding.await(5, TimeUnit.SECONDS) );
+        proceed.countDown();
+        boolean detected = false;
+        try {
+            // Wait until the other thread is blocked on REG1, then close the cycle
+            while (other.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(10);
+            }
+            lm.lock(REG2);
+            lm.unlock(REG2);
+        } catch (WebApiException e) {
+            detected = true;
+        } finally {
+            lm.unlock(REG1);
+        }
+        other.join(5000);
+        assertTrue( detected || failure.get() != null );
+        assertTrue( lm.getStats().getDeadlocks() >= 1 );
+        assertFalse( lm.holdsLocks() );
+        assertTrue( canLockElsewhere(lm, ROOT) );
+    }
+
+    @Test
+    public void testStoreLockDeadlock() throws Exception {
+        final LockManager lm = new LockManager(10000);
+        final ReentrantLock storeLock = new ReentrantLock();
+        final Runnable acquire = new Runnable() {
+            @Override
+            public void run() {
+                storeLock.lock();
+            }
+        };
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                lm.lock(REG2);
+                holding.countDown();
+                try {
+                    proceed.await();
+                    lm.lockStoreWrite(acquire);
+                    lm.unlockStoreWrite();
+                    storeLock.unlock();
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    lm.unlock(REG2);
+                }
+            }
+        };
+
+        // This thread writes to the store while holding REG1, the other blocks on the store while holding REG2
+        lm.lock(REG1);
+        lm.lockStoreWrite(acquire);
+        other.start();
+        assertTrue( holding.await(5, TimeUnit.SECONDS) );
+        proceed.countDown();
+        long start = System.currentTimeMillis();
+        boolean detected = false;
+        try {
+            // The other thread queues for the store inside the lock manager, not on the store lock itself
+            while (other.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(10);
+            }
+            assertFalse( storeLock.hasQueuedThreads() );
+            lm.lock(REG2);
+            lm.unlock(REG2);
+        } catch (WebApiException e) {
+            detected = true;
+        } finally {
+            lm.unlockStoreWrite();
+            storeLock.unlock();
+            lm.unlock(REG1);
+        }
+        other.join(5000);
+        // The wait-for check is repeated as threads wait, so either side may see the cycle
+        assertTrue( detected || failure.get() instanceof WebApiException );
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+        assertTrue( lm.getStats().getDeadlocks() >= 1 );
+        assertTrue( canLockElsewhere(lm, ROOT) );
+    }
+
+    @Test
+    public void testStoreLockTimeout() throws Exception {
+        final LockManager lm = new LockManager(200);
+        final ReentrantLock storeLock = new ReentrantLock();
+        final Runnable acquire = new Runnable() {
+            @Override
+            public void run() {
+                storeLock.lock();
+            }
+        };
+        lm.lockStoreWrite(acquire);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    lm.lockStoreWrite(acquire);
+                    lm.unlockStoreWrite();
+                    storeLock.unlock();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        };
+        other.start();
+        other.join(5000);
+        assertTrue( failure.get() instanceof WebApiException );
+        assertTrue( lm.getStats().getTimeouts() > 0 );
+        lm.unlockStoreWrite();
+        storeLock.unlock();
+    }
+
+    @Test
+    public void testWriterPriority() throws Exception {
+        final LockManager lm = new LockManager(5000);
+        final AtomicInteger sequence = new AtomicInteger();
+        final int[] order = new int[2];
+
+        // An item lock holds an intention on its register, so a register lock has to queue
+        lm.lock(REG1 + "/_red");
+        Thread writer = lockInOrder(lm, REG1, sequence, order, 0);
+        while (writer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+
+        // A new item lock waits behind the queued register lock
+        Thread item = lockInOrder(lm, REG1 + "/_blue", sequence, order, 1);
+        while (item.getState() != Thread.State.TIMED_WAITING && item.isAlive()) {
+            Thread.sleep(10);
+        }
+        assertTrue( item.isAlive() );
+
+        // The holder of an intention can still take more item locks
+        lm.lock(REG1 + "/_green");
+        lm.unlock(REG1 + "/_green");
+
+        lm.unlock(REG1 + "/_red");
+        writer.join(5000);
+        item.join(5000);
+        assertEquals(1, order[0]);
+        assertEquals(2, order[1]);
+    }
+
+    private Thread lockInOrder(final LockManager lm, final String uri, final AtomicInteger sequence, final int[] order, final int slot) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                lm.lock(uri);
+                order[slot] = sequence.incrementAndGet();
+                lm.unlock(uri);
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Test if another thread can lock the given URI, using the lock timeout to detect conflicts
+     */
+    private boolean canLockElsewhere(final LockManager lm, final String uri) throws InterruptedException {
+        final boolean[] result = new boolean[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    lm.lock(uri);
+                    lm.unlock(uri);
+                    result[0] = true;
+                } catch (WebApiException e) {
+                    result[0] = false;
+                }
+            }
+        };
+        t.start();
+        t.join();
+        return result[0];
+    }
+}
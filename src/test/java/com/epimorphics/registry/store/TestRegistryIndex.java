@@ -0,0 +1,228 @@
+/******************************************************************
+ * File:        TestRegistryIndex.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ * 
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.store;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.epimorphics.server.webapi.WebApiException;
+import com.epimorphics.util.EpiException;
+import com.epimorphics.vocabs.SKOS;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestRegistryIndex {
+
+    @Test
+    public void testCollapsedSearch() throws ParseException {
+        RegistryIndex index = createIndex();
+        for (int u = 0; u < 16; u++) {
+            for (int v = 0; v < 4; v++) {
+                index.addGraph(BASE_URI + "graph/" + u, graphFor("u"+u, "label" + (u%4)));
+            }
+        }
+        SearchHit[] results = index.search(queryFor("label1"), 0, 100);
+        assertEquals(16, results.length);
+        
+        results = index.searchCollapsed(queryFor("label1"), 0, 100);
+        assertEquals(4, results.length);
+        
+        results = index.searchCollapsed(queryFor("label1"), 0, 2);
+        assertEquals(2, results.length);
+        assertEquals("http://example.com/test/u1", results[0].getURI());
+        assertEquals("http://example.com/test/u5", results[1].getURI());
+        
+        results = index.searchCollapsed(queryFor("label1"), 1, 2);
+        assertEquals(2, results.length);
+        assertEquals("http://example.com/test/u5", results[0].getURI());
+        assertEquals("http://example.com/test/u9", results[1].getURI());
+        
+        results = index.searchCollapsed(queryFor("label1"), 2, 2);
+        assertEquals(2, results.length);
+        assertEquals("http://example.com/test/u9", results[0].getURI());
+        assertEquals("http://example.com/test/u13", results[1].getURI());
+    }
+    
+    @Test
+    public void testNonAdjacentVersions() throws ParseException {
+        RegistryIndex index = createIndex();
+        for (int v = 0; v < 4; v++) {
+            for (int u = 0; u < 16; u++) {
+                index.addGraph(BASE_URI + "graph/" + u + "/" + v, graphFor("u"+u, "label" + (u%4)));
+            }
+        }
+        SearchHit[] results = index.searchCollapsed(queryFor("label1"), 0, 100);
+        assertEquals(4, results.length);
+
+        // Walk the pages out of order by offset
+        Set<String> seen = new HashSet<String>();
+        for (int page : new int[]{3, 0, 1, 2}) {
+            results = index.searchCollapsed(queryFor("label1"), page, 1);
+            assertEquals(1, results.length);
+            assertTrue( seen.add(results[0].getURI()) );
+        }
+        assertEquals(0, index.searchCollapsed(queryFor("label1"), 4, 1).length);
+
+        // Walk the pages from the cursor of each previous page, later versions of earlier results are skipped
+        seen.clear();
+        String cursor = null;
+        for (int page = 0; page < 4; page++) {
+            results = index.searchCollapsedAfter(queryFor("label1"), cursor, 1);
+            assertEquals(1, results.length);
+            assertTrue( seen.add(results[0].getURI()) );
+            cursor = results[0].getCursor();
+        }
+        assertEquals(0, index.searchCollapsedAfter(queryFor("label1"), cursor, 1).length);
+    }
+
+    @Test
+    public void testSearchCursor() {
+        SearchCursor cursor = new SearchCursor(0.75f, 42, "http://example.com/test/u1?a=b&c");
+        SearchCursor decoded = SearchCursor.decode( cursor.encode() );
+        assertEquals(0.75f, decoded.getScore(), 0.0f);
+        assertEquals(42, decoded.getDoc());
+        assertEquals("http://example.com/test/u1?a=b&c", decoded.getURI());
+        assertNull( SearchCursor.decode("") );
+        try {
+            SearchCursor.decode("not a cursor");
+            fail("Expected illegal cursor to be rejected");
+        } catch (WebApiException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRebuild() throws ParseException {
+        RegistryIndex index = createIndex();
+        index.updateGraph(BASE_URI + "graph/stale", graphFor("stale", "label1"));
+
+        RegistryIndex.Rebuild rebuild = index.startRebuild();
+        rebuild.add(BASE_URI + "graph/rebuilt", graphFor("rebuilt", "label1"), null);
+        index.updateGraph(BASE_URI + "graph/live", graphFor("live", "label1"));
+
+        // Searches use the old content until the rebuild is complete
+        assertEquals(2, index.search(queryFor("label1"), 0, 100).length);
+
+        index.finishRebuild(rebuild);
+        Set<String> found = new HashSet<String>();
+        for (SearchHit hit : index.search(queryFor("label1"), 0, 100)) {
+            found.add( hit.getURI() );
+        }
+        assertEquals(2, found.size());
+        assertTrue( found.contains(BASE_URI + "rebuilt") );
+        assertTrue( found.contains(BASE_URI + "live") );
+
+        // An abandoned rebuild leaves the index unchanged
+        rebuild = index.startRebuild();
+        rebuild.add(BASE_URI + "graph/other", graphFor("other", "label1"), null);
+        index.abortRebuild(rebuild);
+        assertEquals(2, index.search(queryFor("label1"), 0, 100).length);
+    }
+
+    @Test
+    public void testFailedRebuild() throws ParseException {
+        FailingIndex index = new FailingIndex();
+        initIndex(index);
+        index.updateGraph(BASE_URI + "graph/stale", graphFor("stale", "label1"));
+
+        RegistryIndex.Rebuild rebuild = index.startRebuild();
+        rebuild.add(BASE_URI + "graph/rebuilt", graphFor("rebuilt", "label1"), null);
+        index.updateGraph(BASE_URI + "graph/live", graphFor("live", "label1"));
+
+        // Fail while replaying the live changes, after the old content has been deleted
+        index.fail = true;
+        try {
+            index.finishRebuild(rebuild);
+            fail("Swap should have failed");
+        } catch (EpiException e) {
+            // expected
+        }
+        index.fail = false;
+        assertEquals(2, index.search(queryFor("label1"), 0, 100).length);
+
+        // Later commits keep the old content and the index can be rebuilt again
+        index.updateGraph(BASE_URI + "graph/later", graphFor("later", "label1"));
+        index.commit();
+        assertEquals(3, index.search(queryFor("label1"), 0, 100).length);
+        assertTrue( index.changes == null );
+
+        rebuild = index.startRebuild();
+        rebuild.add(BASE_URI + "graph/rebuilt", graphFor("rebuilt", "label1"), null);
+        index.finishRebuild(rebuild);
+        assertEquals(1, index.search(queryFor("label1"), 0, 100).length);
+    }
+
+    static class FailingIndex extends RegistryIndex {
+        volatile boolean fail = false;
+
+        @Override
+        protected void write(IndexWriter w, String graphname, Model graph, String summary, boolean update) throws IOException {
+            if (fail && w == writer) {
+                throw new IOException("Injected failure");
+            }
+            super.write(w, graphname, graph, summary, update);
+        }
+    }
+
+    private RegistryIndex createIndex() {
+        return initIndex( new RegistryIndex() );
+    }
+
+    private RegistryIndex initIndex(RegistryIndex index) {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("config", "src/main/webapp/WEB-INF/index-config.ttl");
+        index.init(config, null);
+        return index;
+    }
+
+    private static final String BASE_URI = "http://example.com/test/";
+    
+    private Model graphFor(String uri, String label) {
+        Model m =  ModelFactory.createDefaultModel();
+         m.createResource(BASE_URI + uri)
+                .addProperty(RDFS.label, label)
+                .addProperty(RDF.type, SKOS.Concept);
+        return m;
+    }
+    
+    private Query queryFor(String search) throws ParseException {
+        Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_40);
+        QueryParser parser = new QueryParser(Version.LUCENE_40, RegistryIndex.FIELD_LABEL, analyzer);
+        return parser.parse(search);
+    }
+    
+}
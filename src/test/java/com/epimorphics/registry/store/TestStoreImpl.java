@@ -26,13 +26,20 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -43,20 +50,26 @@ import com.epimorphics.registry.core.Description;
 import com.epimorphics.registry.core.Register;
 import com.epimorphics.registry.core.RegisterItem;
 import com.epimorphics.registry.core.Status;
+import com.epimorphics.registry.message.Message;
 import com.epimorphics.registry.util.Prefixes;
 import com.epimorphics.registry.vocab.RegistryVocab;
 import com.epimorphics.registry.vocab.Version;
 import com.epimorphics.server.core.ServiceConfig;
 import com.epimorphics.server.stores.MemStore;
+import com.epimorphics.server.webapi.WebApiException;
+import com.epimorphics.util.EpiException;
 import com.epimorphics.util.NameUtils;
 import com.epimorphics.util.TestUtil;
 import com.epimorphics.vocabs.SKOS;
+import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.ResIterator;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.util.FileUtils;
 import com.hp.hpl.jena.vocabulary.DCTerms;
 import com.hp.hpl.jena.vocabulary.OWL;
@@ -178,6 +191,29 @@ public class TestStoreImpl {
         return now.getTimeInMillis();
     }
 
+    @Test
+    public void testBulkAdd() {
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        Register reg1 = store.getCurrentVersion(REG1).asRegister();
+        int startVersion = RDFUtil.getIntValue(reg1.getRoot(), OWL.versionInfo, -1);
+        checkMemberOrder(reg1);
+
+        Calendar now = Calendar.getInstance();
+        List<RegisterItem> items = new ArrayList<RegisterItem>();
+        for (String colour : new String[]{"red", "green", "blue"}) {
+            Model m = ModelFactory.createDefaultModel();
+            m.read("file:test/" + colour + ".ttl", REG1 + "/", FileUtils.langTurtle);
+            items.add( RegisterItem.fromEntityRequest(RDFUtil.findRoot(m), REG1, true, now) );
+        }
+        store.addAllToRegister(reg1, items, now);
+
+        reg1 = store.getCurrentVersion(REG1).asRegister();
+        assertEquals(startVersion + 1, RDFUtil.getIntValue(reg1.getRoot(), OWL.versionInfo, -1));
+        checkMemberOrder(reg1, "blue", "green", "red");
+        checkItemWithEntity(store.getItem(REG1 + "/_green", true), "green");
+        assertEquals(1, store.listEntityOccurences(REG1 + "/green").size());
+    }
+
     @Test
     public void testEntryManagement() {
         addEntry("file:test/reg1.ttl", ROOT_REGISTER);
@@ -226,6 +262,176 @@ public class TestStoreImpl {
         assertNotNull( store.getDescription(ROOT_REGISTER + "reg1/red") );
     }
 
+    @Test
+    public void testFetchEntities() {
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/blue.ttl", REG1);
+        addEntry("file:test/red.ttl", REG1);
+        checkFetchEntities();
+
+        // Once from the base store to populate the cache, then from the cache
+        store = new CachingStore(store, 1024 * 1024);
+        checkFetchEntities();
+        checkFetchEntities();
+    }
+
+    private void checkFetchEntities() {
+        List<String> uris = new ArrayList<String>();
+        uris.add(REG1 + "/red");
+        uris.add(REG1 + "/green");
+        uris.add(REG1 + "/_blue");
+        Model target = ModelFactory.createDefaultModel();
+        List<Resource> results = store.fetchEntities(uris, target);
+        assertEquals(3, results.size());
+        assertSame(target, results.get(0).getModel());
+        assertEquals("red", RDFUtil.getStringValue(results.get(0), RDFS.label));
+        assertNull(results.get(1));
+        assertTrue(results.get(2).hasProperty(RDF.type, RegistryVocab.RegisterItem));
+        assertSame(target, results.get(2).getModel());
+
+        results = store.fetchEntities(uris, null);
+        assertEquals("red", RDFUtil.getStringValue(results.get(0), RDFS.label));
+        assertNull(results.get(1));
+        assertEquals("blue", RDFUtil.getStringValue(results.get(2), RDFS.label));
+    }
+
+    @Test
+    public void testMemberIndex() {
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/red.ttl", REG1);
+        addEntry("file:test/blue.ttl", REG1);
+
+        Register reg1 = store.getCurrentVersion(REG1).asRegister();
+        checkMemberOrder(reg1, "blue", "red");
+
+        // Incremental additions preserve notation order
+        addEntry("file:test/green.ttl", REG1);
+        checkMemberOrder(reg1, "blue", "green", "red");
+
+        // Status changes are visible without a reload
+        RegisterItem ri = store.getItem(REG1 + "/_red", false);
+        ri.setProperty(RegistryVocab.status, RegistryVocab.statusAccepted);
+        store.update(ri, false);
+        List<RegisterEntryInfo> members = store.listMembers(reg1);
+        assertEquals(Status.Accepted, members.get(2).getStatus());
+        assertEquals(Status.Submitted, members.get(0).getStatus());
+
+        // Readers share one immutable snapshot until the register changes
+        assertSame(members, store.listMembers(reg1));
+        try {
+            members.remove(0);
+            fail("Member snapshot should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // Rebuild from the store gives the same answer
+        ((StoreBaseImpl)store).resetIndexes();
+        checkMemberOrder(reg1, "blue", "green", "red");
+        assertEquals(Status.Accepted, store.listMembers(reg1).get(2).getStatus());
+    }
+
+    @Test
+    public void testEntityIndex() {
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/red.ttl", REG1);
+        String red = REG1 + "/red";
+
+        List<EntityInfo> occurrences = store.listEntityOccurences(red);
+        assertEquals(1, occurrences.size());
+        assertEquals(REG1 + "/_red", occurrences.get(0).getItemURI());
+        assertEquals(Status.Submitted, occurrences.get(0).getStatus());
+        assertEquals(1, store.listEntityOccurences(red, REG1).size());
+        assertTrue(store.listEntityOccurences(red, ROOT_REGISTER + "other").isEmpty());
+        assertTrue(store.listEntityOccurences(REG1 + "/blue").isEmpty());
+
+        // Index tracks new registrations and status changes
+        addEntry("file:test/blue.ttl", REG1);
+        assertEquals(1, store.listEntityOccurences(REG1 + "/blue").size());
+        RegisterItem ri = store.getItem(REG1 + "/_red", false);
+        ri.setProperty(RegistryVocab.status, RegistryVocab.statusAccepted);
+        store.update(ri, false);
+        assertEquals(Status.Accepted, store.listEntityOccurences(red, REG1).get(0).getStatus());
+
+        // Rebuild from the store gives the same answer
+        ((StoreBaseImpl)store).resetIndexes();
+        occurrences = store.listEntityOccurences(red, REG1);
+        assertEquals(1, occurrences.size());
+        assertEquals(Status.Accepted, occurrences.get(0).getStatus());
+    }
+
+    @Test
+    public void testCachingStore() {
+        StoreAPI base = store;
+        CachingStore cstore = new CachingStore(base, 1024 * 1024);
+        store = cstore;
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/red.ttl", REG1);
+        addEntry("file:test/blue.ttl", REG1);
+
+        // Repeated reads are served from the cache, as shared frozen descriptions
+        String redItem = REG1 + "/_red";
+        RegisterItem ri = store.getItem(redItem, true);
+        checkItemWithEntity(ri, "red");
+        assertTrue(ri.isFrozen());
+        assertSame(ri, store.getItem(redItem, true));
+        try {
+            ri.getEntity().removeAll(RDFS.label);
+            fail("Frozen entity should not be modifiable");
+        } catch (JenaException e) {
+            // expected
+        }
+        RegisterItem copy = ri.forUpdate();
+        assertFalse(copy.isFrozen());
+        copy.getEntity().removeAll(RDFS.label);
+        checkItemWithEntity(store.getItem(redItem, true), "red");
+        assertEquals(1, cstore.getStats().get(1).getLoads());
+        assertTrue(cstore.getStats().get(1).getHits() > 0);
+        Register reg1 = store.getCurrentVersion(REG1).asRegister();
+        checkMemberOrder(reg1, "blue", "red");
+
+        // A cached register takes its membership from the member list cache rather than holding a copy
+        assertTrue(reg1.isFrozen());
+        assertFalse(reg1.hasMembers());
+        assertSame(store.listMembers(reg1), reg1.getMembers());
+
+        // Writes through the cache invalidate the affected entries
+        ri = store.getItem(redItem, false).forUpdate();
+        ri.setProperty(RegistryVocab.status, RegistryVocab.statusAccepted);
+        store.update(ri, false);
+        assertTrue(store.getItem(redItem, true).getRoot().hasProperty(RegistryVocab.status, RegistryVocab.statusAccepted));
+        assertEquals(Status.Accepted, store.listMembers(reg1).get(1).getStatus());
+        doUpdate(redItem, "reddish");
+        ri = store.getItem(redItem, true);
+        assertEquals("reddish", RDFUtil.getStringValue(ri.getEntity(), RDFS.label));
+        assertEquals(3, store.listVersions(redItem).size());
+
+        // Entities are keyed by item version so history is unaffected
+        checkVersionAt(redItem, store.listVersions(redItem).get(0).getFromTime(), "red");
+
+        // Changes made behind the cache are picked up from notifications
+        addEntry("file:test/green.ttl", REG1);
+        assertNotNull(store.getItem(REG1 + "/_green", false));
+        store = base;
+        RegisterItem green = store.getItem(REG1 + "/_green", false).forUpdate();
+        green.setProperty(RegistryVocab.status, RegistryVocab.statusAccepted);
+        store.update(green, false);
+        store = cstore;
+        assertFalse(store.getItem(REG1 + "/_green", false).getRoot().hasProperty(RegistryVocab.status, RegistryVocab.statusAccepted));
+        Message message = new Message();
+        message.setTarget(REG1 + "/_green");
+        cstore.processMessage(message);
+        assertTrue(store.getItem(REG1 + "/_green", false).getRoot().hasProperty(RegistryVocab.status, RegistryVocab.statusAccepted));
+    }
+
+    private void checkMemberOrder(Register register, String...notations) {
+        List<RegisterEntryInfo> members = store.listMembers(register);
+        assertEquals(notations.length, members.size());
+        for (int i = 0; i < notations.length; i++) {
+            assertEquals(notations[i], members.get(i).getNotation());
+        }
+    }
+
     @Test
     public void testBNodeSubmitter() {
         addEntry("file:test/reg1.ttl", ROOT_REGISTER);
@@ -307,7 +513,7 @@ public class TestStoreImpl {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        RegisterItem ri = store.getItem(item, true);
+        RegisterItem ri = store.getItem(item, true).forUpdate();
         Resource e = ri.getEntity();
         e.removeAll(RDFS.label).addProperty(RDFS.label, label);
         Calendar now = Calendar.getInstance();
@@ -379,10 +585,20 @@ public class TestStoreImpl {
             Thread.sleep(10);
         } catch (InterruptedException e) { }
         long ts1 = addEntry("file:test/blue.ttl", REG1);
+        // Loads version intervals for red, later updates must then be tracked by the index
+        checkRegisterList(reg1, ts0+1, "red");
         String itemURI = ROOT_REGISTER + "reg1/_red";
         long ts2 = doUpdate(itemURI, "red1");
         long ts3 = doUpdate(itemURI, "red2");
 
+        checkRegisterHistory(reg1, ts0, ts1, ts2, ts3);
+
+        // Rebuilding the version index from the store should give the same answers
+        ((StoreBaseImpl)store).resetIndexes();
+        checkRegisterHistory(reg1, ts0, ts1, ts2, ts3);
+    }
+
+    private void checkRegisterHistory(Register reg1, long ts0, long ts1, long ts2, long ts3) {
         checkRegisterList(reg1, ts0+1, "red");
         checkRegisterList(reg1, ts1+1, "red", "blue");
         checkRegisterList(reg1, ts2+1, "red1", "blue");
@@ -404,6 +620,265 @@ public class TestStoreImpl {
         }
     }
 
+    @Test
+    public void testTransactionNesting() {
+        StoreBaseImpl impl = (StoreBaseImpl)store;
+        assertNull(impl.getTransaction());
+        StoreTransaction tx = store.begin(StoreTransaction.Mode.READ);
+        assertSame(tx, impl.getTransaction());
+
+        // Nested begin joins the transaction, a nested write upgrades it
+        assertSame(tx, store.begin(StoreTransaction.Mode.WRITE));
+        assertTrue(tx.isWrite());
+        store.end(tx);
+        assertSame(tx, impl.getTransaction());
+
+        // Locks taken within the transaction don't end it when released
+        store.lock(REG1);
+        store.unlock(REG1);
+        assertSame(tx, impl.getTransaction());
+        store.end(tx);
+        assertNull(impl.getTransaction());
+    }
+
+    @Test
+    public void testImplicitTransaction() throws Exception {
+        StoreBaseImpl impl = (StoreBaseImpl)store;
+        impl.lockManager = new LockManager(100);
+
+        // A lock outside a transaction starts one which ends with the last unlock
+        store.lock(REG1);
+        StoreTransaction tx = impl.getTransaction();
+        assertNotNull(tx);
+        assertTrue(tx.isImplicit());
+        store.lock(REG1 + "/_red");
+        store.unlock(REG1 + "/_red");
+        assertSame(tx, impl.getTransaction());
+
+        // A lock which fails leaves no transaction behind
+        assertFalse( canLockElsewhere(REG1) );
+        store.unlock(REG1);
+        assertNull(impl.getTransaction());
+        assertTrue( canLockElsewhere(REG1) );
+    }
+
+    @Test
+    public void testEndReleasesLocks() throws Exception {
+        StoreBaseImpl impl = (StoreBaseImpl)store;
+        impl.lockManager = new LockManager(100);
+
+        StoreTransaction tx = store.begin(StoreTransaction.Mode.WRITE);
+        store.lock(REG1);
+        store.lock(REG1 + "/_red");
+        assertFalse( canLockElsewhere(REG1 + "/_red") );
+        store.end(tx);
+        assertNull(impl.getTransaction());
+        assertFalse( impl.getLockManager().holdsLocks() );
+        assertTrue( canLockElsewhere(REG1) );
+    }
+
+    /**
+     * Test if another thread can lock the given URI, checking it is left with no transaction either way
+     */
+    private boolean canLockElsewhere(final String uri) throws InterruptedException {
+        final boolean[] result = new boolean[2];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    store.lock(uri);
+                    store.unlock(uri);
+                    result[0] = true;
+                } catch (WebApiException e) {
+                    result[0] = false;
+                }
+                result[1] = ((StoreBaseImpl)store).getTransaction() == null;
+            }
+        };
+        t.start();
+        t.join();
+        assertTrue(result[1]);
+        return result[0];
+    }
+
+    @Test
+    public void testSnapshotReads() throws Exception {
+        StoreBaseImpl impl = useSnapshotReads();
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/red.ttl", REG1);
+        Register reg1 = store.getCurrentVersion(REG1).asRegister();
+        String red = REG1 + "/_red";
+        checkMemberOrder(reg1, "red");
+        List<Status> submitted = Arrays.asList(Status.Submitted, Status.Submitted);
+
+        StoreTransaction tx = store.begin(StoreTransaction.Mode.WRITE);
+        try {
+            setStatus(red, RegistryVocab.statusAccepted);
+
+            // Nested operations join the transaction
+            assertSame(tx, store.begin(StoreTransaction.Mode.READ));
+            store.end(tx);
+            assertSame(tx, impl.getTransaction());
+
+            // Neither the change nor its member index update is visible until commit
+            assertEquals(Status.Accepted, store.getItem(red, false).getStatus());
+            assertEquals(submitted, statusSeenElsewhere(reg1, red));
+        } finally {
+            store.end(tx);
+        }
+        assertNull(impl.getTransaction());
+        assertEquals(Arrays.asList(Status.Accepted, Status.Accepted), statusSeenElsewhere(reg1, red));
+    }
+
+    @Test
+    public void testSnapshotRollback() throws Exception {
+        useSnapshotReads();
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/red.ttl", REG1);
+        Register reg1 = store.getCurrentVersion(REG1).asRegister();
+        String red = REG1 + "/_red";
+        checkMemberOrder(reg1, "red");
+        int versions = store.listVersions(red).size();
+
+        StoreTransaction tx = store.begin(StoreTransaction.Mode.WRITE);
+        try {
+            setStatus(red, RegistryVocab.statusAccepted);
+            tx.setRollbackOnly();
+        } finally {
+            store.end(tx);
+        }
+
+        // The failed change and its index updates are discarded
+        assertEquals(Status.Submitted, store.getItem(red, false).getStatus());
+        assertEquals(Status.Submitted, store.listMembers(reg1).get(0).getStatus());
+        assertEquals(versions, store.listVersions(red).size());
+
+        // A later transaction commits as normal
+        setStatus(red, RegistryVocab.statusAccepted);
+        assertEquals(Arrays.asList(Status.Accepted, Status.Accepted), statusSeenElsewhere(reg1, red));
+        assertEquals(versions + 1, store.listVersions(red).size());
+    }
+
+    @Test
+    public void testSnapshotIndexLoads() throws Exception {
+        StoreBaseImpl impl = useSnapshotReads();
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+        addEntry("file:test/red.ttl", REG1);
+        Register reg1 = store.getCurrentVersion(REG1).asRegister();
+        String red = REG1 + "/_red";
+        impl.resetIndexes();
+
+        // Reads within a write see its changes but don't load them into the shared indexes
+        StoreTransaction tx = store.begin(StoreTransaction.Mode.WRITE);
+        try {
+            addEntry("file:test/blue.ttl", REG1);
+            checkMemberOrder(reg1, "blue", "red");
+            assertEquals(1, store.listEntityOccurences(REG1 + "/blue").size());
+            assertNotNull(store.getVersionAt(REG1 + "/_blue", System.currentTimeMillis() + 1000));
+            assertNotNull(store.getVersionAt(red, System.currentTimeMillis() + 1000));
+            tx.setRollbackOnly();
+        } finally {
+            store.end(tx);
+        }
+        assertFalse(impl.memberIndex.isLoaded(REG1));
+        assertFalse(impl.versionIndex.isLoaded(red));
+        assertFalse(impl.entityIndex.isLoaded());
+
+        // After the abort the indexes are loaded from the committed state
+        checkMemberOrder(reg1, "red");
+        assertTrue(store.listEntityOccurences(REG1 + "/blue").isEmpty());
+        assertNull(store.getVersionAt(REG1 + "/_blue", System.currentTimeMillis() + 1000));
+    }
+
+    @Test
+    public void testSnapshotNesting() {
+        StoreBaseImpl impl = useSnapshotReads();
+        addEntry("file:test/reg1.ttl", ROOT_REGISTER);
+
+        // Reads nest within a snapshot read but writes are rejected
+        impl.lockStore();
+        try {
+            assertEquals(REG1, store.getCurrentVersion(REG1).getRoot().getURI());
+            try {
+                addEntry("file:test/red.ttl", REG1);
+                fail("Should reject a write within a snapshot read");
+            } catch (EpiException e) {
+                // expected
+            }
+        } finally {
+            impl.unlockStore();
+        }
+
+        // The store is usable afterwards
+        addEntry("file:test/red.ttl", REG1);
+        checkMemberOrder(store.getCurrentVersion(REG1).asRegister(), "red");
+        assertNull(impl.getTransaction());
+    }
+
+    /**
+     * Replace the store by one with snapshot reads over a transactional dataset
+     */
+    private StoreBaseImpl useSnapshotReads() {
+        ServiceConfig.get().clearServices();
+        basestore = new MemStore() {
+            Dataset tdb = TDBFactory.createDataset();
+
+            @Override
+            public Dataset asDataset() {
+                return tdb;
+            }
+        };
+        basestore.init(new HashMap<String, String>(), null);
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put( StoreBaseImpl.STORE_PARAMETER, "basestore");
+        config.put( StoreBaseImpl.SNAPSHOT_READS_PARAMETER, "true");
+        StoreBaseImpl store = new StoreBaseImpl();
+        store.init(config, null);
+
+        ServiceConfig.get().initServices("basestore", basestore, "store", store);
+        assertTrue( store.isSnapshotReads() );
+        this.store = store;
+        store.loadBootstrap(BOOTSTRAP_FILE);
+        return store;
+    }
+
+    // Update an item's status the way a command does, locking it for the duration
+    private void setStatus(String itemURI, Resource status) {
+        store.lock(itemURI);
+        try {
+            RegisterItem ri = store.getItem(itemURI, false);
+            ri.setProperty(RegistryVocab.status, status);
+            store.update(ri, false);
+        } finally {
+            store.unlock(itemURI);
+        }
+    }
+
+    /**
+     * Return the status of an item as seen from another thread, first in the store then in the member index
+     */
+    private List<Status> statusSeenElsewhere(final Register register, final String itemURI) throws Exception {
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            return reader.submit(new Callable<List<Status>>() {
+                @Override
+                public List<Status> call() {
+                    Status inStore = store.getItem(itemURI, false).getStatus();
+                    Status inIndex = null;
+                    for (RegisterEntryInfo info : store.listMembers(register)) {
+                        if (info.getItemURI().equals(itemURI)) {
+                            inIndex = info.getStatus();
+                        }
+                    }
+                    return Arrays.asList(inStore, inIndex);
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            reader.shutdown();
+        }
+    }
+
     @SuppressWarnings("unused")
     private void dumpAll() {
         dumpAll( basestore.asDataset().getDefaultModel() );
@@ -0,0 +1,140 @@
+/******************************************************************
+ * File:        TestCompactGraph.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+
+package com.epimorphics.registry.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestCompactGraph {
+    static final String NS = "http://example.com/test/";
+
+    @Test
+    public void testFind() {
+        Model m = ModelFactory.createDefaultModel();
+        m.setNsPrefix("ex", NS);
+        Resource red = m.createResource(NS + "red").addProperty(RDF.type, RDFS.Class).addProperty(RDFS.label, "red");
+        Resource blue = m.createResource(NS + "blue").addProperty(RDF.type, RDFS.Class).addProperty(RDFS.label, "blue", "en");
+        red.addProperty(RDFS.seeAlso, blue);
+        blue.addLiteral(RDFS.comment, m.createTypedLiteral("1", XSDDatatype.XSDint));
+        m.createResource().addProperty(RDFS.seeAlso, red);
+
+        NodeDictionary dictionary = new NodeDictionary();
+        CompactGraph g = CompactGraph.encode(m.getGraph(), dictionary);
+        Model c = ModelFactory.createModelForGraph(g);
+        assertEquals(m.size(), c.size());
+        assertTrue(c.isIsomorphicWith(m));
+        assertEquals(NS, c.getNsPrefixURI("ex"));
+
+        assertEquals(3, c.listStatements(red, null, (Resource)null).toList().size());
+        assertEquals(2, c.listSubjectsWithProperty(RDF.type, RDFS.Class).toList().size());
+        assertEquals(2, c.listStatements(null, RDFS.seeAlso, (Resource)null).toList().size());
+        assertTrue(c.contains(red, RDFS.seeAlso, blue));
+        assertFalse(c.contains(blue, RDFS.seeAlso, red));
+        assertFalse(c.contains(red, RDFS.label, "blue"));
+        assertFalse(c.containsResource(c.createResource(NS + "green")));
+
+        // Literals match by value, as for a memory graph
+        Node one = Node.createLiteral("01", null, XSDDatatype.XSDint);
+        assertTrue(g.contains(Node.ANY, Node.ANY, one));
+        assertTrue(g.contains(blue.asNode(), RDFS.comment.asNode(), one));
+
+        // Encoding another graph shares the same nodes
+        Model m2 = ModelFactory.createDefaultModel();
+        m2.createResource(NS + "red").addProperty(RDF.type, RDFS.Class);
+        CompactGraph g2 = CompactGraph.encode(m2.getGraph(), dictionary);
+        Triple t = g2.find(Node.ANY, Node.ANY, Node.ANY).next();
+        assertSame(g.find(red.asNode(), Node.ANY, Node.ANY).next().getSubject(), t.getSubject());
+        // Only URIs are shared, literals and blank nodes stay with their graph
+        assertEquals(7, dictionary.size());
+    }
+
+    @Test
+    public void testWeight() {
+        Model m = ModelFactory.createDefaultModel();
+        m.createResource(NS + "red").addProperty(RDF.type, RDFS.Class).addProperty(RDFS.label, "red");
+        NodeDictionary dictionary = new NodeDictionary();
+        CompactGraph g = CompactGraph.encode(m.getGraph(), dictionary);
+        long literal = NodeDictionary.weigh( Node.createLiteral("red") );
+        assertEquals(2 * CompactGraph.TRIPLE_WEIGHT + dictionary.getWeight() + literal, g.getWeight());
+
+        // A graph which adds no new dictionary entries is only charged for itself
+        CompactGraph g2 = CompactGraph.encode(m.getGraph(), dictionary);
+        assertEquals(2 * CompactGraph.TRIPLE_WEIGHT + literal, g2.getWeight());
+    }
+
+    @Test
+    public void testDictionaryRetired() {
+        CompactGraph.resetDictionary();
+        CompactGraph.setDictionaryLimit(1000);
+        try {
+            NodeDictionary first = CompactGraph.dictionary();
+            Model m = ModelFactory.createDefaultModel();
+            for (int i = 0; i < 20; i++) {
+                m.createResource(NS + "r" + i).addProperty(RDF.type, RDFS.Class);
+            }
+            CompactGraph g = CompactGraph.encode(m.getGraph());
+            assertSame(first, g.getDictionary());
+            assertNotSame(first, CompactGraph.dictionary());
+            assertTrue( ModelFactory.createModelForGraph(g).isIsomorphicWith(m) );
+        } finally {
+            CompactGraph.setDictionaryLimit(CompactGraph.DEFAULT_DICTIONARY_LIMIT);
+            CompactGraph.resetDictionary();
+        }
+    }
+
+    @Test
+    public void testImmutable() {
+        Model m = ModelFactory.createDefaultModel();
+        m.createResource(NS + "red").addProperty(RDFS.label, "red");
+        Model c = ModelFactory.createModelForGraph( CompactGraph.encode(m.getGraph()) );
+        try {
+            c.createResource(NS + "blue").addProperty(RDFS.label, "blue");
+            fail("Compact graph should not be modifiable");
+        } catch (JenaException e) {
+            // expected
+        }
+        try {
+            c.removeAll();
+            fail("Compact graph should not be modifiable");
+        } catch (JenaException e) {
+            // expected
+        }
+        assertEquals(1, c.size());
+    }
+}
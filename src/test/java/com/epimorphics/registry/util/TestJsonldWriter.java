@@ -0,0 +1,89 @@
+/******************************************************************
+ * File:        TestJsonldWriter.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ * 
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+
+package com.epimorphics.registry.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.github.jsonldjava.utils.JSONUtils;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.vocabulary.DCTerms;
+import com.hp.hpl.jena.vocabulary.OWL;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestJsonldWriter {
+    static final String NS = "http://example.com/test#";
+
+    @Test
+    public void testCompaction() {
+        JsonldWriter.Context context = new JsonldWriter.Context( prefixes() );
+        assertEquals("rdfs:label", context.compact(RDFS.label.getURI()));
+        assertEquals("ex:foo", context.compact(NS + "foo"));
+        assertEquals("http://example.com/other/foo", context.compact("http://example.com/other/foo"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkRoundTrip( ModelFactory.createDefaultModel() );
+
+        Model m = ModelFactory.createDefaultModel();
+        Resource r = m.createResource(NS + "r")
+            .addProperty(RDF.type, OWL.Thing)
+            .addProperty(RDF.type, m.createResource(NS + "Thing"))
+            .addProperty(RDFS.label, "a \"quoted\"\nlabel")
+            .addProperty(RDFS.label, "label", "en")
+            .addLiteral(RDFS.comment, m.createTypedLiteral("42", XSDDatatype.XSDinteger))
+            .addProperty(DCTerms.relation, m.createResource("http://example.com/other/x"))
+            .addProperty(DCTerms.relation, m.createResource().addProperty(RDFS.label, "anon"));
+        checkRoundTrip(m);
+
+        m.createResource(NS + "s").addProperty(DCTerms.isPartOf, r);
+        checkRoundTrip(m);
+    }
+
+    private void checkRoundTrip(Model m) throws Exception {
+        StringWriter out = new StringWriter();
+        new JsonldWriter(out, new JsonldWriter.Context( prefixes() )).write(m);
+        Object json = JSONUtils.fromInputStream( new ByteArrayInputStream(out.toString().getBytes("UTF-8")) );
+        Model result = JSONLDSupport.parseModel("http://example.com/base", json);
+        assertTrue( result.isIsomorphicWith(m) );
+    }
+
+    private PrefixMapping prefixes() {
+        PrefixMapping pm = PrefixMapping.Factory.create();
+        pm.setNsPrefixes(PrefixMapping.Standard);
+        pm.setNsPrefix("dct", DCTerms.getURI());
+        pm.setNsPrefix("ex", NS);
+        return pm;
+    }
+}
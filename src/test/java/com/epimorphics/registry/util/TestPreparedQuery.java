@@ -0,0 +1,74 @@
+/******************************************************************
+ * File:        TestPreparedQuery.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+
+package com.epimorphics.registry.util;
+
+import static com.epimorphics.rdfutil.QueryUtil.createBindings;
+import static com.epimorphics.rdfutil.QueryUtil.selectAll;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class TestPreparedQuery {
+    static final String NS = "http://example.com/test/";
+    static final String QUERY = "SELECT ?s ?label WHERE { ?s rdfs:seeAlso ?target. OPTIONAL {?s rdfs:label ?label} } ORDER BY ?s";
+
+    @Test
+    public void testSelect() {
+        Model m = ModelFactory.createDefaultModel();
+        Resource a = m.createResource(NS + "a");
+        Resource b = m.createResource(NS + "b");
+        m.createResource(NS + "x").addProperty(RDFS.label, "x").addProperty(RDFS.seeAlso, a);
+        m.createResource(NS + "y").addProperty(RDFS.seeAlso, a);
+        m.createResource(NS + "z").addProperty(RDFS.label, "z").addProperty(RDFS.seeAlso, b);
+
+        PreparedQuery query = new PreparedQuery(QUERY);
+        assertEquals(rows(selectAll(m, QUERY, Prefixes.getDefault(), createBindings("target", a))),
+                     rows(query.select(m, "target", a)));
+        assertEquals("[http://example.com/test/x x, http://example.com/test/y null]", rows(query.select(m, "target", a)).toString());
+        assertEquals("[http://example.com/test/z z]", rows(query.select(m, "target", b)).toString());
+        assertEquals(3, rows(query.select(m)).size());
+        assertTrue( query.getQuery().isSelectType() );
+        assertFalse( query.select(m, "target", m.createResource(NS + "c")).hasNext() );
+    }
+
+    private List<String> rows(ResultSet rs) {
+        List<String> rows = new ArrayList<String>();
+        while (rs.hasNext()) {
+            QuerySolution soln = rs.next();
+            rows.add( soln.getResource("s").getURI() + " " + (soln.contains("label") ? soln.getLiteral("label").getLexicalForm() : "null") );
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,107 @@
+/******************************************************************
+ * File:        TestSingleFlight.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+
+package com.epimorphics.registry.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestSingleFlight {
+
+    @Test
+    public void testCoalescing() throws InterruptedException {
+        final SingleFlight<String> flights = new SingleFlight<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final Callable<String> task = new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                runs.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "result";
+            }
+        };
+
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[n] = flights.execute("key", task);
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                started.await();
+            }
+        }
+        // Give the followers a chance to join the flight before it completes
+        while (flights.getCoalesced() < threads.length - 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, runs.get());
+        for (String r : results) {
+            assertEquals("result", r);
+        }
+
+        // Completed flights are not retained
+        assertEquals("result", flights.execute("key", task));
+        assertEquals(2, runs.get());
+        assertEquals(2, flights.getExecutions());
+    }
+
+    @Test
+    public void testFailure() {
+        SingleFlight<String> flights = new SingleFlight<String>();
+        try {
+            flights.execute("key", new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail("Expected the task's exception");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals("ok", flights.execute("key", new Callable<String>() {
+            @Override
+            public String call() {
+                return "ok";
+            }
+        }));
+    }
+}
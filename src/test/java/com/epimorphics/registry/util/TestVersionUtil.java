@@ -91,6 +91,35 @@ public class TestVersionUtil {
         return newitem;
     }
 
+    @Test
+    public void testFlattenInto() {
+        Model m = ModelFactory.createDefaultModel();
+        Resource item = m.createResource(BASE + "item")
+                .addProperty(RDF.type, RegistryVocab.RegisterItem)
+                .addProperty(RDFS.label, "an item")
+                .addProperty(RegistryVocab.notation, "item")
+                .addProperty(RegistryVocab.definition, m.createResource().addProperty(RegistryVocab.entity, m.createResource(BASE + "entity")));
+        Resource ver = VersionUtil.nextVersion(item, Calendar.getInstance(), RegistryVocab.notation);
+        Model store = ver.getModel();
+        Resource root = item.inModel(store);
+        ver.addProperty(RDFS.seeAlso, store.createResource().addProperty(RDFS.comment, "nested").addProperty(RDFS.seeAlso, ver));
+
+        // Reference result, copy both closures then rename
+        Model expected = ModelFactory.createDefaultModel().add(store);
+        VersionUtil.flatten(root.inModel(expected), ver.inModel(expected));
+        expected.removeAll(ver.inModel(expected), null, null);
+        expected.removeAll(expected.createResource(ver.getURI() + "#interval"), null, null);
+        expected.removeAll(null, Time.inXSDDateTime, null);
+
+        Model flat = ModelFactory.createDefaultModel();
+        Resource result = VersionUtil.flattenInto(root, ver, flat);
+        assertEquals(BASE + "item", result.getURI());
+        assertTrue(result.hasLiteral(OWL.versionInfo, 1));
+        assertFalse(result.hasProperty(Version.currentVersion));
+        assertFalse(result.hasProperty(DCTerms.isVersionOf));
+        assertTrue(flat.isIsomorphicWith(expected));
+    }
+
     @Test
     public void testVersionURIs() {
         Resource plain = ResourceFactory.createResource(BASE + "foo");
@@ -0,0 +1,143 @@
+/******************************************************************
+ * File:        TestWeightedCache.java
+ * Created by:  agent
+ * Created on:  18 Oct 2026
+ *
+ * (c) Copyright 2026, Epimorphics Limited
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *****************************************************************/
+
+package com.epimorphics.registry.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestWeightedCache {
+
+    static final WeightedCache.Weigher<String> LENGTH = new WeightedCache.Weigher<String>() {
+        @Override
+        public long weigh(String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testWeightBound() {
+        WeightedCache<String> cache = new WeightedCache<String>("test", 10, 0, LENGTH);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccc");
+        // b was least recently used
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals("cccc", cache.get("c"));
+        assertEquals(8, cache.getStats().getWeight());
+        assertEquals(1, cache.getStats().getEvictions());
+
+        cache.put("d", "ddddddddddddd");
+        assertNull(cache.get("d"));
+
+        cache.flush("a");
+        assertNull(cache.get("a"));
+        assertEquals(4, cache.getStats().getWeight());
+        assertEquals(3, cache.getStats().getHits());
+        assertEquals(3, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        WeightedCache<String> cache = new WeightedCache<String>("test", 100, 20, LENGTH);
+        cache.put("a", "aaaa");
+        assertEquals("aaaa", cache.get("a"));
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getStats().getExpirations());
+        assertEquals(0, cache.getStats().getWeight());
+    }
+
+    @Test
+    public void testCoalescedLoad() throws InterruptedException {
+        final WeightedCache<String> cache = new WeightedCache<String>("test", 100, 0, LENGTH);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WeightedCache.Loader<String> loader = new WeightedCache.Loader<String>() {
+            @Override
+            public String load(String key) {
+                loads.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "value-" + key;
+            }
+        };
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[n] = cache.get("k", loader);
+                }
+            };
+            threads[i].start();
+            if (i == 0) started.await();
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, loads.get());
+        for (String r : results) {
+            assertEquals("value-k", r);
+        }
+        assertEquals(3, cache.getStats().getCoalesced());
+        assertEquals("value-k", cache.get("k"));
+    }
+
+    @Test
+    public void testFlushDuringLoad() {
+        final WeightedCache<String> cache = new WeightedCache<String>("test", 100, 0, LENGTH);
+        String value = cache.get("k", new WeightedCache.Loader<String>() {
+            @Override
+            public String load(String key) {
+                cache.flush(key);
+                return "stale";
+            }
+        });
+        assertEquals("stale", value);
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    public void testParseBudget() {
+        assertEquals(100, WeightedCache.parseBudget("100"));
+        assertEquals(2048, WeightedCache.parseBudget("2k"));
+        assertEquals(32 * 1024 * 1024, WeightedCache.parseBudget("32M"));
+        assertTrue(WeightedCache.parseBudget("1g") > Integer.MAX_VALUE / 2);
+    }
+}
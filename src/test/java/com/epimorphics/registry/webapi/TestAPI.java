@@ -334,6 +334,15 @@ public class TestAPI extends TomcatTestBase {
         checkRegisterList( getModelResponse(REG1 + "?status=notaccepted"), REG1_URI, "blue");
         checkRegisterList( getModelResponse(REG1 + "?status=any"), REG1_URI, "red1b", "black", "blue");
 
+        // Streamed serializations of the same listing
+        Model full = getModelResponse(REG1 + "?status=any&_view=with_metadata");
+        assertTrue( full.isIsomorphicWith( getModelResponse(REG1 + "?status=any&_view=with_metadata&_stream") ) );
+        ClientResponse ntResponse = getResponse(REG1 + "?status=any&_view=with_metadata", "application/n-triples");
+        assertEquals(200, ntResponse.getStatus());
+        Model nt = ModelFactory.createDefaultModel();
+        nt.read(ntResponse.getEntityInputStream(), REG1, "N-TRIPLES");
+        assertTrue( full.isIsomorphicWith(nt) );
+
         // Register metadata view
         m = getModelResponse(REG1 + "?non-member-properties&_view=with_metadata");
         checkModelResponse(m, REG1_URI, "test/expected/reg1_nmp_metadata.ttl");
@@ -350,8 +359,17 @@ public class TestAPI extends TomcatTestBase {
     private void doPagingTest() {
         // Register paging
         makeRegister(60);
-        checkPageResponse(getModelResponse(REGL_URL + "?firstPage&status=notaccepted"), "1", 50);
+        checkPageResponse(getModelResponse(REGL_URL + "?firstPage&status=notaccepted"), "_page=1", 50);
         checkPageResponse(getModelResponse(REGL_URL + "?_page=1&status=notaccepted"), null, 10);
+
+        // Cursor paging
+        checkPageResponse(getModelResponse(REGL_URL + "?_after&status=notaccepted"), "_after=item53", 50);
+        checkPageResponse(getModelResponse(REGL_URL + "?_after=item53&status=notaccepted"), null, 10);
+
+        // Membership counts
+        Model m = getModelResponse(REGL_URL + "?_count");
+        Resource regL = m.getResource(ROOT_REGISTER + "regL");
+        assertEquals(60, regL.getProperty(m.createProperty("http://rdfs.org/ns/void#entities")).getInt());
     }
 
     private void doRegisterVersionRetrievalTest() {
@@ -393,6 +411,15 @@ public class TestAPI extends TomcatTestBase {
         checkRegisterList( m, ROOT_REGISTER + "scheme-collection", "item 1", "item 2");
 
         assertEquals(400, postFileStatus("test/bulk-skos-collection-spurious.ttl", BASE_URL + "?batch-managed") );
+
+        // Streamed ingest
+        assertEquals("Not a bulk type", 400, postFileStatus("test/blue.ttl", REG1 + "?batch-managed&_stream"));
+        // A rejected streamed batch registers nothing, not even its root
+        assertEquals(400, postFileStatus("test/bulk-skos-collection-spurious.ttl", REG1 + "?batch-managed&_stream"));
+        assertEquals(404, getResponse(REG1 + "/collection").getStatus());
+        assertEquals(201, postFileStatus("test/bulk-skos-collection.ttl", REG1 + "?batch-managed&_stream"));
+        m = getModelResponse(REG1 + "/collection?status=any");
+        checkRegisterList( m, REG1_URI + "/collection", "item 1", "item 2", "item 3");
     }
 
     // Assumes /collection exists from bulk registration test
@@ -442,6 +469,19 @@ public class TestAPI extends TomcatTestBase {
         assertEquals(200, response.getStatus());
         assertEquals("http://location.data.gov.uk/collection/item1 is http://location.data.gov.uk/collection/_item1", response.getEntity(String.class).trim());
 
+        // Streaming mode always succeeds, failures are reported inline
+        response = postFile("test/validation-request2.txt", BASE_URL + "?validate&_stream", "text/plain");
+        assertEquals(200, response.getStatus());
+        String result = response.getEntity(String.class);
+        assertTrue(result.contains("http://location.data.gov.uk/collection/item1 is http://location.data.gov.uk/collection/_item1"));
+        assertTrue(result.contains("URI not found anywhere: http://location.data.gov.uk/collection/item7"));
+        assertTrue(result.contains("# Checked 3 URIs, 1 not valid"));
+
+        response = postFile("test/validation-request1.txt", BASE_URL + "?validate&_stream&_format=nt", "text/plain");
+        assertEquals(200, response.getStatus());
+        result = response.getEntity(String.class);
+        assertTrue(result.contains("<http://purl.org/linked-data/registry#entity> <http://location.data.gov.uk/collection/item2> ."));
+        assertTrue(result.contains("# Checked 2 URIs, 0 not valid"));
     }
 
     // Assumes reg1/red exists and has go through update (to red1) and patch (to red1b) and status change
@@ -840,7 +880,7 @@ public class TestAPI extends TomcatTestBase {
         if (nextpage != null) {
             Resource next = page.getPropertyResourceValue(Ldbp.nextPage);
             assertNotNull(next);
-            assertTrue(next.getURI().contains("_page=" + nextpage));
+            assertTrue(next.getURI().contains(nextpage));
         } else {
             assertFalse(page.hasProperty(Ldbp.nextPage));
         }